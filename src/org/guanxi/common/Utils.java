@@ -30,7 +30,6 @@ import java.util.zip.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
@@ -91,8 +90,7 @@ public class Utils {
       DOMSource domSource = new DOMSource(inDocToEncode);
       StringWriter writer = new StringWriter();
       StreamResult result = new StreamResult(writer);
-      TransformerFactory tf = TransformerFactory.newInstance();
-      Transformer transformer = tf.newTransformer();
+      Transformer transformer = XMLFactoryPool.getTransformer();
       transformer.transform(domSource, result);
       return Base64.encode(writer.toString().getBytes());
     }
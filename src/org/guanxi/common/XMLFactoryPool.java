@@ -0,0 +1,228 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common;
+
+import org.apache.log4j.Logger;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Provides DocumentBuilders and Transformers without looking up the JAXP factories
+ * on every call. The factories are found and configured once and each thread gets
+ * its own DocumentBuilder and Transformer, which are reset every time they're handed
+ * out. Builders are namespace aware and both builders and transformers have secure
+ * processing turned on. If the JAXP implementation can't reset its objects, e.g. Xalan 2.7
+ * Transformers, a new one is created from the configured factory each time instead.
+ *
+ * The objects returned belong to the calling thread, so they must not be passed to
+ * other threads, and must not be asked for again while they're still being used,
+ * e.g. from within a parse.
+ *
+ * A JAXP implementation packaged with the web application, e.g. Xerces or Xalan, would be
+ * kept loaded by the builders and transformers the container's threads hold on to, so call
+ * clear from a ServletContextListener's contextDestroyed when the application stops.
+ *
+ * @author alistair
+ */
+public class XMLFactoryPool {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(XMLFactoryPool.class.getName());
+
+  /** Factory for all the DocumentBuilders */
+  private static final DocumentBuilderFactory documentBuilderFactory;
+  /** Factory for all the Transformers */
+  private static final TransformerFactory transformerFactory;
+
+  /** Each thread's DocumentBuilder, through a reference clear can empty from any thread */
+  private static final ThreadLocal<AtomicReference<DocumentBuilder>> documentBuilders =
+    new ThreadLocal<AtomicReference<DocumentBuilder>>();
+  /** Each thread's Transformer, through a reference clear can empty from any thread */
+  private static final ThreadLocal<AtomicReference<Transformer>> transformers =
+    new ThreadLocal<AtomicReference<Transformer>>();
+  /** Every thread's references, held weakly so they go with their threads */
+  private static final Set<AtomicReference<?>> allReferences =
+    Collections.newSetFromMap(new WeakHashMap<AtomicReference<?>, Boolean>());
+
+  /** Older JAXP implementations can't reset their objects, in which case we make new ones */
+  private static volatile boolean documentBuilderResetSupported = true;
+  /** Older JAXP implementations can't reset their objects, in which case we make new ones */
+  private static volatile boolean transformerResetSupported = true;
+
+  /** How many times a DocumentBuilder has been asked for */
+  private static final AtomicLong documentBuilderRequests = new AtomicLong();
+  /** How many DocumentBuilders have been created */
+  private static final AtomicLong documentBuildersCreated = new AtomicLong();
+  /** How many times a Transformer has been asked for */
+  private static final AtomicLong transformerRequests = new AtomicLong();
+  /** How many Transformers have been created */
+  private static final AtomicLong transformersCreated = new AtomicLong();
+
+  // Find and configure the factories
+  static {
+    documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    documentBuilderFactory.setNamespaceAware(true);
+    documentBuilderFactory.setExpandEntityReferences(false);
+    try {
+      documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      // Nothing we parse should have a DOCTYPE
+      documentBuilderFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+    }
+    catch(ParserConfigurationException pce) {
+      logger.warn("DocumentBuilderFactory does not support secure processing", pce);
+    }
+
+    transformerFactory = TransformerFactory.newInstance();
+    try {
+      transformerFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    }
+    catch(TransformerConfigurationException tce) {
+      logger.warn("TransformerFactory does not support secure processing", tce);
+    }
+  }
+
+  /**
+   * Gets the calling thread's DocumentBuilder, reset and ready for use
+   *
+   * @return namespace aware DocumentBuilder
+   * @throws ParserConfigurationException if a DocumentBuilder can't be created
+   */
+  public static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+    documentBuilderRequests.incrementAndGet();
+
+    DocumentBuilder documentBuilder = getPooled(documentBuilders);
+    if (documentBuilder != null) {
+      try {
+        documentBuilder.reset();
+      }
+      catch(RuntimeException re) {
+        documentBuilderResetSupported = false;
+        documentBuilder = null;
+      }
+    }
+
+    if (documentBuilder == null) {
+      // The factory isn't guaranteed to be thread safe
+      synchronized(documentBuilderFactory) {
+        documentBuilder = documentBuilderFactory.newDocumentBuilder();
+      }
+      documentBuildersCreated.incrementAndGet();
+      if (documentBuilderResetSupported) {
+        setPooled(documentBuilders, documentBuilder);
+      }
+    }
+
+    return documentBuilder;
+  }
+
+  /**
+   * Gets the calling thread's Transformer, reset and ready for use
+   *
+   * @return identity Transformer
+   * @throws TransformerConfigurationException if a Transformer can't be created
+   */
+  public static Transformer getTransformer() throws TransformerConfigurationException {
+    transformerRequests.incrementAndGet();
+
+    Transformer transformer = getPooled(transformers);
+    if (transformer != null) {
+      try {
+        transformer.reset();
+      }
+      catch(RuntimeException re) {
+        // Xalan 2.7 either doesn't support reset or throws a NullPointerException from it
+        transformerResetSupported = false;
+        transformer = null;
+      }
+    }
+
+    if (transformer == null) {
+      // The factory isn't guaranteed to be thread safe
+      synchronized(transformerFactory) {
+        transformer = transformerFactory.newTransformer();
+      }
+      transformersCreated.incrementAndGet();
+      if (transformerResetSupported) {
+        setPooled(transformers, transformer);
+      }
+    }
+
+    return transformer;
+  }
+
+  /**
+   * Lets go of every thread's DocumentBuilder and Transformer. Threads that ask for
+   * one afterwards get a new one.
+   */
+  public static void clear() {
+    documentBuilders.remove();
+    transformers.remove();
+    synchronized(allReferences) {
+      for (AtomicReference<?> reference : allReferences) {
+        reference.set(null);
+      }
+    }
+  }
+
+  /**
+   * Gets the calling thread's object from a pool
+   *
+   * @param pool the pool
+   * @return the thread's object or null if it doesn't have one
+   */
+  private static <T> T getPooled(ThreadLocal<AtomicReference<T>> pool) {
+    AtomicReference<T> reference = pool.get();
+    return (reference != null) ? reference.get() : null;
+  }
+
+  /**
+   * Keeps an object in a pool for the calling thread
+   *
+   * @param pool the pool
+   * @param pooled the thread's object
+   */
+  private static <T> void setPooled(ThreadLocal<AtomicReference<T>> pool, T pooled) {
+    AtomicReference<T> reference = pool.get();
+    if (reference == null) {
+      reference = new AtomicReference<T>();
+      pool.set(reference);
+      synchronized(allReferences) {
+        allReferences.add(reference);
+      }
+    }
+    reference.set(pooled);
+  }
+
+  /** @return how many times a DocumentBuilder has been asked for */
+  public static long getDocumentBuilderRequests() { return documentBuilderRequests.get(); }
+  /** @return how many DocumentBuilders have been created */
+  public static long getDocumentBuildersCreated() { return documentBuildersCreated.get(); }
+  /** @return how many times a Transformer has been asked for */
+  public static long getTransformerRequests() { return transformerRequests.get(); }
+  /** @return how many Transformers have been created */
+  public static long getTransformersCreated() { return transformersCreated.get(); }
+}
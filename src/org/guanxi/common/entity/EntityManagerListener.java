@@ -0,0 +1,50 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.entity;
+
+/**
+ * Told when the entities an EntityManager handles change, e.g. so an EntityFarm
+ * can keep its index of which manager handles each entity up to date.
+ *
+ * @author alistair
+ */
+public interface EntityManagerListener {
+  /**
+   * Metadata for an entity has been added to a manager, possibly replacing
+   * metadata it already had for the entity
+   *
+   * @param manager the manager the metadata was added to
+   * @param entityID the entity
+   */
+  public void entityAdded(EntityManager manager, String entityID);
+
+  /**
+   * Metadata for an entity has been removed from a manager
+   *
+   * @param manager the manager the metadata was removed from
+   * @param entityID the entity
+   */
+  public void entityRemoved(EntityManager manager, String entityID);
+
+  /**
+   * All the metadata has been removed from a manager
+   *
+   * @param manager the manager that's now empty
+   */
+  public void allEntitiesRemoved(EntityManager manager);
+}
@@ -0,0 +1,86 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.entity;
+
+import org.guanxi.common.metadata.impl.IndexedMetadataCache;
+
+/**
+ * An EntityManager whose metadata can be reloaded without readers ever seeing it
+ * half loaded, and which tells listeners, such as an EntityFarm, when its entities
+ * change. Managers that only implement EntityManager are emptied with
+ * removeAllMetadata and loaded again, as they always have been.
+ *
+ * @author alistair
+ */
+public interface ReloadableEntityManager extends EntityManager {
+  /**
+   * Adds all the entities in a metadata cache. Each entity is only parsed from the
+   * cache, with a new entity handler, the first time its metadata is asked for. Like
+   * addMetadata this goes to the new generation if there's a refresh in progress.
+   * Entities already added to the manager take precedence over those in the cache,
+   * and adding another cache replaces the last one. The manager closes the cache once
+   * it's no longer needed.
+   *
+   * @param cache the metadata cache
+   */
+  public void addCachedMetadata(IndexedMetadataCache cache);
+
+  /**
+   * Starts loading a new generation of metadata. Until commitRefresh or abortRefresh is
+   * called, metadata added or removed goes to the new generation and the manager carries
+   * on returning the metadata it already has. Calling this again before committing starts
+   * the new generation afresh.
+   */
+  public void beginRefresh();
+
+  /**
+   * Replaces the manager's metadata with the generation loaded since beginRefresh
+   * was called, all in one go. This does nothing if there's no refresh in progress.
+   */
+  public void commitRefresh();
+
+  /**
+   * Throws away the generation loaded since beginRefresh was called. The manager
+   * carries on returning the metadata it already has and metadata added or removed
+   * from now on goes straight to it again. This does nothing if there's no refresh
+   * in progress.
+   */
+  public void abortRefresh();
+
+  /**
+   * Returns a number that changes whenever the metadata the manager returns changes,
+   * so callers can tell whether anything they worked out from it is out of date.
+   *
+   * @return the current generation of metadata
+   */
+  public long getGeneration();
+
+  /**
+   * Registers a listener to be told when the manager's entities change
+   *
+   * @param listener the listener
+   */
+  public void addEntityManagerListener(EntityManagerListener listener);
+
+  /**
+   * Stops a listener being told when the manager's entities change
+   *
+   * @param listener the listener
+   */
+  public void removeEntityManagerListener(EntityManagerListener listener);
+}
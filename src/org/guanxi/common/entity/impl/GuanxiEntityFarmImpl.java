@@ -14,46 +14,169 @@
 //: All Rights Reserved.
 //:
 
+
 package org.guanxi.common.entity.impl;
 
 import org.guanxi.common.entity.EntityFarm;
 import org.guanxi.common.entity.EntityManager;
+import org.guanxi.common.entity.EntityManagerListener;
+import org.guanxi.common.entity.ReloadableEntityManager;
+import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Guanxi implementation of an EntityFarm
  *
+ * The farm keeps an index of which manager handles each entity, which the managers
+ * keep up to date as they load and remove metadata, so finding the manager for an
+ * entity is usually a single lookup. An entity that isn't in the index yet is looked
+ * for by asking each manager in turn. If more than one manager has metadata for the same
+ * entity, the one that comes first in the map of managers wins, as it did when the
+ * farm asked each manager in turn.
+ *
+ * Only a ReloadableEntityManager tells the farm when its entities change. If any of
+ * the managers isn't one, the index isn't used and each manager is asked in turn.
+ *
  * @author alistair
  */
-public class GuanxiEntityFarmImpl implements EntityFarm {
+public class GuanxiEntityFarmImpl implements EntityFarm, EntityManagerListener {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(GuanxiEntityFarmImpl.class.getName());
+
   /** All the metadata managers */
   private Map<String, EntityManager> entityManagers = null;
+  /** The managers in order of precedence */
+  private volatile List<EntityManager> precedence = new ArrayList<EntityManager>();
+  /** The manager that handles each entity, keyed on entityID */
+  private ConcurrentHashMap<String, EntityManager> entityIndex = new ConcurrentHashMap<String, EntityManager>();
+  /** Whether every manager keeps the index up to date, so it can be used */
+  private volatile boolean indexed = true;
 
   /** @see org.guanxi.common.entity.EntityFarm#getEntityManagerForSource(String) */
   public EntityManager getEntityManagerForSource(String metadataSource) {
-    for (String source : entityManagers.keySet()) {
-      if (source.equals(metadataSource)) {
-        return entityManagers.get(source);
-      }
-    }
-
-    return null;
+    return entityManagers.get(metadataSource);
   }
 
   /** @see org.guanxi.common.entity.EntityFarm#getEntityManagerForID(String) */
   public EntityManager getEntityManagerForID(String id) {
-    for (EntityManager entityManager : entityManagers.values()) {
-      if (entityManager.handlesEntity(id)) {
+    if (id == null) {
+      return null;
+    }
+
+    if (indexed) {
+      EntityManager entityManager = entityIndex.get(id);
+      if (entityManager != null) {
         return entityManager;
       }
     }
 
+    // The index can lag behind a manager that's just loaded the entity, so ask them
+    for (EntityManager candidate : precedence) {
+      if (candidate.handlesEntity(id)) {
+        return candidate;
+      }
+    }
+
     return null;
   }
 
   /** @see org.guanxi.common.entity.EntityFarm#setEntityManagers(java.util.Map) */
-  public void setEntityManagers(Map<String, EntityManager> entityManagers) { this.entityManagers = entityManagers; }
+  public synchronized void setEntityManagers(Map<String, EntityManager> entityManagers) {
+    for (EntityManager entityManager : precedence) {
+      if (entityManager instanceof ReloadableEntityManager) {
+        ((ReloadableEntityManager)entityManager).removeEntityManagerListener(this);
+      }
+    }
+    entityIndex.clear();
+
+    this.entityManagers = entityManagers;
+    precedence = new ArrayList<EntityManager>(entityManagers.values());
+
+    // Index what's already loaded, highest precedence last so it wins
+    boolean allReloadable = true;
+    for (int c = precedence.size() - 1; c >= 0; c--) {
+      EntityManager entityManager = precedence.get(c);
+      if (!(entityManager instanceof ReloadableEntityManager)) {
+        allReloadable = false;
+        continue;
+      }
+      ((ReloadableEntityManager)entityManager).addEntityManagerListener(this);
+      for (String entityID : entityManager.getEntityIDs()) {
+        entityIndex.put(entityID, entityManager);
+      }
+    }
+    indexed = allReloadable;
+  }
+
   /** @see org.guanxi.common.entity.EntityFarm#getEntityManagers() */
   public Map getEntityManagers() { return entityManagers; }
+
+  /** @see org.guanxi.common.entity.EntityManagerListener#entityAdded(org.guanxi.common.entity.EntityManager, String) */
+  public synchronized void entityAdded(EntityManager manager, String entityID) {
+    EntityManager current = entityIndex.get(entityID);
+    if ((current == null) || (precedenceOf(manager) <= precedenceOf(current))) {
+      entityIndex.put(entityID, manager);
+    }
+    else if (logger.isDebugEnabled()) {
+      logger.debug(entityID + " is also in a manager with higher precedence, which will be used");
+    }
+  }
+
+  /** @see org.guanxi.common.entity.EntityManagerListener#entityRemoved(org.guanxi.common.entity.EntityManager, String) */
+  public synchronized void entityRemoved(EntityManager manager, String entityID) {
+    if (entityIndex.get(entityID) == manager) {
+      reindex(entityID);
+    }
+  }
+
+  /** @see org.guanxi.common.entity.EntityManagerListener#allEntitiesRemoved(org.guanxi.common.entity.EntityManager) */
+  public synchronized void allEntitiesRemoved(EntityManager manager) {
+    ArrayList<String> removed = new ArrayList<String>();
+    for (Iterator<Map.Entry<String, EntityManager>> entries = entityIndex.entrySet().iterator(); entries.hasNext();) {
+      Map.Entry<String, EntityManager> entry = entries.next();
+      if (entry.getValue() == manager) {
+        removed.add(entry.getKey());
+      }
+    }
+    for (String entityID : removed) {
+      reindex(entityID);
+    }
+  }
+
+  /**
+   * Points an entity at the manager with the highest precedence that still handles it,
+   * or removes it from the index if none of them do
+   *
+   * @param entityID the entity
+   */
+  private void reindex(String entityID) {
+    for (EntityManager entityManager : precedence) {
+      if (entityManager.handlesEntity(entityID)) {
+        entityIndex.put(entityID, entityManager);
+        return;
+      }
+    }
+    entityIndex.remove(entityID);
+  }
+
+  /**
+   * Works out where a manager comes in the order of precedence
+   *
+   * @param manager the manager
+   * @return the manager's position, lowest first, or Integer.MAX_VALUE if it's not in the farm
+   */
+  private int precedenceOf(EntityManager manager) {
+    List<EntityManager> current = precedence;
+    for (int c = 0; c < current.size(); c++) {
+      if (current.get(c) == manager) {
+        return c;
+      }
+    }
+    return Integer.MAX_VALUE;
+  }
 }
@@ -16,64 +16,324 @@
 
 package org.guanxi.common.entity.impl;
 
-import org.guanxi.common.entity.EntityManager;
+import org.guanxi.common.entity.ReloadableEntityManager;
+import org.guanxi.common.entity.EntityManagerListener;
 import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.IndexedMetadataCache;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.trust.TrustEngine;
+import org.guanxi.common.trust.impl.SimpleTrustEngine;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.trust.EntityKeyIndex;
+import org.apache.log4j.Logger;
 
-import java.util.HashMap;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Guanxi implementation of the MetadataManager interface.
  * This class works with XMLBeans defined SAML2 metadata objects
  *
+ * Reads never lock. While metadata is being refreshed the entities are loaded into the
+ * next generation, off to the side, and readers carry on seeing the current one until
+ * the next generation is swapped in whole by commitRefresh.
+ *
+ * Entities can also come from an IndexedMetadataCache, in which case each one is only
+ * parsed the first time it's asked for. The cache is closed once the manager's
+ * finished with it.
+ *
+ * Certificates parsed from metadata are shared through the X509CertificateCache. When
+ * a generation is replaced, only the certificates it had that the new one doesn't are
+ * evicted, so the ones still in use aren't parsed again.
+ *
  * @author alistair
  */
-public class GuanxiEntityManagerImpl implements EntityManager {
+public class GuanxiEntityManagerImpl implements ReloadableEntityManager {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(GuanxiEntityManagerImpl.class.getName());
+
   /** The class to use for handling metadata entities */
   private String entityHandlerClass = null;
-  /** The list of entities this manger looks after */
-  private HashMap<String, Metadata> metadataHandlers = null;
+  /** The entity handler class's constructor, looked up the first time it's needed */
+  private volatile Constructor<? extends Metadata> entityHandlerConstructor = null;
+  /** The entities this manger looks after */
+  private volatile Generation current = null;
+  /** The entities being loaded by a refresh, or null if there isn't one in progress */
+  private Generation next = null;
+  /** Changes every time what the manager returns changes */
+  private volatile long generation = 0;
   /** The trust engine implementation */
   private TrustEngine trustEngine = null;
+  /**
+   * The certificates of the metadata removeAllMetadata last removed. They're evicted the
+   * next time it's called unless the metadata loaded in the meantime has them too.
+   */
+  private Set<CertFingerprint> removedCerts = Collections.emptySet();
+  /** Who to tell when the entities change */
+  private CopyOnWriteArrayList<EntityManagerListener> listeners = new CopyOnWriteArrayList<EntityManagerListener>();
 
   /** @see org.guanxi.common.entity.EntityManager#createNewEntityHandler()  */
   public Metadata createNewEntityHandler() throws GuanxiException {
     try {
-      return (Metadata)Class.forName(entityHandlerClass).newInstance();
+      return getEntityHandlerConstructor().newInstance();
+    }
+    catch(GuanxiException ge) {
+      throw ge;
     }
     catch(Exception e) {
       throw new GuanxiException(e);
     }
   }
 
+  /**
+   * Looks up the entity handler class's no argument constructor, once
+   *
+   * @return the constructor
+   * @throws GuanxiException if the class can't be loaded, isn't a Metadata or has no public no argument constructor
+   */
+  private Constructor<? extends Metadata> getEntityHandlerConstructor() throws GuanxiException {
+    Constructor<? extends Metadata> constructor = entityHandlerConstructor;
+    if (constructor == null) {
+      try {
+        constructor = Class.forName(entityHandlerClass).asSubclass(Metadata.class).getConstructor();
+      }
+      catch(ClassNotFoundException cnfe) {
+        throw new GuanxiException(cnfe);
+      }
+      catch(ClassCastException cce) {
+        throw new GuanxiException(entityHandlerClass + " is not a Metadata");
+      }
+      catch(NoSuchMethodException nsme) {
+        throw new GuanxiException(nsme);
+      }
+      entityHandlerConstructor = constructor;
+    }
+    return constructor;
+  }
+
   public void init() {
-    metadataHandlers = new HashMap<String, Metadata>();
+    current = new Generation();
   }
 
   /** @see org.guanxi.common.entity.EntityManager#addMetadata(org.guanxi.common.metadata.Metadata) */
-  public void addMetadata(Metadata metadata) {
-    metadataHandlers.put(metadata.getEntityID(), metadata);
+  public synchronized void addMetadata(Metadata metadata) {
+    if (next != null) {
+      next.put(metadata);
+      return;
+    }
+
+    current.put(metadata);
+    generation++;
+
+    for (EntityManagerListener listener : listeners) {
+      listener.entityAdded(this, metadata.getEntityID());
+    }
   }
 
-  /** @see org.guanxi.common.entity.EntityManager#getMetadata(String) */
+  /**
+   * Returns the metadata for an entity. If the entity came from a metadata cache and
+   * hasn't been asked for before, it's parsed from the cache now.
+   *
+   * @see org.guanxi.common.entity.EntityManager#getMetadata(String)
+   */
   public Metadata getMetadata(String entityID) {
-    return metadataHandlers.get(entityID);
+    Generation metadata = current;
+    Metadata handler = metadata.handlers.get(entityID);
+    if (handler != null) {
+      return handler;
+    }
+    if (!metadata.isCached(entityID)) {
+      // It may have been parsed since handlers was looked at. It's put in handlers before it's removed from cached
+      return metadata.handlers.get(entityID);
+    }
+
+    // Parse it outside the lock so other readers aren't held up
+    IndexedMetadataCache cache = metadata.cache;
+    try {
+      Object entityDescriptor = cache.getEntityDescriptor(entityID);
+      if (entityDescriptor == null) {
+        // The cache has been replaced with one that doesn't have the entity
+        return null;
+      }
+      handler = createNewEntityHandler();
+      handler.setPrivateData(entityDescriptor);
+      if (handler.getEntityID() == null) {
+        // It's been logged so don't keep trying
+        synchronized(this) {
+          metadata.removeCached(entityID);
+        }
+        return null;
+      }
+    }
+    catch(GuanxiException ge) {
+      // The cache is closed when it's replaced, in which case look again
+      if ((cache.isClosed()) && ((metadata != current) || (metadata.cache != cache))) {
+        return getMetadata(entityID);
+      }
+      logger.error("Could not load " + entityID + " from " + cache.getFile(), ge);
+      return null;
+    }
+
+    synchronized(this) {
+      // Unless someone else got there first or it's been removed in the meantime
+      if (metadata.isCached(entityID)) {
+        // Readers don't lock, so it goes in handlers before it leaves cached
+        Metadata published = metadata.handlers.putIfAbsent(entityID, handler);
+        metadata.removeCached(entityID);
+        return (published != null) ? published : handler;
+      }
+      return metadata.handlers.get(entityID);
+    }
+  }
+
+  /** @see org.guanxi.common.entity.ReloadableEntityManager#addCachedMetadata(org.guanxi.common.metadata.impl.IndexedMetadataCache) */
+  public synchronized void addCachedMetadata(IndexedMetadataCache cache) {
+    if (next != null) {
+      closeCache(next, cache);
+      next.setCache(cache);
+      return;
+    }
+
+    closeCache(current, cache);
+    current.setCache(cache);
+    generation++;
+
+    for (EntityManagerListener listener : listeners) {
+      for (String entityID : cache.getEntityIDs()) {
+        listener.entityAdded(this, entityID);
+      }
+    }
   }
 
   /** @see org.guanxi.common.entity.EntityManager#removeAllMetadata() */
-  public void removeAllMetadata() {
-    metadataHandlers.clear();
+  public synchronized void removeAllMetadata() {
+    if (next != null) {
+      closeCache(next, null);
+    }
+    closeCache(current, null);
+
+    /* The metadata's usually loaded again straight away, so only the certificates that
+     * the metadata removed last time had and this metadata doesn't are no longer needed.
+     */
+    Set<CertFingerprint> certs = current.getCertificateFingerprints();
+    HashSet<CertFingerprint> unused = new HashSet<CertFingerprint>(removedCerts);
+    unused.removeAll(certs);
+    evictCertificates(unused);
+    removedCerts = certs;
+
+    next = null;
+    current = new Generation();
+    generation++;
+
+    for (EntityManagerListener listener : listeners) {
+      listener.allEntitiesRemoved(this);
+    }
+  }
+
+  /** @see org.guanxi.common.entity.ReloadableEntityManager#beginRefresh() */
+  public synchronized void beginRefresh() {
+    if (next != null) {
+      closeCache(next, current.cache);
+    }
+    next = new Generation();
+  }
+
+  /**
+   * Evicts certificates parsed from metadata from the caches. As well as the trust
+   * engine's, that's the shared cache the entity handlers' key indexes are built with.
+   *
+   * @param unused the fingerprints of the certificates' DER encodings
+   */
+  private void evictCertificates(Set<CertFingerprint> unused) {
+    if (unused.isEmpty()) {
+      return;
+    }
+    if (trustEngine instanceof SimpleTrustEngine) {
+      ((SimpleTrustEngine)trustEngine).getCertificateCache().evict(unused);
+    }
+    X509CertificateCache.getSharedCache().evict(unused);
+  }
+
+  /** @see org.guanxi.common.entity.ReloadableEntityManager#commitRefresh() */
+  public synchronized void commitRefresh() {
+    if (next == null) {
+      return;
+    }
+
+    Generation previous = current;
+    current = next;
+    next = null;
+    generation++;
+    closeCache(previous, current.cache);
+
+    // Certificates only the previous generation had are no longer needed
+    Set<CertFingerprint> unused = previous.getCertificateFingerprints();
+    unused.removeAll(current.getCertificateFingerprints());
+    evictCertificates(unused);
+
+    if (listeners.isEmpty()) {
+      return;
+    }
+
+    // The new generation is in place so listeners asking about an entity will see it
+    ArrayList<String> removed = new ArrayList<String>();
+    for (String entityID : previous.getEntityIDs()) {
+      if (!current.contains(entityID)) {
+        removed.add(entityID);
+      }
+    }
+    Set<String> added = current.getEntityIDs();
+    for (EntityManagerListener listener : listeners) {
+      for (String entityID : removed) {
+        listener.entityRemoved(this, entityID);
+      }
+      for (String entityID : added) {
+        listener.entityAdded(this, entityID);
+      }
+    }
+  }
+
+  /** @see org.guanxi.common.entity.ReloadableEntityManager#abortRefresh() */
+  public synchronized void abortRefresh() {
+    if (next != null) {
+      closeCache(next, current.cache);
+    }
+    next = null;
+  }
+
+  /**
+   * Closes the metadata cache of a generation the manager's finished with
+   *
+   * @param finished the generation
+   * @param keep a cache that's still in use and mustn't be closed, or null
+   */
+  private static void closeCache(Generation finished, IndexedMetadataCache keep) {
+    if ((finished.cache != null) && (finished.cache != keep)) {
+      finished.cache.close();
+    }
+  }
+
+  /** @see org.guanxi.common.entity.ReloadableEntityManager#getGeneration() */
+  public long getGeneration() {
+    return generation;
   }
 
   /** @see org.guanxi.common.entity.EntityManager#handlesEntity(String)  */
   public boolean handlesEntity(String entityID) {
-    return metadataHandlers.containsKey(entityID);
+    return current.contains(entityID);
   }
 
   /** @see org.guanxi.common.entity.EntityManager#setEntityHandlerClass(String)   */
   public void setEntityHandlerClass(String entityHandlerClass) {
     this.entityHandlerClass = entityHandlerClass;
+    entityHandlerConstructor = null;
   }
 
   /** @see org.guanxi.common.entity.EntityManager#setTrustEngine(org.guanxi.common.trust.TrustEngine) */
@@ -88,12 +348,102 @@ public class GuanxiEntityManagerImpl implements EntityManager {
 
   /** @see org.guanxi.common.entity.EntityManager#getEntityIDs() */
   public String[] getEntityIDs() {
-    String[] entityIDs = new String[metadataHandlers.keySet().size()];
-    return metadataHandlers.keySet().toArray(entityIDs);
+    Set<String> entityIDs = current.getEntityIDs();
+    return entityIDs.toArray(new String[entityIDs.size()]);
   }
 
   /** @see org.guanxi.common.entity.EntityManager#removeMetadata(String) */
-  public void removeMetadata(String entityID) {
-    metadataHandlers.remove(entityID);
+  public synchronized void removeMetadata(String entityID) {
+    if (next != null) {
+      next.remove(entityID);
+      return;
+    }
+
+    if (current.remove(entityID)) {
+      generation++;
+      for (EntityManagerListener listener : listeners) {
+        listener.entityRemoved(this, entityID);
+      }
+    }
+  }
+
+  /** @see org.guanxi.common.entity.ReloadableEntityManager#addEntityManagerListener(org.guanxi.common.entity.EntityManagerListener) */
+  public void addEntityManagerListener(EntityManagerListener listener) {
+    listeners.addIfAbsent(listener);
+  }
+
+  /** @see org.guanxi.common.entity.ReloadableEntityManager#removeEntityManagerListener(org.guanxi.common.entity.EntityManagerListener) */
+  public void removeEntityManagerListener(EntityManagerListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * One generation of a manager's entities. Entities from a metadata cache are listed
+   * in cached until they're parsed and moved to handlers. Only the manager's writers,
+   * which hold its lock, change a generation.
+   */
+  private static final class Generation {
+    /** The metadata for each entity, keyed on entityID */
+    private final ConcurrentHashMap<String, Metadata> handlers = new ConcurrentHashMap<String, Metadata>();
+    /** The entities in the cache that haven't been parsed yet */
+    private final ConcurrentHashMap<String, Boolean> cached = new ConcurrentHashMap<String, Boolean>();
+    /** Where the cached entities come from */
+    private volatile IndexedMetadataCache cache = null;
+
+    void put(Metadata metadata) {
+      handlers.put(metadata.getEntityID(), metadata);
+      cached.remove(metadata.getEntityID());
+    }
+
+    boolean isCached(String entityID) {
+      return cached.containsKey(entityID);
+    }
+
+    boolean removeCached(String entityID) {
+      return cached.remove(entityID) != null;
+    }
+
+    boolean remove(String entityID) {
+      boolean removedCached = removeCached(entityID);
+      return (handlers.remove(entityID) != null) || removedCached;
+    }
+
+    void setCache(IndexedMetadataCache cache) {
+      this.cache = cache;
+      cached.clear();
+      for (String entityID : cache.getEntityIDs()) {
+        if (!handlers.containsKey(entityID)) {
+          cached.put(entityID, Boolean.TRUE);
+        }
+      }
+    }
+
+    /** Looks in cached first as an entity moves from there to handlers, never the other way */
+    boolean contains(String entityID) {
+      return cached.containsKey(entityID) || handlers.containsKey(entityID);
+    }
+
+    Set<String> getEntityIDs() {
+      HashSet<String> entityIDs = new HashSet<String>(handlers.keySet());
+      entityIDs.addAll(cached.keySet());
+      return entityIDs;
+    }
+
+    /**
+     * Collects the certificates of the entities that have been parsed. Entities that
+     * are still in the cache haven't parsed any.
+     */
+    Set<CertFingerprint> getCertificateFingerprints() {
+      HashSet<CertFingerprint> fingerprints = new HashSet<CertFingerprint>();
+      for (Metadata handler : handlers.values()) {
+        if (handler instanceof GuanxiSAML2MetadataImpl) {
+          EntityKeyIndex keyIndex = ((GuanxiSAML2MetadataImpl)handler).getKeyIndex();
+          if (keyIndex != null) {
+            fingerprints.addAll(keyIndex.getCertificateFingerprints());
+          }
+        }
+      }
+      return fingerprints;
+    }
   }
 }
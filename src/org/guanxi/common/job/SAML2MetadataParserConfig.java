@@ -79,6 +79,9 @@ public class SAML2MetadataParserConfig extends SimpleGuanxiJobConfig {
 
   public String getMetadataCacheFile() { return metadataCacheFile; }
 
+  /** @return full path and name of the indexed copy of the metadata cache, which sits alongside it */
+  public String getIndexedMetadataCacheFile() { return metadataCacheFile + ".idx"; }
+
   public void setPemLocation(String pemLocation) { this.pemLocation = pemLocation; }
   public String getPemLocation() { return pemLocation; }
 
@@ -14,6 +14,8 @@ import org.apache.xml.security.Init;
 import org.apache.xmlbeans.XmlException;
 import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
 import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.RoleDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.KeyDescriptorType;
 import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
 import org.guanxi.xal.w3.xmldsig.SignatureType;
 import org.guanxi.xal.w3.xmldsig.KeyInfoType;
@@ -23,16 +25,33 @@ import org.guanxi.common.Utils;
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.entity.EntityManager;
 import org.guanxi.common.entity.EntityFarm;
+import org.guanxi.common.entity.ReloadableEntityManager;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.IndexedMetadataCache;
 import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.common.trust.TrustEngine;
+import org.guanxi.common.trust.TrustAnchors;
+import org.guanxi.common.trust.impl.SimpleTrustEngine;
+import org.guanxi.common.trust.CertChainBuilder;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.security.JCAEngines;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.security.cert.X509Certificate;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateFactory;
-import java.io.IOException;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.HashSet;
 
 public abstract class ShibbolethSAML2MetadataParser {
   /** Our logger */
@@ -40,6 +59,26 @@ public abstract class ShibbolethSAML2MetadataParser {
   protected SAML2MetadataParserConfig config = null;
   protected EntitiesDescriptorDocument doc = null;
   protected EntityDescriptorType[] entityDescriptors = null;
+  /** Whether the metadata came from the local cache because it couldn't be loaded from its URL */
+  protected boolean loadedFromCache = false;
+  /**
+   * The indexed metadata cache, if the metadata came from the local cache and the
+   * indexed cache was written along with it. When this is set, doc is only loaded from
+   * the XML cache if it's needed.
+   */
+  protected IndexedMetadataCache indexedCache = null;
+  /** Whether the entities have been loaded into a manager from indexedCache */
+  private boolean indexedCacheLoaded = false;
+  /** The trust anchors from the metadata's KeyAuthority, once they've been loaded */
+  private TrustAnchors trustAnchors = null;
+  /** Whether the trust anchors have been loaded */
+  private boolean trustAnchorsLoaded = false;
+  /** Whether the indexed cache has been written from the metadata */
+  private boolean indexedCacheWritten = false;
+  /** Whether reloadEntityManager is loading a new generation into a manager */
+  private boolean refreshing = false;
+  /** The trust anchors loadCAListFromMetadata held back for publishEntityManager */
+  private TrustAnchors pendingTrustAnchors = null;
 
   static {
     // Initialise xml-security library
@@ -47,10 +86,21 @@ public abstract class ShibbolethSAML2MetadataParser {
   }
 
   /**
-   * Initialises the SAML2 parsing operation
+   * Initialises the SAML2 parsing operation. If the metadata can't be loaded from its
+   * URL and the indexed cache is current, only the indexed cache's index is read. The
+   * XML cache is parsed later if something needs the whole of the metadata.
    */
   public void init() {
     logger = Logger.getLogger(config.getJobClass());
+    loadedFromCache = false;
+    doc = null;
+    indexedCache = null;
+    indexedCacheLoaded = false;
+    trustAnchors = null;
+    trustAnchorsLoaded = false;
+    indexedCacheWritten = false;
+    refreshing = false;
+    pendingTrustAnchors = null;
 
     try {
       // Load the metadata from the URL
@@ -58,22 +108,66 @@ public abstract class ShibbolethSAML2MetadataParser {
     }
     catch(GuanxiException ge) {
       logger.error("Error parsing metadata. Loading from cache", ge);
-      try {
-        // Load the metadata from the cache
-        doc = Utils.parseSAML2Metadata("file:///" + config.getMetadataCacheFile());
+      if (isIndexedCacheCurrent()) {
+        try {
+          indexedCache = new IndexedMetadataCache(config.getIndexedMetadataCacheFile());
+          loadedFromCache = true;
+          return;
+        }
+        catch(GuanxiException gex) {
+          logger.error("Could not load metadata from cache : " + config.getIndexedMetadataCacheFile(), gex);
+        }
       }
-      catch(GuanxiException gex) {
-        logger.error("Could not load metadata from cache : " + config.getMetadataCacheFile(), gex);
+      loadMetadataFromCache();
+    }
+  }
+
+  /**
+   * Loads the metadata by parsing the whole of the XML cache
+   *
+   * @return true if the metadata was loaded, otherwise false
+   */
+  protected boolean loadMetadataFromCache() {
+    try {
+      doc = Utils.parseSAML2Metadata("file:///" + config.getMetadataCacheFile());
+      loadedFromCache = true;
+      return true;
+    }
+    catch(GuanxiException gex) {
+      logger.error("Could not load metadata from cache : " + config.getMetadataCacheFile(), gex);
+      return false;
+    }
+  }
+
+  /**
+   * Makes sure the whole of the metadata is loaded. If init only opened the indexed
+   * cache, the XML cache is parsed now.
+   *
+   * @return true if the metadata is loaded, otherwise false
+   */
+  protected boolean loadMetadata() {
+    if ((doc == null) && (indexedCache != null)) {
+      loadMetadataFromCache();
+      // Nothing more is loaded from the indexed cache once there's a doc, so let it go
+      if ((doc != null) && (!indexedCacheLoaded)) {
+        indexedCache.close();
       }
     }
+    return doc != null;
   }
 
   /**
-   * Loads the SAML2 entities from the metadata and caches them locally
+   * Loads the SAML2 entities from the metadata and caches them locally. Metadata that
+   * came from the cache isn't cached again.
    */
   protected void loadAndCacheEntities() {
+    loadMetadata();
     entityDescriptors = doc.getEntitiesDescriptor().getEntityDescriptorArray();
 
+    if (loadedFromCache) {
+      return;
+    }
+
     // Cache the metadata locally
     try {
       Utils.writeSAML2MetadataToDisk(doc, config.getMetadataCacheFile());
@@ -81,6 +175,68 @@ public abstract class ShibbolethSAML2MetadataParser {
     catch(GuanxiException ge) {
       logger.error("Could not cache metadata to : " + config.getMetadataCacheFile(), ge);
     }
+
+    // ...and an indexed copy that entities can be loaded from one at a time
+    indexedCacheWritten = writeIndexedCache();
+  }
+
+  /**
+   * Writes the entities and trust anchors to the indexed cache
+   *
+   * @return true if the indexed cache was written, otherwise false
+   */
+  private boolean writeIndexedCache() {
+    try {
+      IndexedMetadataCache.write(entityDescriptors, getTrustAnchors(), config.getIndexedMetadataCacheFile());
+      return true;
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not cache metadata to : " + config.getIndexedMetadataCacheFile(), ge);
+      return false;
+    }
+  }
+
+  /**
+   * Loads the entities from the indexed metadata cache into a manager without parsing
+   * them. Each entity is parsed the first time the manager is asked for it. This is a
+   * much quicker fallback than parsing the whole of the XML cache, but only gives the
+   * entities, not the aggregate's signature. Only a ReloadableEntityManager
+   * can take entities from the cache.
+   *
+   * @param manager EntityManager instance for this metadata
+   * @return true if the entities were loaded, otherwise false
+   */
+  protected boolean loadEntitiesFromIndexedCache(EntityManager manager) {
+    if (!(manager instanceof ReloadableEntityManager)) {
+      return false;
+    }
+
+    try {
+      IndexedMetadataCache cache = ((indexedCache != null) && (!indexedCache.isClosed())) ? indexedCache :
+                                   new IndexedMetadataCache(config.getIndexedMetadataCacheFile());
+      ((ReloadableEntityManager)manager).addCachedMetadata(cache);
+      if (cache == indexedCache) {
+        indexedCacheLoaded = true;
+      }
+      logger.info("Loaded " + cache.getEntityIDs().size() + " entities from " + cache.getFile());
+      return true;
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not load metadata from cache : " + config.getIndexedMetadataCacheFile(), ge);
+      return false;
+    }
+  }
+
+  /**
+   * Works out whether the indexed cache was written along with the XML cache rather
+   * than left over from an earlier load, as it's written second
+   *
+   * @return true if the indexed cache is at least as new as the XML cache
+   */
+  protected boolean isIndexedCacheCurrent() {
+    File indexedCacheFile = new File(config.getIndexedMetadataCacheFile());
+    return (indexedCacheFile.exists()) &&
+           (indexedCacheFile.lastModified() >= new File(config.getMetadataCacheFile()).lastModified());
   }
 
   /**
@@ -141,6 +297,7 @@ public abstract class ShibbolethSAML2MetadataParser {
    * @return Signature block from the metadata
    */
   protected SignatureType getSignatureFromMetadata() {
+    loadMetadata();
     return doc.getEntitiesDescriptor().getSignature();
   }
 
@@ -183,23 +340,137 @@ public abstract class ShibbolethSAML2MetadataParser {
   }
 
   /**
-   * Loads all the shibmeta:KeyAuthority nodes from the SAML2 metadata
+   * Loads all the shibmeta:KeyAuthority nodes from the SAML2 metadata. While
+   * reloadEntityManager is loading a new generation, the CAs are held back and
+   * given to the trust engine by publishEntityManager.
    *
    * @param manager EntityManager instance for this metadata
    * @return true if the CA lists was loaded, otherwise false
    */
   protected boolean loadCAListFromMetadata(EntityManager manager) {
-    boolean loaded = false;
-
-    /* Are there any extensions? If there aren't, it doesn't matter
+    /* Are there any trust anchors? If there aren't, it doesn't matter
      * as the trust engine handling this metadata might not need them.
      */
-    if (doc.getEntitiesDescriptor().getExtensions() == null) {
+    TrustAnchors anchors = getTrustAnchors();
+    if (anchors == null) {
       return false;
     }
 
+    if (refreshing) {
+      pendingTrustAnchors = anchors;
+      return anchors.getCACerts().length > 0;
+    }
+
+    return applyTrustAnchors(manager, anchors);
+  }
+
+  /**
+   * Gives the trust anchors from the metadata to the manager's trust engine. A
+   * SimpleTrustEngine keeps them apart from those of the other metadata sources
+   * it works with, so only this source's CAs are replaced. Other engines just get
+   * the new CAs added.
+   *
+   * @param manager EntityManager instance for this metadata
+   * @param anchors the trust anchors from the metadata
+   * @return true if there were CAs to give the engine, otherwise false
+   */
+  private boolean applyTrustAnchors(EntityManager manager, TrustAnchors anchors) {
+    TrustEngine engine = manager.getTrustEngine();
+    SimpleTrustEngine simpleEngine = (engine instanceof SimpleTrustEngine) ? (SimpleTrustEngine)engine : null;
+
+    try {
+      // The same CA can be listed more than once so only keep one of each
+      LinkedHashMap<CertFingerprint, X509Certificate> caCerts = new LinkedHashMap<CertFingerprint, X509Certificate>();
+      for (X509Certificate caCert : anchors.getCACerts()) {
+        caCerts.put(CertFingerprint.of(caCert), caCert);
+      }
+
+      // Work out what's changed since the last time
+      X509Certificate[] previous = engine.getCACerts();
+      if (simpleEngine != null) {
+        TrustAnchors previousAnchors = simpleEngine.getTrustAnchors(config.getMetadataURL());
+        previous = (previousAnchors != null) ? previousAnchors.getCACerts() : new X509Certificate[0];
+      }
+      HashSet<CertFingerprint> previousCACerts = new HashSet<CertFingerprint>();
+      for (X509Certificate caCert : previous) {
+        previousCACerts.add(CertFingerprint.of(caCert));
+      }
+      int kept = 0;
+      for (CertFingerprint fingerprint : caCerts.keySet()) {
+        if (previousCACerts.contains(fingerprint)) {
+          kept++;
+        }
+      }
+      int added = caCerts.size() - kept;
+      int retired = previousCACerts.size() - kept;
+
+      if (simpleEngine == null) {
+        // Retired CAs can't be taken out of other engines
+        for (Map.Entry<CertFingerprint, X509Certificate> caCert : caCerts.entrySet()) {
+          if (!previousCACerts.contains(caCert.getKey())) {
+            engine.addCACert(caCert.getValue());
+          }
+        }
+        logger.info("Loaded CAs from " + config.getMetadataURL() + " : " + added + " added, " + kept + " kept");
+        return !caCerts.isEmpty();
+      }
+
+      simpleEngine.setTrustAnchors(config.getMetadataURL(), anchors);
+      logger.info("Loaded CAs from " + config.getMetadataURL() + " : " + added + " added, " +
+                  kept + " kept, " + retired + " retired, " + anchors.getIntermediateCerts().length +
+                  " intermediates, verify depth " + anchors.getVerifyDepth());
+      return !caCerts.isEmpty();
+    }
+    catch(CertificateEncodingException cee) {
+      logger.error("Could not fingerprint CA certificate", cee);
+    }
+
+    return false;
+  }
+
+  /**
+   * Gets the trust anchors from the metadata's shibmeta:KeyAuthority, only loading them
+   * once. If the entities came from the indexed cache, so did the trust anchors.
+   *
+   * @return the trust anchors, or null if the metadata doesn't have any or they couldn't be loaded
+   */
+  protected TrustAnchors getTrustAnchors() {
+    if (!trustAnchorsLoaded) {
+      if ((doc == null) && (indexedCache != null)) {
+        try {
+          trustAnchors = indexedCache.getTrustAnchors(X509CertificateCache.getSharedCache());
+        }
+        catch(GuanxiException ge) {
+          logger.error("Could not load CAs from cache : " + indexedCache.getFile(), ge);
+        }
+      }
+      else {
+        trustAnchors = loadTrustAnchorsFromMetadata();
+      }
+      trustAnchorsLoaded = true;
+    }
+    return trustAnchors;
+  }
+
+  /**
+   * Loads the CAs, their CRLs and verify depth from the shibmeta:KeyAuthority in the
+   * SAML2 metadata, along with the CA certificates from the entities that paths to
+   * the CAs can go through.
+   *
+   * @return the trust anchors, or null if the metadata doesn't have any or they couldn't be loaded
+   */
+  private TrustAnchors loadTrustAnchorsFromMetadata() {
+    if (!loadMetadata()) {
+      return null;
+    }
+
+    // Are there any extensions?
+    if (doc.getEntitiesDescriptor().getExtensions() == null) {
+      return null;
+    }
+
     try {
-      CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
+      X509CertificateCache certCache = X509CertificateCache.getSharedCache();
       ExtensionsType extensions = doc.getEntitiesDescriptor().getExtensions();
 
       /* Find the shibmeta:KeyAuthority node. This lists all the root CAs
@@ -215,47 +486,199 @@ public abstract class ShibbolethSAML2MetadataParser {
         }
       }
 
-      // Load all the root CAs into the trust engine
-      if (keyAuthorityNode != null) {
-        KeyAuthorityDocument keyAuthDoc = KeyAuthorityDocument.Factory.parse(keyAuthorityNode);
-        KeyInfoType[] keyInfos = keyAuthDoc.getKeyAuthority().getKeyInfoArray();
-        for (KeyInfoType keyInfo : keyInfos) {
-          X509DataType[] x509Datas = keyInfo.getX509DataArray();
-          for (X509DataType x509Data : x509Datas) {
-            byte[][] x509Certs = x509Data.getX509CertificateArray();
-            for (byte[] x509CertBytes : x509Certs) {
-              ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509CertBytes);
-              manager.getTrustEngine().addCACert((X509Certificate)certFactory.generateCertificate(certByteStream));
-              certByteStream.close();
-              loaded = true;
+      if (keyAuthorityNode == null) {
+        logger.error("Could not find shibmeta:KeyAuthority in metadata");
+        return null;
+      }
+
+      // Load all the root CAs
+      LinkedHashMap<CertFingerprint, X509Certificate> caCerts = new LinkedHashMap<CertFingerprint, X509Certificate>();
+      // The CAs' CRLs can come along with them
+      ArrayList<X509CRL> crls = new ArrayList<X509CRL>();
+      CertificateFactory crlFactory = JCAEngines.getCertificateFactory("X.509");
+      KeyAuthorityDocument keyAuthDoc = KeyAuthorityDocument.Factory.parse(keyAuthorityNode);
+      int verifyDepth = CertChainBuilder.DEFAULT_VERIFY_DEPTH;
+      if (keyAuthDoc.getKeyAuthority().isSetVerifyDepth()) {
+        verifyDepth = keyAuthDoc.getKeyAuthority().getVerifyDepth();
+      }
+      KeyInfoType[] keyInfos = keyAuthDoc.getKeyAuthority().getKeyInfoArray();
+      for (KeyInfoType keyInfo : keyInfos) {
+        X509DataType[] x509Datas = keyInfo.getX509DataArray();
+        for (X509DataType x509Data : x509Datas) {
+          byte[][] x509Certs = x509Data.getX509CertificateArray();
+          for (byte[] x509CertBytes : x509Certs) {
+            X509Certificate caCert = certCache.getCertificate(x509CertBytes);
+            caCerts.put(CertFingerprint.of(caCert), caCert);
+          }
+          if (x509Data.getX509CRLArray() != null) {
+            for (byte[] x509CRLBytes : x509Data.getX509CRLArray()) {
+              // One bad CRL mustn't stop the CAs and the other CRLs being loaded
+              try {
+                crls.add((X509CRL)crlFactory.generateCRL(new ByteArrayInputStream(x509CRLBytes)));
+              }
+              catch(CRLException crle) {
+                logger.error("Skipping CA CRL that could not be parsed in " + config.getMetadataURL(), crle);
+              }
             }
           }
         }
       }
-      else {
-        logger.error("Could not find shibmeta:KeyAuthority in metadata");
+
+      // Paths to the CAs can go through intermediates from the entities' own X509Data
+      LinkedHashMap<CertFingerprint, X509Certificate> intermediates = new LinkedHashMap<CertFingerprint, X509Certificate>();
+      if (verifyDepth > 1) {
+        for (EntityDescriptorType entityDescriptor : doc.getEntitiesDescriptor().getEntityDescriptorArray()) {
+          collectIntermediates(entityDescriptor.getIDPSSODescriptorArray(), certCache, caCerts, intermediates);
+          collectIntermediates(entityDescriptor.getAttributeAuthorityDescriptorArray(), certCache, caCerts, intermediates);
+          collectIntermediates(entityDescriptor.getSPSSODescriptorArray(), certCache, caCerts, intermediates);
+        }
       }
+
+      return new TrustAnchors(caCerts.values().toArray(new X509Certificate[caCerts.size()]),
+                              intermediates.values().toArray(new X509Certificate[intermediates.size()]),
+                              crls.toArray(new X509CRL[crls.size()]), verifyDepth);
     }
-    catch(CertificateException ce) {
-      logger.error("Could not prepare certificate factory", ce);
+    catch(CertificateEncodingException cee) {
+      logger.error("Could not fingerprint CA certificate", cee);
     }
-    catch(IOException ioe) {
-      logger.error("Could not close byte stream", ioe);
+    catch(CertificateException ce) {
+      logger.error("Could not parse CA certificate", ce);
     }
     catch(XmlException xe) {
       logger.error("Could not load shibboleth extensions from metadata", xe);
     }
 
-    return loaded;
+    return null;
+  }
+
+  /**
+   * Collects the CA certificates in some roles' KeyDescriptors, which can be used as
+   * intermediates on the way to a KeyAuthority CA. Certificates that can't be parsed
+   * are logged and skipped.
+   *
+   * @param roles The roles from an entity's metadata
+   * @param certCache The cache of certificates parsed from metadata
+   * @param caCerts The KeyAuthority CAs, which aren't intermediates
+   * @param intermediates Where to put the intermediates
+   */
+  private void collectIntermediates(RoleDescriptorType[] roles, X509CertificateCache certCache,
+                                    Map<CertFingerprint, X509Certificate> caCerts,
+                                    Map<CertFingerprint, X509Certificate> intermediates) {
+    if (roles == null) {
+      return;
+    }
+
+    for (RoleDescriptorType role : roles) {
+      for (KeyDescriptorType keyDescriptor : role.getKeyDescriptorArray()) {
+        if ((keyDescriptor.getKeyInfo() == null) || (keyDescriptor.getKeyInfo().getX509DataArray() == null)) {
+          continue;
+        }
+        for (X509DataType x509Data : keyDescriptor.getKeyInfo().getX509DataArray()) {
+          if (x509Data.getX509CertificateArray() == null) {
+            continue;
+          }
+          for (byte[] x509CertBytes : x509Data.getX509CertificateArray()) {
+            // A bad certificate in one entity mustn't stop the intermediates being loaded
+            try {
+              X509Certificate x509 = certCache.getCertificate(x509CertBytes);
+              // Only CA certificates can be intermediates
+              if (x509.getBasicConstraints() == -1) {
+                continue;
+              }
+              CertFingerprint fingerprint = CertFingerprint.of(x509);
+              if (!caCerts.containsKey(fingerprint)) {
+                intermediates.put(fingerprint, x509);
+              }
+            }
+            catch(CertificateException ce) {
+              logger.error("Skipping certificate that could not be parsed in " + config.getMetadataURL(), ce);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reloads the EntityManager for the current metadata source from the metadata
+   * loaded by init. A new generation is started in the manager, loaded by loadEntities
+   * and published. If loading fails the new generation is thrown away and the manager
+   * carries on with the metadata it had.
+   *
+   * @param contextKey The key in the servlet context under which the manager is hiding
+   * @return EntityManager for the current metadata source
+   * @throws GuanxiException if the entities could not be loaded
+   */
+  protected EntityManager reloadEntityManager(String contextKey) throws GuanxiException {
+    EntityManager manager = loadEntityManager(contextKey);
+    if (manager instanceof ReloadableEntityManager) {
+      ((ReloadableEntityManager)manager).beginRefresh();
+    }
+    else {
+      manager.removeAllMetadata();
+    }
+    boolean published = false;
+    refreshing = true;
+    try {
+      loadEntities(manager);
+      refreshing = false;
+      publishEntityManager(manager);
+      published = true;
+    }
+    finally {
+      refreshing = false;
+      if (!published) {
+        abandonEntityManager(manager);
+      }
+    }
+    return manager;
+  }
+
+  /**
+   * Loads the entities and CAs from the metadata into a manager, with an entity handler
+   * for each entity. If init fell back to the indexed cache, the entities and CAs are
+   * taken from the indexed cache instead, without parsing the XML cache, and each entity
+   * is only parsed when it's first asked for. Subclasses can override this to load the
+   * manager differently.
+   *
+   * @param manager EntityManager instance for this metadata
+   * @throws GuanxiException if the entities could not be loaded
+   */
+  protected void loadEntities(EntityManager manager) throws GuanxiException {
+    if ((doc == null) && (indexedCache != null) && (loadEntitiesFromIndexedCache(manager))) {
+      loadCAListFromMetadata(manager);
+      return;
+    }
+
+    if (!loadMetadata()) {
+      throw new GuanxiException("No metadata loaded from " + config.getMetadataURL());
+    }
+
+    loadAndCacheEntities();
+    for (EntityDescriptorType entityDescriptor : entityDescriptors) {
+      Metadata handler = manager.createNewEntityHandler();
+      handler.setPrivateData(entityDescriptor);
+      if (handler.getEntityID() == null) {
+        // The handler's already logged why
+        continue;
+      }
+      manager.addMetadata(handler);
+    }
+    loadCAListFromMetadata(manager);
   }
 
   /**
    * Loads the appropriate EntityManager for the current metadata source and
-   * empties it of any previous metadata.
+   * empties it of any previous metadata. Until the caller has loaded the new metadata
+   * the manager only has part of the federation, or none of it, and requests for the
+   * missing entities fail.
    *
    * @param contextKey The key in the servlet context under which the manager is hiding
    * @return EntityManager for the current metadata source
+   * @deprecated use reloadEntityManager, which keeps the previous metadata available
+   *             until the new metadata has been loaded
    */
+  @Deprecated
   protected EntityManager loadEmptyEntityManager(String contextKey) {
     EntityFarm farm = (EntityFarm)config.getServletContext().getAttribute(contextKey);
     EntityManager manager = farm.getEntityManagerForSource(config.getMetadataURL());
@@ -263,6 +686,50 @@ public abstract class ShibbolethSAML2MetadataParser {
     return manager;
   }
 
+  /**
+   * Swaps the metadata loaded into a manager since reloadEntityManager started
+   * a new generation in place of what it had before, then gives the metadata's
+   * CAs to the manager's trust engine.
+   *
+   * @param manager EntityManager instance for this metadata
+   */
+  protected void publishEntityManager(EntityManager manager) {
+    TrustAnchors anchors = pendingTrustAnchors;
+    pendingTrustAnchors = null;
+
+    if (manager instanceof ReloadableEntityManager) {
+      ((ReloadableEntityManager)manager).commitRefresh();
+      logger.info("Published generation " + ((ReloadableEntityManager)manager).getGeneration() + " of " +
+                  config.getMetadataURL() + " with " + manager.getEntityIDs().length + " entities");
+
+      /* The indexed cache can't be replaced on some platforms while the manager has it
+       * open, which it no longer does now the previous generation's gone.
+       */
+      if ((!loadedFromCache) && (entityDescriptors != null) && (!indexedCacheWritten)) {
+        indexedCacheWritten = writeIndexedCache();
+      }
+    }
+
+    if (anchors != null) {
+      applyTrustAnchors(manager, anchors);
+    }
+  }
+
+  /**
+   * Throws away the metadata loaded into a manager since reloadEntityManager started
+   * a new generation, so the manager carries on with what it had before. Only a
+   * ReloadableEntityManager needs this.
+   *
+   * @param manager EntityManager instance for this metadata
+   */
+  protected void abandonEntityManager(EntityManager manager) {
+    pendingTrustAnchors = null;
+    if (manager instanceof ReloadableEntityManager) {
+      ((ReloadableEntityManager)manager).abortRefresh();
+      logger.error("Abandoned loading " + config.getMetadataURL() + ", keeping the metadata already loaded");
+    }
+  }
+
   /**
    * Loads the appropriate EntityManager for the current metadata source
    *
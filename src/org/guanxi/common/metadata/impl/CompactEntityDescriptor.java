@@ -0,0 +1,287 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.metadata.impl;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.trust.EntityKeyIndex;
+import org.guanxi.xal.saml_2_0.metadata.EndpointType;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.RoleDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.IDPSSODescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.AttributeAuthorityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.SPSSODescriptorType;
+import org.apache.xmlbeans.XmlException;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The parts of an entity's SAML2 metadata that Guanxi uses at runtime: its entityID,
+ * the endpoints of its roles, the keys and KeyNames embedded in them and its scopes.
+ * Holding on to an XMLBeans EntityDescriptorType holds on to the whole XMLBeans store
+ * it was parsed from, UI info, contacts, organization and all, and with a large
+ * federation that's most of the heap.
+ *
+ * The whole descriptor is also kept as compressed XML, which is much smaller than the
+ * store. It's only parsed again if someone asks for the full EntityDescriptorType, and
+ * what's parsed is held softly so it can be thrown away again when memory's short.
+ *
+ * Instances are immutable apart from that soft reference.
+ *
+ * @author alistair
+ */
+public class CompactEntityDescriptor {
+  /** The namespace of shibmd:Scope */
+  public static final String SHIBMD_NS = "urn:mace:shibboleth:metadata:1.0";
+
+  /** The entity's ID */
+  private final String entityID;
+  /** The SingleSignOnService endpoints of each IDPSSODescriptor */
+  private final Endpoint[][] singleSignOnServices;
+  /** The AttributeService endpoints of each AttributeAuthorityDescriptor */
+  private final Endpoint[][] attributeServices;
+  /** The AssertionConsumerService endpoints of each SPSSODescriptor */
+  private final Endpoint[][] assertionConsumerServices;
+  /** The shibmd:Scopes from the IdP and AA roles */
+  private final String[] scopes;
+  /** The keys and KeyNames embedded in the metadata */
+  private final EntityKeyIndex keyIndex;
+  /** The descriptor serialised as XML and compressed */
+  private final byte[] xml;
+  /** The descriptor parsed from the XML, if it's been asked for and is still in memory */
+  private volatile SoftReference<EntityDescriptorType> descriptor = null;
+
+  /**
+   * Takes what's needed from an entity's metadata. Nothing is kept that refers to
+   * the XMLBeans store the metadata is in.
+   *
+   * @param saml2Metadata the entity's metadata
+   * @param certCache the cache of certificates parsed from metadata
+   * @throws GuanxiException if the metadata can't be serialised
+   */
+  public CompactEntityDescriptor(EntityDescriptorType saml2Metadata, X509CertificateCache certCache) throws GuanxiException {
+    entityID = saml2Metadata.getEntityID();
+
+    IDPSSODescriptorType[] idps = saml2Metadata.getIDPSSODescriptorArray();
+    singleSignOnServices = new Endpoint[idps.length][];
+    for (int c=0; c < idps.length; c++) {
+      singleSignOnServices[c] = copyEndpoints(idps[c].getSingleSignOnServiceArray());
+    }
+
+    AttributeAuthorityDescriptorType[] aas = saml2Metadata.getAttributeAuthorityDescriptorArray();
+    attributeServices = new Endpoint[aas.length][];
+    for (int c=0; c < aas.length; c++) {
+      attributeServices[c] = copyEndpoints(aas[c].getAttributeServiceArray());
+    }
+
+    SPSSODescriptorType[] sps = saml2Metadata.getSPSSODescriptorArray();
+    assertionConsumerServices = new Endpoint[sps.length][];
+    for (int c=0; c < sps.length; c++) {
+      assertionConsumerServices[c] = copyEndpoints(sps[c].getAssertionConsumerServiceArray());
+    }
+
+    LinkedHashSet<String> roleScopes = new LinkedHashSet<String>();
+    addScopes(saml2Metadata.getIDPSSODescriptorArray(), roleScopes);
+    addScopes(saml2Metadata.getAttributeAuthorityDescriptorArray(), roleScopes);
+    scopes = roleScopes.toArray(new String[roleScopes.size()]);
+
+    keyIndex = new EntityKeyIndex(saml2Metadata, certCache);
+
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+      saml2Metadata.save(out);
+      out.close();
+      xml = bytes.toByteArray();
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /** @return the entity's ID */
+  public String getEntityID() {
+    return entityID;
+  }
+
+  /**
+   * Gets the SingleSignOnService endpoints of one of the entity's IDPSSODescriptors
+   *
+   * @param role the index of the IDPSSODescriptor in the metadata
+   * @return the endpoints, in document order
+   * @throws ArrayIndexOutOfBoundsException if there's no such IDPSSODescriptor
+   */
+  public Endpoint[] getSingleSignOnServices(int role) {
+    return singleSignOnServices[role].clone();
+  }
+
+  /**
+   * Gets the AttributeService endpoints of one of the entity's AttributeAuthorityDescriptors
+   *
+   * @param role the index of the AttributeAuthorityDescriptor in the metadata
+   * @return the endpoints, in document order
+   * @throws ArrayIndexOutOfBoundsException if there's no such AttributeAuthorityDescriptor
+   */
+  public Endpoint[] getAttributeServices(int role) {
+    return attributeServices[role].clone();
+  }
+
+  /**
+   * Gets the AssertionConsumerService endpoints of one of the entity's SPSSODescriptors
+   *
+   * @param role the index of the SPSSODescriptor in the metadata
+   * @return the endpoints, in document order
+   * @throws ArrayIndexOutOfBoundsException if there's no such SPSSODescriptor
+   */
+  public Endpoint[] getAssertionConsumerServices(int role) {
+    return assertionConsumerServices[role].clone();
+  }
+
+  /**
+   * Finds the locations of the endpoints with a particular binding
+   *
+   * @param endpoints the endpoints to look through
+   * @param binding the binding to look for
+   * @return the locations, which is empty if none of the endpoints have the binding
+   */
+  public static String[] getLocations(Endpoint[] endpoints, String binding) {
+    ArrayList<String> locations = new ArrayList<String>();
+    for (Endpoint endpoint : endpoints) {
+      if (binding.equals(endpoint.getBinding())) {
+        locations.add(endpoint.getLocation());
+      }
+    }
+    return locations.toArray(new String[locations.size()]);
+  }
+
+  /** @return the shibmd:Scopes from the IdP and AA roles */
+  public String[] getScopes() {
+    return scopes.clone();
+  }
+
+  /** @return the keys and KeyNames embedded in the metadata */
+  public EntityKeyIndex getKeyIndex() {
+    return keyIndex;
+  }
+
+  /** @return the size in bytes of the descriptor serialised as XML and compressed */
+  public int getXMLSize() {
+    return xml.length;
+  }
+
+  /**
+   * Returns the descriptor, parsing it from the XML if it's not in memory
+   *
+   * @return the descriptor
+   * @throws GuanxiException if the XML can't be parsed
+   */
+  public EntityDescriptorType getEntityDescriptor() throws GuanxiException {
+    SoftReference<EntityDescriptorType> ref = descriptor;
+    EntityDescriptorType saml2Metadata = (ref != null) ? ref.get() : null;
+    if (saml2Metadata == null) {
+      try {
+        saml2Metadata = EntityDescriptorType.Factory.parse(new InflaterInputStream(new ByteArrayInputStream(xml)));
+      }
+      catch(XmlException xe) {
+        throw new GuanxiException(xe);
+      }
+      catch(IOException ioe) {
+        throw new GuanxiException(ioe);
+      }
+      descriptor = new SoftReference<EntityDescriptorType>(saml2Metadata);
+    }
+    return saml2Metadata;
+  }
+
+  /**
+   * Copies the binding and location of some endpoints
+   *
+   * @param endpointTypes the endpoints from the metadata
+   * @return the copies
+   */
+  private Endpoint[] copyEndpoints(EndpointType[] endpointTypes) {
+    Endpoint[] endpoints = new Endpoint[endpointTypes.length];
+    for (int c=0; c < endpointTypes.length; c++) {
+      endpoints[c] = new Endpoint(endpointTypes[c].getBinding(), endpointTypes[c].getLocation());
+    }
+    return endpoints;
+  }
+
+  /**
+   * Collects the shibmd:Scopes from the Extensions of some roles
+   *
+   * @param roleDescriptors the roles
+   * @param roleScopes where to put the scopes
+   */
+  private void addScopes(RoleDescriptorType[] roleDescriptors, LinkedHashSet<String> roleScopes) {
+    for (RoleDescriptorType roleDescriptor : roleDescriptors) {
+      if (roleDescriptor.getExtensions() == null) {
+        continue;
+      }
+      NodeList nodes = roleDescriptor.getExtensions().getDomNode().getChildNodes();
+      for (int c=0; c < nodes.getLength(); c++) {
+        Node node = nodes.item(c);
+        if ((SHIBMD_NS.equals(node.getNamespaceURI())) && ("Scope".equals(node.getLocalName()))) {
+          // XMLBeans DOM nodes don't do getTextContent
+          StringBuilder scope = new StringBuilder();
+          NodeList text = node.getChildNodes();
+          for (int t=0; t < text.getLength(); t++) {
+            if (text.item(t).getNodeValue() != null) {
+              scope.append(text.item(t).getNodeValue());
+            }
+          }
+          roleScopes.add(scope.toString().trim());
+        }
+      }
+    }
+  }
+
+  /**
+   * The binding and location of a role's endpoint
+   */
+  public static final class Endpoint {
+    /** The endpoint's binding */
+    private final String binding;
+    /** The endpoint's URL */
+    private final String location;
+
+    Endpoint(String binding, String location) {
+      this.binding = binding;
+      this.location = location;
+    }
+
+    /** @return the endpoint's binding */
+    public String getBinding() {
+      return binding;
+    }
+
+    /** @return the endpoint's URL */
+    public String getLocation() {
+      return location;
+    }
+  }
+}
@@ -16,67 +16,115 @@
 
 package org.guanxi.common.metadata.impl;
 
+import org.guanxi.common.GuanxiException;
 import org.guanxi.common.metadata.IdPMetadata;
 import org.guanxi.common.metadata.SPMetadata;
 import org.guanxi.common.definitions.Shibboleth;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.trust.EntityKeyIndex;
 import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
-import org.guanxi.xal.saml_2_0.metadata.EndpointType;
-
-import java.util.ArrayList;
+import org.apache.log4j.Logger;
 
+/**
+ * Metadata backed by an entity's SAML2 EntityDescriptor. Only a CompactEntityDescriptor
+ * is kept, and the full EntityDescriptorType is only parsed again if someone asks for
+ * the private data.
+ */
 public class GuanxiSAML2MetadataImpl implements IdPMetadata, SPMetadata {
-  /** The SAML2 metadata backing this object */
-  private EntityDescriptorType saml2Metadata = null;
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(GuanxiSAML2MetadataImpl.class.getName());
+
+  /** The parts of the SAML2 metadata backing this object that are used */
+  private CompactEntityDescriptor descriptor = null;
   /** The hostname the metadata is associated with */
   private String hostName = null;
 
   /** @see org.guanxi.common.metadata.Metadata#getEntityID()  */
   public String getEntityID() {
-    return saml2Metadata.getEntityID();
+    return (descriptor != null) ? descriptor.getEntityID() : null;
   }
 
   /** @see org.guanxi.common.metadata.IdPMetadata#getAttributeAuthorityURL() */
   public String getAttributeAuthorityURL() {
-    for (EndpointType currentEndpoint : saml2Metadata.getAttributeAuthorityDescriptorArray()[0].getAttributeServiceArray()) {
-      if (currentEndpoint.getBinding().equals(Shibboleth.BROWSER_POST_BINDING)) {
-        return currentEndpoint.getLocation();
-      }
+    CompactEntityDescriptor.Endpoint[] attributeServices = descriptor.getAttributeServices(0);
+    String[] urls = CompactEntityDescriptor.getLocations(attributeServices, Shibboleth.BROWSER_POST_BINDING);
+    if (urls.length > 0) {
+      return urls[0];
     }
 
     // this is currently left here because this is the old code and is the best
     // guess when no URL with the correct binding has been found
-    return saml2Metadata.getAttributeAuthorityDescriptorArray()[0].getAttributeServiceArray()[0].getLocation();
+    return attributeServices[0].getLocation();
   }
 
   /** @see org.guanxi.common.metadata.SPMetadata#getAssertionConsumerServiceURLs() */
   public String[] getAssertionConsumerServiceURLs() {
-    ArrayList<String> urls = new ArrayList<String>();
-    
-    for (EndpointType currentEndpoint : saml2Metadata.getSPSSODescriptorArray()[0].getAssertionConsumerServiceArray()) {
-      if (currentEndpoint.getBinding().equals(Shibboleth.BROWSER_POST_BINDING)) {
-        urls.add(currentEndpoint.getLocation());
-      }
-    }
+    String[] urls = CompactEntityDescriptor.getLocations(descriptor.getAssertionConsumerServices(0),
+                                                         Shibboleth.BROWSER_POST_BINDING);
 
     // this is currently left here because this is the old code and is the best
     // guess when no URL with the correct binding has been found
-    if (urls.size() == 0) {
-      urls.add(saml2Metadata.getAttributeAuthorityDescriptorArray()[0].getAttributeServiceArray()[0].getLocation());
+    if (urls.length == 0) {
+      urls = new String[] {descriptor.getAttributeServices(0)[0].getLocation()};
     }
 
-    return (String[])urls.toArray(new String[urls.size ()]);
+    return urls;
   }
 
-  /** @see org.guanxi.common.metadata.IdPMetadata#setPrivateData(Object)  */
+  /**
+   * Takes what's needed from the entity's SAML2 metadata, which must be an
+   * EntityDescriptorType. The metadata itself isn't kept. If what's needed can't be
+   * taken from it, the error is logged and the handler is left without metadata,
+   * with a null entityID, so whoever's loading the entities can skip it.
+   *
+   * @see org.guanxi.common.metadata.IdPMetadata#setPrivateData(Object)
+   */
   public void setPrivateData(Object privateData) {
-    this.saml2Metadata = (EntityDescriptorType)privateData;
+    try {
+      descriptor = new CompactEntityDescriptor((EntityDescriptorType)privateData, X509CertificateCache.getSharedCache());
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not load the metadata for " + ((EntityDescriptorType)privateData).getEntityID(), ge);
+      descriptor = null;
+    }
   }
 
-  /** @see org.guanxi.common.metadata.IdPMetadata#getPrivateData()  */
+  /**
+   * Returns the entity's full SAML2 metadata, parsing it again if it's not in memory.
+   * Use getDescriptor where possible.
+   *
+   * @see org.guanxi.common.metadata.IdPMetadata#getPrivateData()
+   */
   public Object getPrivateData() {
-    return saml2Metadata;
+    if (descriptor == null) {
+      return null;
+    }
+    try {
+      return descriptor.getEntityDescriptor();
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not parse the metadata for " + descriptor.getEntityID(), ge);
+      return null;
+    }
   }
 
+  /**
+   * Gets the parts of the entity's SAML2 metadata that Guanxi uses
+   *
+   * @return the compact descriptor or null if no metadata has been set
+   */
+  public CompactEntityDescriptor getDescriptor() {
+    return descriptor;
+  }
+
+  /**
+   * Gets the index of the keys embedded in the metadata
+   *
+   * @return the key index or null if no metadata has been set
+   */
+  public EntityKeyIndex getKeyIndex() {
+    return (descriptor != null) ? descriptor.getKeyIndex() : null;
+  }
   /** @see org.guanxi.common.metadata.Metadata#setHostName(String)  */
   public void setHostName(String hostName) {
     this.hostName = hostName;
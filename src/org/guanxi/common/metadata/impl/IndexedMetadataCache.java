@@ -0,0 +1,477 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.metadata.impl;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.security.JCAEngines;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.trust.TrustAnchors;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.apache.log4j.Logger;
+import org.apache.xmlbeans.XmlException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An offline copy of a metadata aggregate that can be read one entity at a time.
+ * Each EntityDescriptor is saved as a standalone XML fragment and the file starts
+ * with an index of where each entity's fragment is. Opening the cache maps the file
+ * and reads the index, and nothing else. An entity's fragment is only parsed when
+ * it's asked for, so falling back to the cache doesn't mean parsing the whole
+ * aggregate before any entity can be used.
+ *
+ * The trust anchors from the aggregate's KeyAuthority are kept too, so a trust engine
+ * can be loaded from the cache without parsing the aggregate. The aggregate's
+ * signature isn't kept, so the XML cache is still needed to check that.
+ *
+ * The file is laid out as:
+ *
+ *   int    MAGIC
+ *   int    VERSION
+ *   int    number of entities
+ *   for each entity:
+ *     int    length of the entityID in UTF-8
+ *     byte[] the entityID in UTF-8
+ *     int    offset of the entity's fragment from the start of the fragments
+ *     int    length of the entity's fragment
+ *   int    VerifyDepth of the KeyAuthority, or -1 if there's no KeyAuthority
+ *   int    number of KeyAuthority CAs, then the length and DER encoding of each
+ *   int    number of CRLs, then the length and DER encoding of each
+ *   int    number of intermediate CAs, then the length and DER encoding of each
+ *   the fragments
+ *
+ * The cache should be closed once it's no longer needed, so the file is unmapped
+ * and can be replaced.
+ *
+ * @author alistair
+ */
+public class IndexedMetadataCache {
+  /** Marks the start of a cache file, "GXMC" */
+  public static final int MAGIC = 0x47584d43;
+  /** The version of the layout */
+  public static final int VERSION = 2;
+
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(IndexedMetadataCache.class.getName());
+
+  /** The file the cache was read from */
+  private String filenameAndPath = null;
+  /** The file's contents, or null once the cache is closed */
+  private MappedByteBuffer buffer = null;
+  /** Where the fragments start in the file */
+  private int dataStart;
+  /** The offset and length of each entity's fragment, keyed on entityID */
+  private HashMap<String, int[]> index = null;
+  /** The VerifyDepth of the KeyAuthority, or -1 if there's no KeyAuthority */
+  private int verifyDepth;
+  /** The DER encoded KeyAuthority CAs */
+  private byte[][] caCerts = null;
+  /** The DER encoded CRLs */
+  private byte[][] crls = null;
+  /** The DER encoded intermediate CAs */
+  private byte[][] intermediateCerts = null;
+
+  /**
+   * Writes the entities in a metadata aggregate to a cache file. The file is written
+   * alongside and renamed into place so anyone reading the old file isn't affected.
+   * Where a file can't be replaced while it's mapped, which is the case on Windows,
+   * any cache opened on the old file must be closed first.
+   *
+   * @param entityDescriptors the entities from the aggregate
+   * @param trustAnchors the trust anchors from the aggregate's KeyAuthority, or null if it doesn't have one
+   * @param filenameAndPath The full path and name of the file to write
+   * @throws GuanxiException if an error occurs
+   */
+  public static void write(EntityDescriptorType[] entityDescriptors, TrustAnchors trustAnchors,
+                           String filenameAndPath) throws GuanxiException {
+    // Later entities with the same ID replace earlier ones, as they would in an EntityManager
+    LinkedHashMap<String, byte[]> fragments = new LinkedHashMap<String, byte[]>();
+    ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+    try {
+      for (EntityDescriptorType entityDescriptor : entityDescriptors) {
+        if (entityDescriptor.getEntityID() == null) {
+          continue;
+        }
+        /* Each fragment is saved on its own rather than cut out of the aggregate,
+         * as it needs the namespace declarations that are in scope from the aggregate.
+         */
+        fragment.reset();
+        entityDescriptor.save(fragment);
+        fragments.put(entityDescriptor.getEntityID(), fragment.toByteArray());
+      }
+
+      File file = new File(filenameAndPath);
+      File tmpFile = new File(filenameAndPath + ".tmp");
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fragments.size());
+        int offset = 0;
+        for (Map.Entry<String, byte[]> entry : fragments.entrySet()) {
+          byte[] entityID = entry.getKey().getBytes("UTF-8");
+          out.writeInt(entityID.length);
+          out.write(entityID);
+          out.writeInt(offset);
+          out.writeInt(entry.getValue().length);
+          offset += entry.getValue().length;
+        }
+        if (trustAnchors != null) {
+          out.writeInt(trustAnchors.getVerifyDepth());
+          X509Certificate[] anchors = trustAnchors.getCACerts();
+          out.writeInt(anchors.length);
+          for (X509Certificate caCert : anchors) {
+            writeBlob(out, caCert.getEncoded());
+          }
+          X509CRL[] anchorCRLs = trustAnchors.getCRLs();
+          out.writeInt(anchorCRLs.length);
+          for (X509CRL crl : anchorCRLs) {
+            writeBlob(out, crl.getEncoded());
+          }
+          X509Certificate[] intermediates = trustAnchors.getIntermediateCerts();
+          out.writeInt(intermediates.length);
+          for (X509Certificate intermediate : intermediates) {
+            writeBlob(out, intermediate.getEncoded());
+          }
+        }
+        else {
+          out.writeInt(-1);
+          out.writeInt(0);
+          out.writeInt(0);
+          out.writeInt(0);
+        }
+        for (byte[] bytes : fragments.values()) {
+          out.write(bytes);
+        }
+      }
+      finally {
+        out.close();
+      }
+
+      // Windows won't rename over an existing file
+      if ((!tmpFile.renameTo(file)) && ((!file.delete()) || (!tmpFile.renameTo(file)))) {
+        throw new GuanxiException("Could not rename " + tmpFile + " to " + file);
+      }
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+    catch(CertificateException ce) {
+      throw new GuanxiException(ce);
+    }
+    catch(CRLException crle) {
+      throw new GuanxiException(crle);
+    }
+  }
+
+  /**
+   * Writes the length of some bytes followed by the bytes
+   *
+   * @param out where to write them
+   * @param bytes the bytes
+   * @throws IOException if they can't be written
+   */
+  private static void writeBlob(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Opens a cache file, reading its index. Every entry in the index is checked
+   * against the size of the file, so a corrupt file is turned down here rather than
+   * when one of its entities is asked for.
+   *
+   * @param filenameAndPath The full path and name of the file
+   * @throws GuanxiException if the file can't be read or isn't a cache file
+   */
+  public IndexedMetadataCache(String filenameAndPath) throws GuanxiException {
+    this.filenameAndPath = filenameAndPath;
+
+    try {
+      RandomAccessFile file = new RandomAccessFile(filenameAndPath, "r");
+      try {
+        // The mapping stays valid once the file's closed
+        FileChannel channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      finally {
+        file.close();
+      }
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+
+    try {
+      if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+        throw new GuanxiException(filenameAndPath + " is not a version " + VERSION + " metadata cache");
+      }
+      int entities = checkCount(buffer.getInt());
+      index = new HashMap<String, int[]>(entities * 2);
+      for (int c=0; c < entities; c++) {
+        byte[] entityID = readBlob();
+        index.put(new String(entityID, "UTF-8"), new int[] {buffer.getInt(), buffer.getInt()});
+      }
+
+      verifyDepth = buffer.getInt();
+      caCerts = readBlobs();
+      crls = readBlobs();
+      intermediateCerts = readBlobs();
+      dataStart = buffer.position();
+
+      for (Map.Entry<String, int[]> entry : index.entrySet()) {
+        int[] location = entry.getValue();
+        if ((location[0] < 0) || (location[1] < 0) ||
+            ((long)dataStart + location[0] + location[1] > buffer.limit())) {
+          throw new GuanxiException(filenameAndPath + " is corrupt, " + entry.getKey() + " is outside the file");
+        }
+      }
+    }
+    catch(IOException ioe) {
+      close();
+      throw new GuanxiException(ioe);
+    }
+    catch(GuanxiException ge) {
+      close();
+      throw ge;
+    }
+    catch(RuntimeException re) {
+      // A truncated file runs off the end of the buffer
+      close();
+      throw new GuanxiException(re);
+    }
+  }
+
+  /**
+   * Reads a count of the things that follow, each of which takes at least four bytes
+   *
+   * @param count the count from the file
+   * @return the count
+   * @throws GuanxiException if the count can't be right
+   */
+  private int checkCount(int count) throws GuanxiException {
+    if ((count < 0) || (count > buffer.remaining() / 4)) {
+      throw new GuanxiException(filenameAndPath + " is corrupt, it can't have " + count + " entries");
+    }
+    return count;
+  }
+
+  /**
+   * Reads some bytes preceded by their length
+   *
+   * @return the bytes
+   * @throws GuanxiException if the length runs past the end of the file
+   */
+  private byte[] readBlob() throws GuanxiException {
+    int length = buffer.getInt();
+    if ((length < 0) || (length > buffer.remaining())) {
+      throw new GuanxiException(filenameAndPath + " is corrupt, it has " + length + " bytes past the end of the file");
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Reads a count followed by that many blobs
+   *
+   * @return the blobs
+   * @throws GuanxiException if they run past the end of the file
+   */
+  private byte[][] readBlobs() throws GuanxiException {
+    byte[][] blobs = new byte[checkCount(buffer.getInt())][];
+    for (int c=0; c < blobs.length; c++) {
+      blobs[c] = readBlob();
+    }
+    return blobs;
+  }
+
+  /** @return the file the cache was read from */
+  public String getFile() {
+    return filenameAndPath;
+  }
+
+  /** @return the IDs of the entities in the cache */
+  public Set<String> getEntityIDs() {
+    return index.keySet();
+  }
+
+  /**
+   * Determines whether the cache has an entity
+   *
+   * @param entityID the entity
+   * @return true if the entity is in the cache, otherwise false
+   */
+  public boolean contains(String entityID) {
+    return index.containsKey(entityID);
+  }
+
+  /**
+   * Parses an entity from the cache
+   *
+   * @param entityID the entity
+   * @return the entity's metadata or null if it's not in the cache
+   * @throws GuanxiException if the entity can't be parsed or the cache has been closed
+   */
+  public EntityDescriptorType getEntityDescriptor(String entityID) throws GuanxiException {
+    int[] location = index.get(entityID);
+    if (location == null) {
+      return null;
+    }
+
+    // Copy the fragment out so it's not read from the mapping once it's been closed
+    byte[] bytes = new byte[location[1]];
+    synchronized(this) {
+      if (buffer == null) {
+        throw new GuanxiException(filenameAndPath + " has been closed");
+      }
+      // Each caller gets its own view of the buffer so they don't move each other's position
+      ByteBuffer fragment = buffer.duplicate();
+      fragment.position(dataStart + location[0]);
+      fragment.get(bytes);
+    }
+
+    try {
+      return EntityDescriptorType.Factory.parse(new ByteArrayInputStream(bytes));
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Parses the trust anchors from the aggregate's KeyAuthority
+   *
+   * @param certCache the cache of certificates parsed from metadata
+   * @return the trust anchors or null if the aggregate doesn't have a KeyAuthority
+   * @throws GuanxiException if a certificate or CRL can't be parsed
+   */
+  public TrustAnchors getTrustAnchors(X509CertificateCache certCache) throws GuanxiException {
+    if (verifyDepth == -1) {
+      return null;
+    }
+
+    try {
+      X509Certificate[] anchors = new X509Certificate[caCerts.length];
+      for (int c=0; c < caCerts.length; c++) {
+        anchors[c] = certCache.getCertificate(caCerts[c]);
+      }
+      X509Certificate[] intermediates = new X509Certificate[intermediateCerts.length];
+      for (int c=0; c < intermediateCerts.length; c++) {
+        intermediates[c] = certCache.getCertificate(intermediateCerts[c]);
+      }
+      CertificateFactory crlFactory = JCAEngines.getCertificateFactory("X.509");
+      X509CRL[] anchorCRLs = new X509CRL[crls.length];
+      for (int c=0; c < crls.length; c++) {
+        anchorCRLs[c] = (X509CRL)crlFactory.generateCRL(new ByteArrayInputStream(crls[c]));
+      }
+      return new TrustAnchors(anchors, intermediates, anchorCRLs, verifyDepth);
+    }
+    catch(CertificateException ce) {
+      throw new GuanxiException(ce);
+    }
+    catch(CRLException crle) {
+      throw new GuanxiException(crle);
+    }
+  }
+
+  /**
+   * Determines whether the cache has been closed
+   *
+   * @return true if the cache has been closed, otherwise false
+   */
+  public synchronized boolean isClosed() {
+    return buffer == null;
+  }
+
+  /**
+   * Closes the cache and unmaps the file, so it can be replaced. Entities can't be
+   * parsed from the cache once it's closed. Closing it again does nothing.
+   */
+  public void close() {
+    MappedByteBuffer mapping;
+    synchronized(this) {
+      mapping = buffer;
+      buffer = null;
+    }
+    if (mapping != null) {
+      unmap(mapping);
+    }
+  }
+
+  /**
+   * Unmaps a file straight away rather than waiting for the mapping to be garbage
+   * collected. There's no public API for this so it's done the only ways the JVM
+   * allows. If it can't be done, the mapping goes when it's garbage collected.
+   *
+   * @param mapping the mapping of the file, which mustn't be used again
+   */
+  private void unmap(MappedByteBuffer mapping) {
+    try {
+      // Java 9 and later
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), mapping);
+      return;
+    }
+    catch(NoSuchMethodException nsme) {
+      // Java 8 and earlier, where the mapping has its own cleaner
+    }
+    catch(Exception e) {
+      logger.warn("Could not unmap " + filenameAndPath, e);
+      return;
+    }
+
+    try {
+      Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(mapping);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    }
+    catch(Exception e) {
+      logger.warn("Could not unmap " + filenameAndPath, e);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.security;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+/**
+ * The SHA-1 and SHA-256 fingerprints of a DER encoded certificate or public key.
+ * The digests are worked out once and held as primitives so comparing and hashing
+ * fingerprints doesn't allocate anything, which makes them cheap map and index keys.
+ * Two fingerprints are equal if both their digests are equal.
+ *
+ * @author alistair
+ */
+public final class CertFingerprint {
+  /** Bytes 0-7, 8-15 and 16-19 of the SHA-1 digest */
+  private final long sha1a, sha1b;
+  private final int sha1c;
+  /** Bytes 0-7, 8-15, 16-23 and 24-31 of the SHA-256 digest */
+  private final long sha256a, sha256b, sha256c, sha256d;
+
+  /**
+   * Works out the fingerprints of some DER encoded bytes
+   *
+   * @param derBytes DER encoded certificate or public key
+   */
+  public CertFingerprint(byte[] derBytes) {
+    byte[] sha1 = getDigest("SHA-1").digest(derBytes);
+    byte[] sha256 = getDigest("SHA-256").digest(derBytes);
+
+    sha1a = toLong(sha1, 0);
+    sha1b = toLong(sha1, 8);
+    sha1c = (int)(toLong(sha1, 12));
+    sha256a = toLong(sha256, 0);
+    sha256b = toLong(sha256, 8);
+    sha256c = toLong(sha256, 16);
+    sha256d = toLong(sha256, 24);
+  }
+
+  /**
+   * Works out the fingerprints of a certificate
+   *
+   * @param x509 the certificate
+   * @return the certificate's fingerprints
+   * @throws CertificateEncodingException if the certificate can't be encoded
+   */
+  public static CertFingerprint of(X509Certificate x509) throws CertificateEncodingException {
+    return new CertFingerprint(x509.getEncoded());
+  }
+
+  /**
+   * Works out the fingerprints of a public key's SubjectPublicKeyInfo encoding
+   *
+   * @param publicKey the key
+   * @return the key's fingerprints
+   */
+  public static CertFingerprint of(PublicKey publicKey) {
+    return new CertFingerprint(publicKey.getEncoded());
+  }
+
+  /** @return the SHA-1 digest */
+  public byte[] getSHA1() {
+    byte[] sha1 = new byte[20];
+    fromLong(sha1a, sha1, 0);
+    fromLong(sha1b, sha1, 8);
+    for (int c=0; c < 4; c++) {
+      sha1[16 + c] = (byte)(sha1c >>> (24 - (c * 8)));
+    }
+    return sha1;
+  }
+
+  /** @return the SHA-256 digest */
+  public byte[] getSHA256() {
+    byte[] sha256 = new byte[32];
+    fromLong(sha256a, sha256, 0);
+    fromLong(sha256b, sha256, 8);
+    fromLong(sha256c, sha256, 16);
+    fromLong(sha256d, sha256, 24);
+    return sha256;
+  }
+
+  public int hashCode() {
+    // The digest is already as well mixed as it gets
+    return (int)(sha256a ^ (sha256a >>> 32));
+  }
+
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof CertFingerprint)) {
+      return false;
+    }
+    CertFingerprint other = (CertFingerprint)obj;
+    return (sha256a == other.sha256a) && (sha256b == other.sha256b) &&
+           (sha256c == other.sha256c) && (sha256d == other.sha256d) &&
+           (sha1a == other.sha1a) && (sha1b == other.sha1b) && (sha1c == other.sha1c);
+  }
+
+  /**
+   * Returns the SHA-1 fingerprint in the usual colon separated hex form
+   *
+   * @return e.g. 0A:1B:...
+   */
+  public String toString() {
+    byte[] sha1 = getSHA1();
+    StringBuilder out = new StringBuilder(sha1.length * 3);
+    for (int c=0; c < sha1.length; c++) {
+      if (c > 0) {
+        out.append(':');
+      }
+      out.append(Character.toUpperCase(Character.forDigit((sha1[c] >> 4) & 0x0F, 16)));
+      out.append(Character.toUpperCase(Character.forDigit(sha1[c] & 0x0F, 16)));
+    }
+    return out.toString();
+  }
+
+  /**
+   * Gets the calling thread's digester for an algorithm
+   *
+   * @param algorithm the digest algorithm
+   * @return the digester
+   */
+  private static MessageDigest getDigest(String algorithm) {
+    try {
+      return JCAEngines.getMessageDigest(algorithm);
+    }
+    catch(NoSuchAlgorithmException nsae) {
+      // Every JRE has to support SHA-1 and SHA-256
+      throw new IllegalStateException(nsae);
+    }
+  }
+
+  /**
+   * Reads 8 big endian bytes as a long
+   *
+   * @param bytes the bytes
+   * @param offset where to start reading
+   * @return the long
+   */
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int c=0; c < 8; c++) {
+      value = (value << 8) | (bytes[offset + c] & 0xFF);
+    }
+    return value;
+  }
+
+  /**
+   * Writes a long as 8 big endian bytes
+   *
+   * @param value the long
+   * @param bytes where to write it
+   * @param offset where to start writing
+   */
+  private static void fromLong(long value, byte[] bytes, int offset) {
+    for (int c=0; c < 8; c++) {
+      bytes[offset + c] = (byte)(value >>> (56 - (c * 8)));
+    }
+  }
+}
@@ -0,0 +1,175 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.security;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing hash index from CertFingerprints to values, usually certificates.
+ * The keys and values live in flat arrays and collisions are handled by linear
+ * probing, so a lookup doesn't allocate and doesn't chase entry objects.
+ *
+ * An index isn't thread safe while it's being built. Build it in one thread and
+ * publish it safely, e.g. through a final or volatile field, and after that any
+ * number of threads can read it as long as nobody changes it.
+ *
+ * @author alistair
+ */
+public class FingerprintIndex<V> {
+  /** The smallest table we'll create */
+  private static final int MIN_CAPACITY = 8;
+
+  /** The fingerprints, with null for an empty slot */
+  private CertFingerprint[] keys = null;
+  /** The values, in the same slots as their fingerprints */
+  private Object[] values = null;
+  /** The number of entries */
+  private int size = 0;
+
+  /**
+   * Creates an empty index
+   */
+  public FingerprintIndex() {
+    this(MIN_CAPACITY / 2);
+  }
+
+  /**
+   * Creates an empty index with room for a number of entries before it grows
+   *
+   * @param expectedSize the number of entries expected
+   */
+  public FingerprintIndex(int expectedSize) {
+    // Keep the table at most half full so probe runs stay short
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    keys = new CertFingerprint[capacity];
+    values = new Object[capacity];
+  }
+
+  /**
+   * Creates an index with the same entries as another
+   *
+   * @param other the index to copy
+   */
+  public FingerprintIndex(FingerprintIndex<? extends V> other) {
+    keys = other.keys.clone();
+    values = other.values.clone();
+    size = other.size;
+  }
+
+  /**
+   * Adds an entry, replacing any existing value for the fingerprint
+   *
+   * @param fingerprint the key
+   * @param value the value
+   * @return the value that was replaced or null if there wasn't one
+   */
+  @SuppressWarnings("unchecked")
+  public V put(CertFingerprint fingerprint, V value) {
+    if ((size + 1) * 2 > keys.length) {
+      resize(keys.length * 2);
+    }
+
+    int slot = findSlot(keys, fingerprint);
+    V previous = (V)values[slot];
+    if (keys[slot] == null) {
+      keys[slot] = fingerprint;
+      size++;
+    }
+    values[slot] = value;
+    return previous;
+  }
+
+  /**
+   * Looks up a fingerprint
+   *
+   * @param fingerprint the key
+   * @return the value for the fingerprint or null if it's not in the index
+   */
+  @SuppressWarnings("unchecked")
+  public V get(CertFingerprint fingerprint) {
+    return (V)values[findSlot(keys, fingerprint)];
+  }
+
+  /**
+   * Determines whether a fingerprint is in the index
+   *
+   * @param fingerprint the key
+   * @return true if the fingerprint is in the index, otherwise false
+   */
+  public boolean containsKey(CertFingerprint fingerprint) {
+    return keys[findSlot(keys, fingerprint)] != null;
+  }
+
+  /**
+   * Lists the fingerprints in the index
+   *
+   * @return the fingerprints, in no particular order
+   */
+  public List<CertFingerprint> keys() {
+    ArrayList<CertFingerprint> fingerprints = new ArrayList<CertFingerprint>(size);
+    for (CertFingerprint fingerprint : keys) {
+      if (fingerprint != null) {
+        fingerprints.add(fingerprint);
+      }
+    }
+    return fingerprints;
+  }
+
+  /** @return the number of entries in the index */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds the slot holding a fingerprint or the empty slot where it would go
+   *
+   * @param table the fingerprints
+   * @param fingerprint the key
+   * @return the slot
+   */
+  private static int findSlot(CertFingerprint[] table, CertFingerprint fingerprint) {
+    int mask = table.length - 1;
+    int slot = fingerprint.hashCode() & mask;
+    while ((table[slot] != null) && (!table[slot].equals(fingerprint))) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Moves the entries into bigger tables
+   *
+   * @param capacity the new table size, which must be a power of two
+   */
+  private void resize(int capacity) {
+    CertFingerprint[] newKeys = new CertFingerprint[capacity];
+    Object[] newValues = new Object[capacity];
+    for (int c=0; c < keys.length; c++) {
+      if (keys[c] != null) {
+        int slot = findSlot(newKeys, keys[c]);
+        newKeys[slot] = keys[c];
+        newValues[slot] = values[c];
+      }
+    }
+    keys = newKeys;
+    values = newValues;
+  }
+}
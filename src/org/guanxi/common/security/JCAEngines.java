@@ -0,0 +1,227 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.security;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per thread pool of JCA engine objects. Getting an engine from the JCA means looking up
+ * the provider and the algorithm every time, so the engines that hold no state between
+ * uses are kept for each thread and handed back to it the next time it asks for the same
+ * algorithm from the same provider. MessageDigests are reset before they're handed out.
+ *
+ * Engines that carry state from when they were created, such as a CertStore's certificates
+ * or a KeyStore's entries, aren't pooled. Nor should an engine from here be kept once
+ * the caller has finished with it, as the next caller on the same thread will get it too.
+ *
+ * Pooling can be turned off, in which case every call goes straight to getInstance.
+ *
+ * The engines can come from a provider in the web application, e.g. BC, and pooled ones
+ * would keep the application's classloader alive after it's been stopped. Call clear
+ * when the application stops, e.g. from a ServletContextListener's contextDestroyed,
+ * to let go of every thread's engines.
+ *
+ * @author alistair
+ */
+public class JCAEngines {
+  /**
+   * Each thread's engines, keyed on engine class, algorithm and provider. The thread
+   * only holds JDK classes, so once clear has emptied its reference nothing of ours
+   * is left in the thread.
+   */
+  private static final ThreadLocal<AtomicReference<HashMap<String, Object>>> engines =
+    new ThreadLocal<AtomicReference<HashMap<String, Object>>>();
+  /** Every thread's reference to its engines, held weakly, so clear can empty them */
+  private static final Set<AtomicReference<HashMap<String, Object>>> allEngines =
+    Collections.newSetFromMap(new WeakHashMap<AtomicReference<HashMap<String, Object>>, Boolean>());
+
+  /** Whether engines are pooled */
+  private static volatile boolean enabled = true;
+
+  private JCAEngines() {
+  }
+
+  /**
+   * Turns pooling on or off
+   *
+   * @param enabled true to pool engines, false to get a new one every time
+   */
+  public static void setEnabled(boolean enabled) {
+    JCAEngines.enabled = enabled;
+  }
+
+  /** @return true if engines are pooled, otherwise false */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Lets go of the engines pooled for every thread. Threads that ask for an engine
+   * afterwards start a new pool.
+   */
+  public static void clear() {
+    engines.remove();
+    synchronized(allEngines) {
+      for (AtomicReference<HashMap<String, Object>> threadEngines : allEngines) {
+        threadEngines.set(null);
+      }
+    }
+  }
+
+  /**
+   * Gets the calling thread's engines, starting a new pool if it doesn't have one
+   *
+   * @return the thread's engines
+   */
+  private static HashMap<String, Object> getEngines() {
+    AtomicReference<HashMap<String, Object>> threadEngines = engines.get();
+    if (threadEngines == null) {
+      threadEngines = new AtomicReference<HashMap<String, Object>>();
+      engines.set(threadEngines);
+      synchronized(allEngines) {
+        allEngines.add(threadEngines);
+      }
+    }
+
+    HashMap<String, Object> pool = threadEngines.get();
+    if (pool == null) {
+      pool = new HashMap<String, Object>();
+      threadEngines.set(pool);
+    }
+    return pool;
+  }
+
+  /**
+   * Gets a CertificateFactory from the default providers
+   *
+   * @param type the certificate type, e.g. X.509
+   * @return the calling thread's CertificateFactory
+   * @throws CertificateException if no provider supports the type
+   */
+  public static CertificateFactory getCertificateFactory(String type) throws CertificateException {
+    if (!enabled) {
+      return CertificateFactory.getInstance(type);
+    }
+
+    String key = key("CertificateFactory", type, null);
+    HashMap<String, Object> pool = getEngines();
+    CertificateFactory factory = (CertificateFactory)pool.get(key);
+    if (factory == null) {
+      factory = CertificateFactory.getInstance(type);
+      pool.put(key, factory);
+    }
+    return factory;
+  }
+
+  /**
+   * Gets a CertificateFactory from a particular provider
+   *
+   * @param type the certificate type, e.g. X.509
+   * @param provider the provider, e.g. BC
+   * @return the calling thread's CertificateFactory
+   * @throws CertificateException if the provider doesn't support the type
+   * @throws NoSuchProviderException if the provider isn't installed
+   */
+  public static CertificateFactory getCertificateFactory(String type, String provider) throws CertificateException,
+                                                                                              NoSuchProviderException {
+    if (!enabled) {
+      return CertificateFactory.getInstance(type, provider);
+    }
+
+    String key = key("CertificateFactory", type, provider);
+    HashMap<String, Object> pool = getEngines();
+    CertificateFactory factory = (CertificateFactory)pool.get(key);
+    if (factory == null) {
+      factory = CertificateFactory.getInstance(type, provider);
+      pool.put(key, factory);
+    }
+    return factory;
+  }
+
+  /**
+   * Gets a CertPathValidator from a particular provider
+   *
+   * @param algorithm the validation algorithm, e.g. PKIX
+   * @param provider the provider, e.g. BC
+   * @return the calling thread's CertPathValidator
+   * @throws NoSuchAlgorithmException if the provider doesn't support the algorithm
+   * @throws NoSuchProviderException if the provider isn't installed
+   */
+  public static CertPathValidator getCertPathValidator(String algorithm, String provider) throws NoSuchAlgorithmException,
+                                                                                                 NoSuchProviderException {
+    if (!enabled) {
+      return CertPathValidator.getInstance(algorithm, provider);
+    }
+
+    String key = key("CertPathValidator", algorithm, provider);
+    HashMap<String, Object> pool = getEngines();
+    CertPathValidator validator = (CertPathValidator)pool.get(key);
+    if (validator == null) {
+      validator = CertPathValidator.getInstance(algorithm, provider);
+      pool.put(key, validator);
+    }
+    return validator;
+  }
+
+  /**
+   * Gets a MessageDigest from the default providers, ready to use
+   *
+   * @param algorithm the digest algorithm, e.g. SHA-256
+   * @return the calling thread's MessageDigest
+   * @throws NoSuchAlgorithmException if no provider supports the algorithm
+   */
+  public static MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+    if (!enabled) {
+      return MessageDigest.getInstance(algorithm);
+    }
+
+    String key = key("MessageDigest", algorithm, null);
+    HashMap<String, Object> pool = getEngines();
+    MessageDigest md = (MessageDigest)pool.get(key);
+    if (md == null) {
+      md = MessageDigest.getInstance(algorithm);
+      pool.put(key, md);
+    }
+    else {
+      // The last user may not have finished with it
+      md.reset();
+    }
+    return md;
+  }
+
+  /**
+   * Works out the key for an engine in a thread's pool
+   *
+   * @param engine the engine class
+   * @param algorithm the algorithm or type
+   * @param provider the provider or null for the default providers
+   * @return the key
+   */
+  private static String key(String engine, String algorithm, String provider) {
+    return engine + ':' + algorithm + ':' + provider;
+  }
+}
@@ -124,7 +124,7 @@ public class SecUtils {
   public String encrypt(String data) {
     try {
       char[] hexChars ={'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      MessageDigest md5 = JCAEngines.getMessageDigest("MD5");
       md5.reset();
       md5.update(data.getBytes());
       byte[] hashBytes = md5.digest();
@@ -0,0 +1,176 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.security;
+
+import java.io.ByteArrayInputStream;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe cache of X509 certificates parsed from DER encoded bytes,
+ * such as those found in metadata X509Data blocks. Certificates are keyed on the
+ * fingerprint of their DER encoding so the same bytes are only ever parsed once
+ * while they're in the cache. When the cache is full the oldest entries are dropped.
+ *
+ * @author alistair
+ */
+public class X509CertificateCache {
+  /** The default maximum number of certificates to hold */
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  /** Cache for callers that don't have one of their own, e.g. a trust engine's */
+  private static final X509CertificateCache sharedCache = new X509CertificateCache(DEFAULT_MAX_ENTRIES);
+
+  /** The maximum number of certificates to hold */
+  private int maxEntries;
+  /** The parsed certificates, keyed on the fingerprint of their DER encoding */
+  private ConcurrentHashMap<CertFingerprint, X509Certificate> certs = null;
+  /** The order in which certificates were added, for eviction */
+  private ConcurrentLinkedQueue<CertFingerprint> insertionOrder = null;
+  /** How many lookups were answered from the cache */
+  private AtomicLong hits = new AtomicLong();
+  /** How many lookups had to parse the certificate */
+  private AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache with the default size
+   */
+  public X509CertificateCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Creates a cache of a particular size
+   *
+   * @param maxEntries the maximum number of certificates to hold
+   */
+  public X509CertificateCache(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    this.maxEntries = maxEntries;
+    certs = new ConcurrentHashMap<CertFingerprint, X509Certificate>();
+    insertionOrder = new ConcurrentLinkedQueue<CertFingerprint>();
+  }
+
+  /**
+   * Gets hold of the cache that's shared by callers that don't have their own.
+   * When an EntityManager's metadata is reloaded it evicts the certificates that
+   * only the old metadata had.
+   *
+   * @return the shared cache
+   */
+  public static X509CertificateCache getSharedCache() {
+    return sharedCache;
+  }
+
+  /**
+   * Returns the X509 certificate for the DER encoded bytes, only parsing them
+   * if they're not already in the cache.
+   *
+   * @param derBytes DER encoded X509 certificate
+   * @return X509Certificate represented by the bytes
+   * @throws CertificateException if the bytes can't be parsed as an X509 certificate
+   */
+  public X509Certificate getCertificate(byte[] derBytes) throws CertificateException {
+    CertFingerprint key = new CertFingerprint(derBytes);
+
+    X509Certificate x509 = certs.get(key);
+    if (x509 != null) {
+      hits.incrementAndGet();
+      return x509;
+    }
+
+    misses.incrementAndGet();
+    CertificateFactory certFactory = JCAEngines.getCertificateFactory("X.509");
+    x509 = (X509Certificate)certFactory.generateCertificate(new ByteArrayInputStream(derBytes));
+
+    // Another thread may have beaten us to it, in which case use theirs
+    X509Certificate existing = certs.putIfAbsent(key, x509);
+    if (existing != null) {
+      return existing;
+    }
+
+    insertionOrder.add(key);
+    while (certs.size() > maxEntries) {
+      CertFingerprint oldest = insertionOrder.poll();
+      if (oldest == null) {
+        break;
+      }
+      certs.remove(oldest);
+    }
+
+    return x509;
+  }
+
+  /**
+   * Returns the public key from the X509 certificate represented by the DER encoded bytes
+   *
+   * @param derBytes DER encoded X509 certificate
+   * @return PublicKey from the certificate
+   * @throws CertificateException if the bytes can't be parsed as an X509 certificate
+   */
+  public PublicKey getPublicKey(byte[] derBytes) throws CertificateException {
+    return getCertificate(derBytes).getPublicKey();
+  }
+
+  /**
+   * Removes some certificates from the cache, e.g. those from metadata that's been
+   * replaced. Certificates that aren't in the cache are ignored.
+   *
+   * @param fingerprints the fingerprints of the certificates' DER encodings
+   */
+  public void evict(Collection<CertFingerprint> fingerprints) {
+    if (fingerprints.isEmpty()) {
+      return;
+    }
+
+    HashSet<CertFingerprint> evicted = new HashSet<CertFingerprint>();
+    for (CertFingerprint fingerprint : fingerprints) {
+      if (certs.remove(fingerprint) != null) {
+        evicted.add(fingerprint);
+      }
+    }
+    if (!evicted.isEmpty()) {
+      insertionOrder.removeAll(evicted);
+    }
+  }
+
+  /**
+   * Removes all certificates from the cache. The hit and miss counters are not reset.
+   */
+  public void invalidate() {
+    certs.clear();
+    insertionOrder.clear();
+  }
+
+  /** @return the number of lookups answered from the cache */
+  public long getHits() { return hits.get(); }
+  /** @return the number of lookups that had to parse the certificate */
+  public long getMisses() { return misses.get(); }
+  /** @return the number of certificates in the cache */
+  public int size() { return certs.size(); }
+  /** @return the maximum number of certificates the cache will hold */
+  public int getMaxEntries() { return maxEntries; }
+}
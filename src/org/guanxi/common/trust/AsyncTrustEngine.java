@@ -0,0 +1,62 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+package org.guanxi.common.trust;
+
+import org.guanxi.common.metadata.Metadata;
+
+import java.util.concurrent.Future;
+
+/**
+ * A TrustEngine that can make its decisions in the background, so the calling
+ * thread can get on with something else, e.g. other I/O, in the meantime.
+ *
+ * @author alistair
+ */
+public interface AsyncTrustEngine {
+  /**
+   * Starts deciding whether an entity is to be trusted, as
+   * TrustEngine.trustEntity does, and returns straight away.
+   *
+   * @param entityMetadata the Metadata for the entity
+   * @param entityData entity specific data, such as a SAML AuthenticationStatement
+   * @return the decision, which can be cancelled if it hasn't finished
+   */
+  public Future<TrustResult> trustEntityAsync(Metadata entityMetadata, Object entityData);
+
+  /**
+   * Starts deciding whether an entity is to be trusted and tells a callback
+   * when the decision has been made.
+   *
+   * @param entityMetadata the Metadata for the entity
+   * @param entityData entity specific data, such as a SAML AuthenticationStatement
+   * @param callback told about the decision, on the thread that made it. Can be null
+   * @return the decision, which can be cancelled if it hasn't finished
+   */
+  public Future<TrustResult> trustEntityAsync(Metadata entityMetadata, Object entityData, TrustCallback callback);
+
+  /**
+   * Told about decisions made in the background
+   */
+  public interface TrustCallback {
+    /**
+     * Called when a decision has been made
+     *
+     * @param entityMetadata the Metadata for the entity
+     * @param result the decision
+     */
+    public void trustDecided(Metadata entityMetadata, TrustResult result);
+  }
+}
@@ -0,0 +1,348 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.security.FingerprintIndex;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.IOException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * Copy-on-write store of CA certificates used as trust anchors. The CAs are indexed
+ * by normalised subject DN, by Subject Key Identifier and by fingerprint. Readers work with an
+ * immutable snapshot of the store so lookups don't need any locking. Changes build
+ * a new snapshot and replace the old one in one go. The index keys of a CA are only
+ * worked out once, when it's first added, and are carried over to later snapshots.
+ *
+ * @author alistair
+ */
+public class CAStore {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(CAStore.class.getName());
+
+  /** OID of the Subject Key Identifier extension */
+  private static final String SUBJECT_KEY_IDENTIFIER_OID = "2.5.29.14";
+  /** OID of the Authority Key Identifier extension */
+  private static final String AUTHORITY_KEY_IDENTIFIER_OID = "2.5.29.35";
+
+  /** The current snapshot of the CAs */
+  private volatile Snapshot snapshot = null;
+
+  /**
+   * Creates an empty CA store
+   */
+  public CAStore() {
+    snapshot = new Snapshot(new IndexedCA[0]);
+  }
+
+  /**
+   * Creates a CA store holding some CAs
+   *
+   * @param caCerts the CAs to put in the store
+   */
+  public CAStore(Collection<X509Certificate> caCerts) {
+    snapshot = new Snapshot(index(caCerts.toArray(new X509Certificate[caCerts.size()]), null));
+  }
+
+  /**
+   * Adds a CA to the store. The new snapshot is built on the current one, so only
+   * the new CA's index keys are worked out.
+   *
+   * @param caCert the CA to add
+   */
+  public synchronized void add(X509Certificate caCert) {
+    snapshot = new Snapshot(snapshot, new IndexedCA(caCert));
+  }
+
+  /**
+   * Replaces all the CAs in the store in one go. Readers see either the old
+   * CAs or the new ones, never a mixture. The index keys of CAs that are
+   * already in the store aren't worked out again.
+   *
+   * @param caCerts the new CAs
+   */
+  public synchronized void setAll(X509Certificate[] caCerts) {
+    snapshot = new Snapshot(index(caCerts, snapshot));
+  }
+
+  /**
+   * Removes all the CAs from the store
+   */
+  public synchronized void clear() {
+    snapshot = new Snapshot(new IndexedCA[0]);
+  }
+
+  /**
+   * Returns all the CAs in the store
+   *
+   * @return copy of the CAs in the store
+   */
+  public X509Certificate[] getAll() {
+    IndexedCA[] cas = snapshot.cas;
+    X509Certificate[] caCerts = new X509Certificate[cas.length];
+    for (int c=0; c < cas.length; c++) {
+      caCerts[c] = cas[c].caCert;
+    }
+    return caCerts;
+  }
+
+  /**
+   * Returns the number of CAs in the store
+   *
+   * @return number of CAs in the store
+   */
+  public int size() {
+    return snapshot.cas.length;
+  }
+
+  /**
+   * Determines whether a CA is in the store
+   *
+   * @param fingerprint the fingerprint of the CA's certificate
+   * @return true if the CA is in the store, otherwise false
+   */
+  public boolean contains(CertFingerprint fingerprint) {
+    return snapshot.byFingerprint.containsKey(fingerprint);
+  }
+
+  /**
+   * Returns the fingerprint the store worked out for one of its CAs, so callers
+   * don't have to work it out again
+   *
+   * @param caCert a CA from the store, e.g. one of the issuer candidates
+   * @return the fingerprint, or null if the CA isn't in the store or couldn't be fingerprinted
+   */
+  public CertFingerprint getFingerprint(X509Certificate caCert) {
+    IndexedCA ca = snapshot.byCert.get(caCert);
+    return (ca != null) ? ca.fingerprint : null;
+  }
+
+  /**
+   * Finds the CAs that could have issued a certificate. These are all the CAs
+   * whose subject is the certificate's issuer. If the certificate has an
+   * Authority Key Identifier, the CAs with that Subject Key Identifier are
+   * put first.
+   *
+   * @param x509 the certificate whose issuer we're looking for
+   * @return the possible issuers, which may be empty
+   */
+  public List<X509Certificate> getIssuerCandidates(X509Certificate x509) {
+    Snapshot current = snapshot;
+
+    List<X509Certificate> bySubject = current.bySubject.get(normalise(x509.getIssuerX500Principal()));
+    if (bySubject == null) {
+      return Collections.emptyList();
+    }
+
+    if (bySubject.size() > 1) {
+      String authorityKeyId = getAuthorityKeyIdentifier(x509);
+      List<X509Certificate> byKeyId = (authorityKeyId != null) ? current.byKeyId.get(authorityKeyId) : null;
+      if (byKeyId != null) {
+        ArrayList<X509Certificate> candidates = new ArrayList<X509Certificate>(bySubject.size());
+        candidates.addAll(byKeyId);
+        for (X509Certificate caCert : bySubject) {
+          if (!byKeyId.contains(caCert)) {
+            candidates.add(caCert);
+          }
+        }
+        return candidates;
+      }
+    }
+
+    return bySubject;
+  }
+
+  /**
+   * Works out the index keys of some CAs, taking them from a snapshot where the
+   * CA is already in it
+   *
+   * @param caCerts the CAs
+   * @param previous the snapshot to take index keys from, or null
+   * @return the indexed CAs
+   */
+  private static IndexedCA[] index(X509Certificate[] caCerts, Snapshot previous) {
+    IndexedCA[] cas = new IndexedCA[caCerts.length];
+    for (int c=0; c < caCerts.length; c++) {
+      IndexedCA ca = (previous != null) ? previous.byCert.get(caCerts[c]) : null;
+      cas[c] = (ca != null) ? ca : new IndexedCA(caCerts[c]);
+    }
+    return cas;
+  }
+
+  /**
+   * Normalises a DN so that equivalent DNs compare equal
+   *
+   * @param dn the DN to normalise
+   * @return the canonical form of the DN
+   */
+  private static String normalise(X500Principal dn) {
+    return dn.getName(X500Principal.CANONICAL);
+  }
+
+  /**
+   * Gets the Subject Key Identifier of a certificate
+   *
+   * @param x509 the certificate
+   * @return hex Subject Key Identifier or null if the certificate doesn't have one
+   */
+  private static String getSubjectKeyIdentifier(X509Certificate x509) {
+    byte[] extension = x509.getExtensionValue(SUBJECT_KEY_IDENTIFIER_OID);
+    if (extension == null) {
+      return null;
+    }
+
+    try {
+      return TrustUtils.byteArrayToHexString(SubjectKeyIdentifier.getInstance(X509ExtensionUtil.fromExtensionValue(extension)).getKeyIdentifier());
+    }
+    catch(IOException ioe) {
+      logger.warn("Could not decode Subject Key Identifier of " + x509.getSubjectX500Principal().getName(), ioe);
+      return null;
+    }
+  }
+
+  /**
+   * Gets the key identifier from the Authority Key Identifier of a certificate
+   *
+   * @param x509 the certificate
+   * @return hex key identifier or null if the certificate doesn't have one
+   */
+  private static String getAuthorityKeyIdentifier(X509Certificate x509) {
+    byte[] extension = x509.getExtensionValue(AUTHORITY_KEY_IDENTIFIER_OID);
+    if (extension == null) {
+      return null;
+    }
+
+    try {
+      return TrustUtils.byteArrayToHexString(AuthorityKeyIdentifier.getInstance(X509ExtensionUtil.fromExtensionValue(extension)).getKeyIdentifier());
+    }
+    catch(IOException ioe) {
+      logger.warn("Could not decode Authority Key Identifier of " + x509.getSubjectX500Principal().getName(), ioe);
+      return null;
+    }
+  }
+
+  /**
+   * A CA and its index keys
+   */
+  private static final class IndexedCA {
+    private final X509Certificate caCert;
+    /** The CA's fingerprint, or null if it couldn't be worked out */
+    private final CertFingerprint fingerprint;
+    private final String subject;
+    /** The CA's Subject Key Identifier, or null if it doesn't have one */
+    private final String keyId;
+
+    IndexedCA(X509Certificate caCert) {
+      this.caCert = caCert;
+
+      CertFingerprint caFingerprint = null;
+      try {
+        caFingerprint = CertFingerprint.of(caCert);
+      }
+      catch(CertificateEncodingException cee) {
+        logger.warn("Could not fingerprint CA " + caCert.getSubjectX500Principal().getName(), cee);
+      }
+      fingerprint = caFingerprint;
+
+      subject = normalise(caCert.getSubjectX500Principal());
+      keyId = getSubjectKeyIdentifier(caCert);
+    }
+  }
+
+  /**
+   * Immutable view of the CAs and their indexes
+   */
+  private static final class Snapshot {
+    private final IndexedCA[] cas;
+    private final IdentityHashMap<X509Certificate, IndexedCA> byCert;
+    private final HashMap<String, List<X509Certificate>> bySubject;
+    private final HashMap<String, List<X509Certificate>> byKeyId;
+    private final FingerprintIndex<X509Certificate> byFingerprint;
+
+    /**
+     * Indexes some CAs
+     *
+     * @param cas the CAs
+     */
+    Snapshot(IndexedCA[] cas) {
+      this.cas = cas;
+      byCert = new IdentityHashMap<X509Certificate, IndexedCA>(cas.length);
+      bySubject = new HashMap<String, List<X509Certificate>>();
+      byKeyId = new HashMap<String, List<X509Certificate>>();
+      byFingerprint = new FingerprintIndex<X509Certificate>(cas.length);
+
+      for (IndexedCA ca : cas) {
+        add(ca);
+      }
+    }
+
+    /**
+     * Indexes the CAs of a snapshot and one more
+     *
+     * @param previous the snapshot
+     * @param ca the extra CA
+     */
+    Snapshot(Snapshot previous, IndexedCA ca) {
+      cas = new IndexedCA[previous.cas.length + 1];
+      System.arraycopy(previous.cas, 0, cas, 0, previous.cas.length);
+      cas[previous.cas.length] = ca;
+      byCert = new IdentityHashMap<X509Certificate, IndexedCA>(previous.byCert);
+      bySubject = new HashMap<String, List<X509Certificate>>(previous.bySubject);
+      byKeyId = new HashMap<String, List<X509Certificate>>(previous.byKeyId);
+      byFingerprint = new FingerprintIndex<X509Certificate>(previous.byFingerprint);
+
+      add(ca);
+    }
+
+    private void add(IndexedCA ca) {
+      byCert.put(ca.caCert, ca);
+      if (ca.fingerprint != null) {
+        byFingerprint.put(ca.fingerprint, ca.caCert);
+      }
+      index(bySubject, ca.subject, ca.caCert);
+      if (ca.keyId != null) {
+        index(byKeyId, ca.keyId, ca.caCert);
+      }
+    }
+
+    /**
+     * Adds a CA to one of the indexes. The lists in the index are never changed, as
+     * they can be shared with other snapshots, so the CA goes in a new list.
+     */
+    private static void index(HashMap<String, List<X509Certificate>> index, String key, X509Certificate caCert) {
+      List<X509Certificate> caCerts = index.get(key);
+      ArrayList<X509Certificate> indexed;
+      if (caCerts == null) {
+        indexed = new ArrayList<X509Certificate>(1);
+      }
+      else {
+        indexed = new ArrayList<X509Certificate>(caCerts.size() + 1);
+        indexed.addAll(caCerts);
+      }
+      indexed.add(caCert);
+      index.put(key, Collections.unmodifiableList(indexed));
+    }
+  }
+}
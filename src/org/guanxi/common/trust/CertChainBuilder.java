@@ -0,0 +1,255 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.security.CertFingerprint;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the possible certificate paths from a certificate back to the trust anchors,
+ * going through intermediate CAs where needed. The anchors and the intermediates are
+ * both held in CAStores so each step up a path is an index lookup on the issuer's
+ * subject and Authority Key Identifier.
+ *
+ * How many intermediates a path can have is limited by the verify depth, which works
+ * the same way as the VerifyDepth of a shibmeta:KeyAuthority. A depth of 1, which is
+ * the default, means the certificate must be issued directly by an anchor.
+ *
+ * The paths built for a certificate are remembered, keyed on its fingerprint, until
+ * the anchors, the intermediates or the verify depth change.
+ *
+ * @author alistair
+ */
+public class CertChainBuilder {
+  /** The default verify depth, as for a KeyAuthority */
+  public static final int DEFAULT_VERIFY_DEPTH = 1;
+  /** The default maximum number of certificates to remember the paths of */
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  /** The trust anchors */
+  private CAStore anchors = null;
+  /** The intermediate CAs */
+  private CAStore intermediates = null;
+  /** The longest path allowed, counting the anchor but not the certificate */
+  private volatile int verifyDepth = DEFAULT_VERIFY_DEPTH;
+  /** The maximum number of certificates to remember the paths of */
+  private int maxEntries;
+  /** The paths built for each certificate, keyed on its fingerprint */
+  private ConcurrentHashMap<CertFingerprint, List<Chain>> chains = null;
+  /** Bumped by clear, so paths built from the old anchors and intermediates aren't remembered */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Creates a builder with no intermediates
+   *
+   * @param anchors the trust anchors
+   */
+  public CertChainBuilder(CAStore anchors) {
+    this(anchors, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Creates a builder with no intermediates that remembers a particular number of paths
+   *
+   * @param anchors the trust anchors
+   * @param maxEntries the maximum number of certificates to remember the paths of
+   */
+  public CertChainBuilder(CAStore anchors, int maxEntries) {
+    this.anchors = anchors;
+    this.maxEntries = maxEntries;
+    intermediates = new CAStore();
+    chains = new ConcurrentHashMap<CertFingerprint, List<Chain>>();
+  }
+
+  /** @return the trust anchors */
+  public CAStore getAnchors() {
+    return anchors;
+  }
+
+  /**
+   * Replaces the intermediate CAs in one go
+   *
+   * @param intermediateCerts the new intermediates
+   */
+  public void setIntermediates(X509Certificate[] intermediateCerts) {
+    intermediates.setAll(intermediateCerts);
+    clear();
+  }
+
+  /** @return the intermediate CAs */
+  public X509Certificate[] getIntermediates() {
+    return intermediates.getAll();
+  }
+
+  /**
+   * Sets how long a path can be
+   *
+   * @param verifyDepth the number of CAs allowed in a path, including the anchor
+   */
+  public void setVerifyDepth(int verifyDepth) {
+    if (verifyDepth < 1) {
+      throw new IllegalArgumentException("verifyDepth must be at least 1");
+    }
+    this.verifyDepth = verifyDepth;
+    clear();
+  }
+
+  /** @return the number of CAs allowed in a path, including the anchor */
+  public int getVerifyDepth() {
+    return verifyDepth;
+  }
+
+  /**
+   * Forgets all the paths that have been built. This must be called when
+   * the anchors change.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    chains.clear();
+  }
+
+  /** @return the number of certificates whose paths are remembered */
+  public int size() {
+    return chains.size();
+  }
+
+  /**
+   * Returns the possible paths from a certificate to the trust anchors. Shorter
+   * paths come first. The paths haven't been validated.
+   *
+   * @param x509 the certificate
+   * @param x509Fingerprint the certificate's fingerprint
+   * @return the possible paths, which is empty if there aren't any
+   */
+  public List<Chain> getChains(X509Certificate x509, CertFingerprint x509Fingerprint) {
+    List<Chain> found = chains.get(x509Fingerprint);
+    if (found != null) {
+      return found;
+    }
+
+    long builtGeneration = generation.get();
+
+    ArrayList<X509Certificate> path = new ArrayList<X509Certificate>();
+    path.add(x509);
+    ArrayList<CertFingerprint> pathFingerprints = new ArrayList<CertFingerprint>();
+    pathFingerprints.add(x509Fingerprint);
+
+    ArrayList<Chain> built = new ArrayList<Chain>();
+    build(path, pathFingerprints, verifyDepth, built);
+    found = Collections.unmodifiableList(built);
+
+    if (chains.size() >= maxEntries) {
+      chains.clear();
+    }
+    /* Only remember the paths if nothing changed while they were being built.
+     * If clear ran after the put, take them out again.
+     */
+    if (generation.get() == builtGeneration) {
+      chains.put(x509Fingerprint, found);
+      if (generation.get() != builtGeneration) {
+        chains.remove(x509Fingerprint, found);
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Extends a partial path up to the anchors
+   *
+   * @param path the certificates in the path so far, starting with the one being validated
+   * @param pathFingerprints the fingerprints of the certificates in the path
+   * @param depth the number of CAs that can still be added to the path
+   * @param built where to put the complete paths
+   */
+  private void build(ArrayList<X509Certificate> path, ArrayList<CertFingerprint> pathFingerprints,
+                     int depth, ArrayList<Chain> built) {
+    X509Certificate last = path.get(path.size() - 1);
+
+    // Finish the path with any anchor that could have issued the last certificate...
+    for (X509Certificate anchor : anchors.getIssuerCandidates(last)) {
+      built.add(new Chain(path, pathFingerprints, anchor, anchors.getFingerprint(anchor)));
+    }
+
+    // ...then try going through an intermediate if there's room for one and an anchor
+    if (depth < 2) {
+      return;
+    }
+    for (X509Certificate intermediate : intermediates.getIssuerCandidates(last)) {
+      // Null if the intermediates have been replaced since the candidates were found
+      CertFingerprint fingerprint = intermediates.getFingerprint(intermediate);
+      // Don't go round in circles
+      if ((fingerprint == null) || (pathFingerprints.contains(fingerprint))) {
+        continue;
+      }
+
+      path.add(intermediate);
+      pathFingerprints.add(fingerprint);
+      build(path, pathFingerprints, depth - 1, built);
+      path.remove(path.size() - 1);
+      pathFingerprints.remove(pathFingerprints.size() - 1);
+    }
+  }
+
+  /**
+   * A possible path from a certificate to a trust anchor
+   */
+  public static final class Chain {
+    /** The certificate being validated followed by any intermediates */
+    private final List<X509Certificate> path;
+    /** The fingerprints of the certificates in the path */
+    private final CertFingerprint[] pathFingerprints;
+    /** The trust anchor at the end of the path */
+    private final X509Certificate anchor;
+    /** The trust anchor's fingerprint, or null if it isn't known */
+    private final CertFingerprint anchorFingerprint;
+
+    Chain(List<X509Certificate> path, List<CertFingerprint> pathFingerprints, X509Certificate anchor,
+          CertFingerprint anchorFingerprint) {
+      this.path = Collections.unmodifiableList(new ArrayList<X509Certificate>(path));
+      this.pathFingerprints = pathFingerprints.toArray(new CertFingerprint[pathFingerprints.size()]);
+      this.anchor = anchor;
+      this.anchorFingerprint = anchorFingerprint;
+    }
+
+    /** @return the certificate being validated followed by any intermediates */
+    public List<X509Certificate> getPath() {
+      return path;
+    }
+
+    /** @return the fingerprints of the certificates in the path */
+    public CertFingerprint[] getPathFingerprints() {
+      return pathFingerprints.clone();
+    }
+
+    /** @return the trust anchor at the end of the path */
+    public X509Certificate getAnchor() {
+      return anchor;
+    }
+
+    /** @return the trust anchor's fingerprint, or null if it isn't known */
+    public CertFingerprint getAnchorFingerprint() {
+      return anchorFingerprint;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * The names in an X509 certificate's subject that can match a KeyName in metadata,
+ * i.e. the full DN and any CNs. They're pulled out of the certificate once so a
+ * certificate can be compared with lots of KeyNames without parsing the DN each time.
+ *
+ * @author alistair
+ */
+public final class CertificateNames {
+  /** The full subject DN */
+  private final String dn;
+  /** The values of the CN components of the subject DN */
+  private final String[] cns;
+
+  /**
+   * Extracts the names from a certificate
+   *
+   * @param x509 The X509 to extract the names from
+   */
+  public CertificateNames(X509Certificate x509) {
+    dn = x509.getSubjectDN().getName();
+    cns = parseCNs(dn);
+  }
+
+  /** @return the full subject DN */
+  public String getDN() {
+    return dn;
+  }
+
+  /** @return the values of the CN components of the subject DN */
+  public String[] getCNs() {
+    return cns.clone();
+  }
+
+  /**
+   * Compares the names with a KeyName. A KeyName matches if it's the full DN
+   * or one of the CNs.
+   *
+   * @param keyName The KeyName string to use
+   * @return true if they match, otherwise false
+   */
+  public boolean matches(String keyName) {
+    if (dn.equals(keyName)) {
+      return true;
+    }
+    for (String cn : cns) {
+      if (cn.equals(keyName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compares the names with a set of KeyNames
+   *
+   * @param keyNames The KeyName strings to use
+   * @return true if any of the KeyNames is the full DN or one of the CNs, otherwise false
+   */
+  public boolean matchesAny(Set<String> keyNames) {
+    if (keyNames.isEmpty()) {
+      return false;
+    }
+    if (keyNames.contains(dn)) {
+      return true;
+    }
+    for (String cn : cns) {
+      if (keyNames.contains(cn)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the CNs in a DN such as "CN=urn:uni:ac:uk:idp, OU=Unknown, O=Unknown".
+   * Components are separated by a comma and optional whitespace.
+   *
+   * @param dn The DN to parse
+   * @return the CN values
+   */
+  private static String[] parseCNs(String dn) {
+    ArrayList<String> cns = new ArrayList<String>(1);
+
+    int start = 0;
+    while (start < dn.length()) {
+      int end = dn.indexOf(',', start);
+      if (end == -1) {
+        end = dn.length();
+      }
+
+      if (dn.startsWith("CN=", start)) {
+        // The value stops at the end of the component or at another '='
+        int valueEnd = dn.indexOf('=', start + 3);
+        if ((valueEnd == -1) || (valueEnd > end)) {
+          valueEnd = end;
+        }
+        cns.add(dn.substring(start + 3, valueEnd));
+      }
+
+      // Skip the comma and any whitespace after it
+      start = end + 1;
+      while ((start < dn.length()) && Character.isWhitespace(dn.charAt(start))) {
+        start++;
+      }
+    }
+
+    return cns.toArray(new String[cns.size()]);
+  }
+}
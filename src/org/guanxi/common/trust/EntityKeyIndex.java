@@ -0,0 +1,407 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.xal.saml_2_0.metadata.*;
+import org.guanxi.xal.w3.xmldsig.X509DataType;
+import org.guanxi.xal.w3.xmldsig.KeyInfoType;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.security.FingerprintIndex;
+import org.apache.log4j.Logger;
+
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index of the public keys embedded in an entity's SAML2 metadata, by role.
+ * Each key is indexed on the fingerprint of its SubjectPublicKeyInfo encoding
+ * so checking whether a presented key is embedded in the metadata is a single
+ * hash lookup rather than a walk of every KeyDescriptor comparing key fields.
+ * The KeyNames for each role are also collected into a set so a certificate's
+ * names can be matched against them without walking the KeyDescriptors.
+ * The certificates are also indexed on the fingerprint of their DER encoding and
+ * on the KeyNames that go with them, so the key that signed a message can be
+ * found from the hints in the signature's KeyInfo without parsing anything.
+ * The index is immutable once built.
+ *
+ * @author alistair
+ */
+public class EntityKeyIndex {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(EntityKeyIndex.class.getName());
+
+  /** Keys from the IDPSSODescriptors */
+  private FingerprintIndex<X509Certificate> ssoKeys = null;
+  /** Keys from the AttributeAuthorityDescriptors */
+  private FingerprintIndex<X509Certificate> aaKeys = null;
+  /** Keys from the SPSSODescriptors */
+  private FingerprintIndex<X509Certificate> spKeys = null;
+  /** Certificates from the IDPSSODescriptors, keyed on their own fingerprint */
+  private FingerprintIndex<X509Certificate> ssoCerts = null;
+  /** Certificates from the AttributeAuthorityDescriptors, keyed on their own fingerprint */
+  private FingerprintIndex<X509Certificate> aaCerts = null;
+  /** Certificates from the SPSSODescriptors, keyed on their own fingerprint */
+  private FingerprintIndex<X509Certificate> spCerts = null;
+  /** KeyNames from the IDPSSODescriptors */
+  private RoleKeyNames ssoKeyNames = null;
+  /** KeyNames from the AttributeAuthorityDescriptors */
+  private RoleKeyNames aaKeyNames = null;
+  /** KeyNames from the SPSSODescriptors */
+  private RoleKeyNames spKeyNames = null;
+
+  /**
+   * Builds the index from an entity's SAML2 metadata
+   *
+   * @param saml2Metadata The SAML2 metadata for the entity
+   * @param certCache The cache of certificates parsed from metadata
+   */
+  public EntityKeyIndex(EntityDescriptorType saml2Metadata, X509CertificateCache certCache) {
+    ssoCerts = new FingerprintIndex<X509Certificate>();
+    aaCerts = new FingerprintIndex<X509Certificate>();
+    spCerts = new FingerprintIndex<X509Certificate>();
+    ssoKeys = indexKeys(saml2Metadata.getIDPSSODescriptorArray(), certCache, ssoCerts);
+    aaKeys = indexKeys(saml2Metadata.getAttributeAuthorityDescriptorArray(), certCache, aaCerts);
+    spKeys = indexKeys(saml2Metadata.getSPSSODescriptorArray(), certCache, spCerts);
+    ssoKeyNames = indexKeyNames(saml2Metadata.getIDPSSODescriptorArray(), certCache);
+    aaKeyNames = indexKeyNames(saml2Metadata.getAttributeAuthorityDescriptorArray(), certCache);
+    spKeyNames = indexKeyNames(saml2Metadata.getSPSSODescriptorArray(), certCache);
+  }
+
+  /**
+   * Determines whether a public key is embedded in the metadata for a particular role
+   *
+   * @param publicKey The key to look for
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return true if the key is embedded in the metadata for the role, otherwise false
+   */
+  public boolean containsKey(PublicKey publicKey, int entityType) {
+    return containsKey(CertFingerprint.of(publicKey), entityType);
+  }
+
+  /**
+   * Determines whether a public key is embedded in the metadata for a particular role
+   *
+   * @param keyFingerprint The fingerprint of the key's SubjectPublicKeyInfo encoding
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return true if the key is embedded in the metadata for the role, otherwise false
+   */
+  public boolean containsKey(CertFingerprint keyFingerprint, int entityType) {
+    FingerprintIndex<X509Certificate> keys = getKeys(entityType);
+    if ((keys == null) || (keys.size() == 0)) {
+      return false;
+    }
+
+    return keys.containsKey(keyFingerprint);
+  }
+
+  /**
+   * Determines whether a certificate's subject matches a KeyName in the metadata for a
+   * particular role. As the Shibboleth spec says, the hostname is also a KeyName for
+   * any role that has KeyInfo in its metadata.
+   *
+   * @param names The names from the certificate's subject
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @param hostName The hostname for the validation context. Can be null
+   * @return true if a match was made, otherwise false
+   */
+  public boolean matchesKeyName(CertificateNames names, int entityType, String hostName) {
+    RoleKeyNames roleKeyNames = getKeyNames(entityType);
+    if ((roleKeyNames == null) || (!roleKeyNames.hasKeyInfo)) {
+      return false;
+    }
+
+    if (names.matchesAny(roleKeyNames.keyNames)) {
+      return true;
+    }
+
+    return (hostName != null) && names.matches(hostName);
+  }
+
+  /**
+   * Finds the keys in the metadata for a particular role that could have signed a
+   * message, from the hints in the signature's KeyInfo. An X509Certificate in the
+   * KeyInfo is matched on the fingerprint of its bytes, so it's never parsed. If none
+   * of those are in the metadata, the certificates that go with the KeyInfo's KeyNames
+   * are used instead.
+   *
+   * @param keyInfo The KeyInfo from the signature. Can be null
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return the candidate keys, which is empty if the hints don't match anything
+   */
+  public List<PublicKey> resolveKeys(KeyInfoType keyInfo, int entityType) {
+    FingerprintIndex<X509Certificate> certs = getCerts(entityType);
+    if ((keyInfo == null) || (certs == null)) {
+      return Collections.emptyList();
+    }
+
+    ArrayList<PublicKey> keys = new ArrayList<PublicKey>();
+
+    // KeyInfo/X509Data/X509Certificate
+    if (keyInfo.getX509DataArray() != null) {
+      for (X509DataType x509Data : keyInfo.getX509DataArray()) {
+        if (x509Data.getX509CertificateArray() == null) {
+          continue;
+        }
+        for (byte[] x509CertBytes : x509Data.getX509CertificateArray()) {
+          X509Certificate x509 = certs.get(new CertFingerprint(x509CertBytes));
+          if ((x509 != null) && (!keys.contains(x509.getPublicKey()))) {
+            keys.add(x509.getPublicKey());
+          }
+        }
+      }
+    }
+    if (!keys.isEmpty()) {
+      return keys;
+    }
+
+    // KeyInfo/KeyName
+    RoleKeyNames roleKeyNames = getKeyNames(entityType);
+    if (keyInfo.getKeyNameArray() != null) {
+      for (String keyName : keyInfo.getKeyNameArray()) {
+        List<X509Certificate> named = roleKeyNames.certsByKeyName.get(keyName);
+        if (named == null) {
+          continue;
+        }
+        for (X509Certificate x509 : named) {
+          if (!keys.contains(x509.getPublicKey())) {
+            keys.add(x509.getPublicKey());
+          }
+        }
+      }
+    }
+
+    return keys;
+  }
+
+  /**
+   * Returns the fingerprints of the DER encodings of all the certificates in the metadata,
+   * which are the keys they have in an X509CertificateCache
+   *
+   * @return the fingerprints of the certificates for all roles
+   */
+  public Set<CertFingerprint> getCertificateFingerprints() {
+    HashSet<CertFingerprint> fingerprints = new HashSet<CertFingerprint>();
+    fingerprints.addAll(ssoCerts.keys());
+    fingerprints.addAll(aaCerts.keys());
+    fingerprints.addAll(spCerts.keys());
+    return fingerprints;
+  }
+
+  /**
+   * Returns the number of distinct keys embedded in the metadata for a particular role
+   *
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return number of distinct keys for the role
+   */
+  public int getKeyCount(int entityType) {
+    FingerprintIndex<X509Certificate> keys = getKeys(entityType);
+    return (keys == null) ? 0 : keys.size();
+  }
+
+  /**
+   * Returns the keys for a particular role
+   *
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return the keys for the role or null if the entity type is unknown
+   */
+  private FingerprintIndex<X509Certificate> getKeys(int entityType) {
+    switch (entityType) {
+      case TrustUtils.ENTITY_TYPE_SSO:
+        return ssoKeys;
+      case TrustUtils.ENTITY_TYPE_AA:
+        return aaKeys;
+      case TrustUtils.ENTITY_TYPE_SP:
+        return spKeys;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the certificates for a particular role
+   *
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return the certificates for the role or null if the entity type is unknown
+   */
+  private FingerprintIndex<X509Certificate> getCerts(int entityType) {
+    switch (entityType) {
+      case TrustUtils.ENTITY_TYPE_SSO:
+        return ssoCerts;
+      case TrustUtils.ENTITY_TYPE_AA:
+        return aaCerts;
+      case TrustUtils.ENTITY_TYPE_SP:
+        return spCerts;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the KeyNames for a particular role
+   *
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return the KeyNames for the role or null if the entity type is unknown
+   */
+  private RoleKeyNames getKeyNames(int entityType) {
+    switch (entityType) {
+      case TrustUtils.ENTITY_TYPE_SSO:
+        return ssoKeyNames;
+      case TrustUtils.ENTITY_TYPE_AA:
+        return aaKeyNames;
+      case TrustUtils.ENTITY_TYPE_SP:
+        return spKeyNames;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Collects the KeyNames in a set of role descriptors, along with the certificates
+   * in the same KeyInfo as each of them
+   *
+   * @param roleDescriptors The role descriptors which may contain the KeyNames
+   * @param certCache The cache of certificates parsed from metadata
+   * @return the KeyNames in the role descriptors
+   */
+  private RoleKeyNames indexKeyNames(RoleDescriptorType[] roleDescriptors, X509CertificateCache certCache) {
+    RoleKeyNames roleKeyNames = new RoleKeyNames();
+    if (roleDescriptors == null) {
+      return roleKeyNames;
+    }
+
+    for (RoleDescriptorType roleDescriptor : roleDescriptors) {
+      // RoleDescriptor/KeyDescriptor
+      for (KeyDescriptorType keyDescriptor : roleDescriptor.getKeyDescriptorArray()) {
+        // RoleDescriptor/KeyDescriptor/KeyInfo/KeyName
+        if ((keyDescriptor.getKeyInfo() != null) && (keyDescriptor.getKeyInfo().getKeyNameArray() != null)) {
+          roleKeyNames.hasKeyInfo = true;
+          roleKeyNames.keyNames.addAll(Arrays.asList(keyDescriptor.getKeyInfo().getKeyNameArray()));
+
+          List<X509Certificate> x509s = getCertificates(keyDescriptor, certCache);
+          for (String keyName : keyDescriptor.getKeyInfo().getKeyNameArray()) {
+            List<X509Certificate> named = roleKeyNames.certsByKeyName.get(keyName);
+            if (named == null) {
+              named = new ArrayList<X509Certificate>();
+              roleKeyNames.certsByKeyName.put(keyName, named);
+            }
+            named.addAll(x509s);
+          }
+        }
+      }
+    }
+
+    return roleKeyNames;
+  }
+
+  /**
+   * Parses the X509 certificates in a KeyDescriptor
+   *
+   * @param keyDescriptor The KeyDescriptor which may contain the certificates
+   * @param certCache The cache of certificates parsed from metadata
+   * @return the certificates in the KeyDescriptor
+   */
+  private List<X509Certificate> getCertificates(KeyDescriptorType keyDescriptor, X509CertificateCache certCache) {
+    ArrayList<X509Certificate> x509s = new ArrayList<X509Certificate>();
+    if (keyDescriptor.getKeyInfo().getX509DataArray() == null) {
+      return x509s;
+    }
+
+    for (X509DataType x509Data : keyDescriptor.getKeyInfo().getX509DataArray()) {
+      if (x509Data.getX509CertificateArray() == null) {
+        continue;
+      }
+      for (byte[] x509CertBytes : x509Data.getX509CertificateArray()) {
+        try {
+          x509s.add(certCache.getCertificate(x509CertBytes));
+        }
+        catch(CertificateException ce) {
+          // Already logged when the keys were indexed
+        }
+      }
+    }
+
+    return x509s;
+  }
+
+  /**
+   * Indexes the keys from the X509 certificates in a set of role descriptors
+   *
+   * @param roleDescriptors The role descriptors which may contain the certificates
+   * @param certCache The cache of certificates parsed from metadata
+   * @param certs Where to index the certificates themselves
+   * @return the keys in the role descriptors
+   */
+  private FingerprintIndex<X509Certificate> indexKeys(RoleDescriptorType[] roleDescriptors,
+                                                        X509CertificateCache certCache,
+                                                        FingerprintIndex<X509Certificate> certs) {
+    FingerprintIndex<X509Certificate> keys = new FingerprintIndex<X509Certificate>();
+    if (roleDescriptors == null) {
+      return keys;
+    }
+
+    for (RoleDescriptorType roleDescriptor : roleDescriptors) {
+      // RoleDescriptor/KeyDescriptor
+      for (KeyDescriptorType keyDescriptor : roleDescriptor.getKeyDescriptorArray()) {
+        if ((keyDescriptor.getKeyInfo() == null) || (keyDescriptor.getKeyInfo().getX509DataArray() == null)) {
+          continue;
+        }
+
+        // RoleDescriptor/KeyDescriptor/KeyInfo/X509Data
+        for (X509DataType x509Data : keyDescriptor.getKeyInfo().getX509DataArray()) {
+          if (x509Data.getX509CertificateArray() == null) {
+            continue;
+          }
+
+          // RoleDescriptor/KeyDescriptor/KeyInfo/X509Data/X509Certificate
+          for (byte[] x509CertBytes : x509Data.getX509CertificateArray()) {
+            try {
+              X509Certificate x509 = certCache.getCertificate(x509CertBytes);
+              keys.put(CertFingerprint.of(x509.getPublicKey()), x509);
+              certs.put(new CertFingerprint(x509CertBytes), x509);
+            }
+            catch(CertificateException ce) {
+              // One bad certificate shouldn't stop the entity's other keys being used
+              logger.error("Could not parse certificate in metadata", ce);
+            }
+          }
+        }
+      }
+    }
+
+    return keys;
+  }
+
+  /**
+   * The KeyNames for a role
+   */
+  private static final class RoleKeyNames {
+    /** Whether any of the role's KeyDescriptors has KeyInfo */
+    private boolean hasKeyInfo = false;
+    private final HashSet<String> keyNames = new HashSet<String>();
+    /** The certificates in the same KeyInfo as each KeyName */
+    private final HashMap<String, List<X509Certificate>> certsByKeyName = new HashMap<String, List<X509Certificate>>();
+  }
+}
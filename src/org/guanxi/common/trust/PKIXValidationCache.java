@@ -0,0 +1,249 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.security.CertFingerprint;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the results of PKIX path validation of a certificate against a CA so the
+ * same pair isn't validated over and over again. The path can go through intermediate
+ * CAs, in which case they're part of what's remembered. A successful validation is
+ * remembered until the first of the certificates expires. A failed validation is only
+ * remembered for a short time so that a fix to the metadata is picked up quickly.
+ *
+ * @author alistair
+ */
+public class PKIXValidationCache {
+  /** The default time in milliseconds to remember a failed validation */
+  public static final long DEFAULT_FAILURE_TTL = 60 * 1000;
+  /** The default maximum number of results to remember */
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  /** How long to remember a failed validation */
+  private long failureTTL;
+  /** The maximum number of results to remember */
+  private int maxEntries;
+  /** The validation results, keyed on the certificate path */
+  private ConcurrentHashMap<PathKey, Result> results = null;
+
+  /**
+   * Creates a cache with the default settings
+   */
+  public PKIXValidationCache() {
+    this(DEFAULT_FAILURE_TTL, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Creates a cache with specific settings
+   *
+   * @param failureTTL how long in milliseconds to remember a failed validation
+   * @param maxEntries the maximum number of results to remember
+   */
+  public PKIXValidationCache(long failureTTL, int maxEntries) {
+    this.failureTTL = failureTTL;
+    this.maxEntries = maxEntries;
+    results = new ConcurrentHashMap<PathKey, Result>();
+  }
+
+  /**
+   * Performs PKIX path validation on a certificate, using the remembered result
+   * if the pair has been validated before and the result is still current.
+   *
+   * @param x509ToVerify The X509Certificate to validate
+   * @param caX509 The root trust anchor X509Certificate
+   * @return true if successful otherwise false
+   */
+  public boolean validate(X509Certificate x509ToVerify, X509Certificate caX509) {
+    return validate(x509ToVerify, null, caX509);
+  }
+
+  /**
+   * Performs PKIX path validation on a certificate whose fingerprint is already known
+   *
+   * @param x509ToVerify The X509Certificate to validate
+   * @param x509Fingerprint The fingerprint of the certificate, or null to work it out
+   * @param caX509 The root trust anchor X509Certificate
+   * @return true if successful otherwise false
+   */
+  public boolean validate(X509Certificate x509ToVerify, CertFingerprint x509Fingerprint, X509Certificate caX509) {
+    return validate(x509ToVerify, x509Fingerprint, caX509, null);
+  }
+
+  /**
+   * Performs PKIX path validation on a certificate when the fingerprints of the
+   * certificate and the CA may already be known, e.g. from a CAStore
+   *
+   * @param x509ToVerify The X509Certificate to validate
+   * @param x509Fingerprint The fingerprint of the certificate, or null to work it out
+   * @param caX509 The root trust anchor X509Certificate
+   * @param caFingerprint The fingerprint of the CA, or null to work it out
+   * @return true if successful otherwise false
+   */
+  public boolean validate(X509Certificate x509ToVerify, CertFingerprint x509Fingerprint, X509Certificate caX509,
+                          CertFingerprint caFingerprint) {
+    if (x509Fingerprint == null) {
+      try {
+        x509Fingerprint = CertFingerprint.of(x509ToVerify);
+      }
+      catch(CertificateEncodingException cee) {
+        // Can't fingerprint it so can't remember the result
+        return TrustUtils.validatePKIXPath(x509ToVerify, caX509);
+      }
+    }
+
+    return validate(Collections.singletonList(x509ToVerify), new CertFingerprint[] {x509Fingerprint}, caX509,
+                    caFingerprint);
+  }
+
+  /**
+   * Performs PKIX path validation on a certificate that goes through intermediate CAs
+   *
+   * @param path The X509Certificate to validate followed by any intermediates
+   * @param pathFingerprints The fingerprints of the certificates in the path
+   * @param caX509 The root trust anchor X509Certificate
+   * @return true if successful otherwise false
+   */
+  public boolean validate(List<X509Certificate> path, CertFingerprint[] pathFingerprints, X509Certificate caX509) {
+    return validate(path, pathFingerprints, caX509, null);
+  }
+
+  /**
+   * Performs PKIX path validation on a certificate that goes through intermediate CAs
+   * when the CA's fingerprint may already be known, e.g. from a CAStore
+   *
+   * @param path The X509Certificate to validate followed by any intermediates
+   * @param pathFingerprints The fingerprints of the certificates in the path
+   * @param caX509 The root trust anchor X509Certificate
+   * @param caFingerprint The fingerprint of the CA, or null to work it out
+   * @return true if successful otherwise false
+   */
+  public boolean validate(List<X509Certificate> path, CertFingerprint[] pathFingerprints, X509Certificate caX509,
+                          CertFingerprint caFingerprint) {
+    if (caFingerprint == null) {
+      try {
+        caFingerprint = CertFingerprint.of(caX509);
+      }
+      catch(CertificateEncodingException cee) {
+        // Can't fingerprint it so can't remember the result
+        return TrustUtils.validatePKIXPath(path, caX509);
+      }
+    }
+    PathKey key = new PathKey(pathFingerprints, caFingerprint);
+
+    long now = System.currentTimeMillis();
+    Result result = results.get(key);
+    if ((result != null) && (result.expires > now)) {
+      return result.valid;
+    }
+
+    boolean valid = TrustUtils.validatePKIXPath(path, caX509);
+
+    long expires;
+    if (valid) {
+      expires = caX509.getNotAfter().getTime();
+      for (X509Certificate x509 : path) {
+        expires = Math.min(expires, x509.getNotAfter().getTime());
+      }
+    }
+    else {
+      expires = now + failureTTL;
+    }
+
+    if (results.size() >= maxEntries) {
+      purge(now);
+    }
+    results.put(key, new Result(valid, expires));
+
+    return valid;
+  }
+
+  /**
+   * Forgets all the remembered results
+   */
+  public void clear() {
+    results.clear();
+  }
+
+  /** @return the number of remembered results */
+  public int size() {
+    return results.size();
+  }
+
+  /**
+   * Makes room by removing expired results, or everything if nothing has expired
+   *
+   * @param now the current time in milliseconds
+   */
+  private void purge(long now) {
+    for (Iterator<Map.Entry<PathKey, Result>> entries = results.entrySet().iterator(); entries.hasNext();) {
+      if (entries.next().getValue().expires <= now) {
+        entries.remove();
+      }
+    }
+
+    if (results.size() >= maxEntries) {
+      results.clear();
+    }
+  }
+
+  /**
+   * The remembered outcome of a validation
+   */
+  private static final class Result {
+    private final boolean valid;
+    private final long expires;
+
+    Result(boolean valid, long expires) {
+      this.valid = valid;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Map key made from the fingerprints of the certificates in the path and the CA
+   */
+  private static final class PathKey {
+    private final CertFingerprint[] pathFingerprints;
+    private final CertFingerprint caFingerprint;
+
+    PathKey(CertFingerprint[] pathFingerprints, CertFingerprint caFingerprint) {
+      this.pathFingerprints = pathFingerprints;
+      this.caFingerprint = caFingerprint;
+    }
+
+    public int hashCode() {
+      return (31 * Arrays.hashCode(pathFingerprints)) + caFingerprint.hashCode();
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PathKey)) {
+        return false;
+      }
+      PathKey other = (PathKey)obj;
+      return Arrays.equals(pathFingerprints, other.pathFingerprints) && caFingerprint.equals(other.caFingerprint);
+    }
+  }
+}
@@ -0,0 +1,346 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.security.JCAEngines;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.cert.*;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline certificate revocation based on CRLs loaded from a local directory and from
+ * metadata. Nothing is ever fetched over the network. The serial numbers revoked by each
+ * issuer are held in a sorted long array, so checking a certificate is a map lookup
+ * and a binary search. Serial numbers too big for a long are kept separately.
+ *
+ * The directory is checked for new, changed or removed CRL files once per refresh
+ * interval, on TrustExecutors' housekeeping thread, and only the files that have changed
+ * are parsed again. Checking a certificate never touches the directory. The CRLs
+ * are trusted because of where they come from, i.e. the server's own configuration or
+ * signed metadata, so their signatures aren't checked. A bad CRL can only cause
+ * certificates to be rejected, never accepted.
+ *
+ * @author alistair
+ */
+public class RevocationStore {
+  /** The default time in milliseconds between checks of the CRL directory */
+  public static final long DEFAULT_REFRESH_INTERVAL = 60 * 1000;
+
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(RevocationStore.class.getName());
+
+  /** Where to load CRL files from. Can be null */
+  private File crlDirectory = null;
+  /** How long between checks of the CRL directory */
+  private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+  /** The background checks of the CRL directory, or null if they're not running */
+  private ScheduledFuture<?> scheduledRefresh = null;
+
+  /** The CRLs from each file in the directory, keyed on the file */
+  private HashMap<File, LoadedFile> loadedFiles = new HashMap<File, LoadedFile>();
+  /** The CRLs from metadata */
+  private Collection<X509CRL> metadataCRLs = Collections.emptyList();
+
+  /** The revoked serial numbers, keyed on the canonical DN of their issuer */
+  private volatile Map<String, RevokedSerials> revoked = Collections.emptyMap();
+
+  /**
+   * Sets the directory to load CRL files from and loads them
+   *
+   * @param crlDirectory the directory, or null to stop using one
+   */
+  public synchronized void setCRLDirectory(File crlDirectory) {
+    this.crlDirectory = crlDirectory;
+    loadedFiles.clear();
+    refresh();
+    scheduleRefresh();
+  }
+
+  /**
+   * Sets how often the CRL directory is checked for changes
+   *
+   * @param refreshInterval the time in milliseconds between checks, or 0 to only check it when refresh is called
+   */
+  public synchronized void setRefreshInterval(long refreshInterval) {
+    this.refreshInterval = refreshInterval;
+    scheduleRefresh();
+  }
+
+  /**
+   * Stops checking the CRL directory in the background. The CRLs already loaded are still used.
+   */
+  public synchronized void stopRefreshing() {
+    if (scheduledRefresh != null) {
+      scheduledRefresh.cancel(false);
+      scheduledRefresh = null;
+    }
+  }
+
+  /**
+   * Starts checking the CRL directory in the background at the refresh interval,
+   * in place of any checks already running
+   */
+  private void scheduleRefresh() {
+    stopRefreshing();
+    if ((crlDirectory != null) && (refreshInterval > 0)) {
+      ScheduledRefresh task = new ScheduledRefresh(this);
+      scheduledRefresh = TrustExecutors.getScheduledExecutor().scheduleWithFixedDelay(task, refreshInterval,
+                                                                                       refreshInterval,
+                                                                                       TimeUnit.MILLISECONDS);
+      task.future = scheduledRefresh;
+    }
+  }
+
+  /**
+   * Replaces the CRLs that came from metadata
+   *
+   * @param crls the CRLs from the metadata
+   */
+  public synchronized void setMetadataCRLs(Collection<X509CRL> crls) {
+    metadataCRLs = new ArrayList<X509CRL>(crls);
+    rebuild();
+  }
+
+  /**
+   * Determines whether a certificate has been revoked by its issuer
+   *
+   * @param x509 the certificate to check
+   * @return true if the certificate is in one of its issuer's CRLs, otherwise false
+   */
+  public boolean isRevoked(X509Certificate x509) {
+    Map<String, RevokedSerials> current = revoked;
+    if (current.isEmpty()) {
+      return false;
+    }
+
+    RevokedSerials serials = current.get(x509.getIssuerX500Principal().getName("CANONICAL"));
+    return (serials != null) && serials.contains(x509.getSerialNumber());
+  }
+
+  /**
+   * Loads new and changed CRL files from the directory, forgets about removed
+   * ones and rebuilds the revoked serials if anything changed.
+   */
+  public synchronized void refresh() {
+    boolean changed = false;
+    HashSet<File> seen = new HashSet<File>();
+
+    File[] files = (crlDirectory != null) ? crlDirectory.listFiles() : null;
+    if (files != null) {
+      for (File file : files) {
+        if (!file.isFile()) {
+          continue;
+        }
+        seen.add(file);
+
+        LoadedFile loaded = loadedFiles.get(file);
+        if ((loaded != null) && (loaded.lastModified == file.lastModified()) && (loaded.length == file.length())) {
+          continue;
+        }
+
+        loadedFiles.put(file, new LoadedFile(file, loadCRLs(file)));
+        changed = true;
+      }
+    }
+    else if (crlDirectory != null) {
+      logger.error("Could not read CRL directory " + crlDirectory);
+    }
+
+    if (loadedFiles.keySet().retainAll(seen)) {
+      changed = true;
+    }
+
+    if (changed || (crlDirectory == null)) {
+      rebuild();
+    }
+  }
+
+  /**
+   * Parses the CRLs in a file, which can be DER or PEM encoded
+   *
+   * @param file the file
+   * @return the CRLs in the file, which is empty if it couldn't be parsed
+   */
+  private Collection<X509CRL> loadCRLs(File file) {
+    ArrayList<X509CRL> crls = new ArrayList<X509CRL>();
+
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      CertificateFactory certFactory = JCAEngines.getCertificateFactory("X.509");
+      for (CRL crl : certFactory.generateCRLs(in)) {
+        if (crl instanceof X509CRL) {
+          crls.add((X509CRL)crl);
+        }
+      }
+      logger.info("Loaded " + crls.size() + " CRLs from " + file);
+    }
+    catch(IOException ioe) {
+      logger.error("Could not read CRL file " + file, ioe);
+    }
+    catch(CertificateException ce) {
+      logger.error("Could not create CertificateFactory for CRL file " + file, ce);
+    }
+    catch(CRLException crle) {
+      logger.error("Could not parse CRL file " + file, crle);
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch(IOException ioe) {
+          // Nothing more we can do
+        }
+      }
+    }
+
+    return crls;
+  }
+
+  /**
+   * Builds the revoked serials from all the CRLs and publishes them
+   */
+  private void rebuild() {
+    HashMap<String, ArrayList<BigInteger>> serialsByIssuer = new HashMap<String, ArrayList<BigInteger>>();
+
+    ArrayList<X509CRL> crls = new ArrayList<X509CRL>(metadataCRLs);
+    for (LoadedFile loaded : loadedFiles.values()) {
+      crls.addAll(loaded.crls);
+    }
+
+    Date now = new Date();
+    for (X509CRL crl : crls) {
+      String issuer = crl.getIssuerX500Principal().getName("CANONICAL");
+      if ((crl.getNextUpdate() != null) && (crl.getNextUpdate().before(now))) {
+        // Still better than nothing
+        logger.warn("Using out of date CRL from " + issuer);
+      }
+
+      Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+      if (entries == null) {
+        continue;
+      }
+
+      ArrayList<BigInteger> serials = serialsByIssuer.get(issuer);
+      if (serials == null) {
+        serials = new ArrayList<BigInteger>();
+        serialsByIssuer.put(issuer, serials);
+      }
+      for (X509CRLEntry entry : entries) {
+        serials.add(entry.getSerialNumber());
+      }
+    }
+
+    HashMap<String, RevokedSerials> newRevoked = new HashMap<String, RevokedSerials>();
+    for (Map.Entry<String, ArrayList<BigInteger>> entry : serialsByIssuer.entrySet()) {
+      newRevoked.put(entry.getKey(), new RevokedSerials(entry.getValue()));
+    }
+    revoked = newRevoked;
+  }
+
+  /**
+   * Checks a store's CRL directory in the background. The store is only held weakly so
+   * an engine that's been thrown away isn't kept alive by its checks, which stop once
+   * it's gone.
+   */
+  private static final class ScheduledRefresh implements Runnable {
+    private final WeakReference<RevocationStore> store;
+    private volatile ScheduledFuture<?> future = null;
+
+    ScheduledRefresh(RevocationStore store) {
+      this.store = new WeakReference<RevocationStore>(store);
+    }
+
+    public void run() {
+      RevocationStore revocationStore = store.get();
+      if (revocationStore == null) {
+        if (future != null) {
+          future.cancel(false);
+        }
+        return;
+      }
+
+      try {
+        revocationStore.refresh();
+      }
+      catch(RuntimeException re) {
+        // Keep checking, the next one might work
+        logger.error("Could not check CRL directory " + revocationStore.crlDirectory, re);
+      }
+    }
+  }
+
+  /**
+   * The CRLs from a file and what the file looked like when they were loaded
+   */
+  private static final class LoadedFile {
+    private final long lastModified;
+    private final long length;
+    private final Collection<X509CRL> crls;
+
+    LoadedFile(File file, Collection<X509CRL> crls) {
+      lastModified = file.lastModified();
+      length = file.length();
+      this.crls = crls;
+    }
+  }
+
+  /**
+   * The serial numbers revoked by one issuer
+   */
+  private static final class RevokedSerials {
+    /** The serial numbers that fit in a long, sorted */
+    private final long[] serials;
+    /** The serial numbers that don't */
+    private final HashSet<BigInteger> bigSerials;
+
+    RevokedSerials(Collection<BigInteger> allSerials) {
+      long[] small = new long[allSerials.size()];
+      int count = 0;
+      HashSet<BigInteger> big = new HashSet<BigInteger>();
+      for (BigInteger serial : allSerials) {
+        if (serial.bitLength() < 64) {
+          small[count++] = serial.longValue();
+        }
+        else {
+          big.add(serial);
+        }
+      }
+      serials = new long[count];
+      System.arraycopy(small, 0, serials, 0, count);
+      Arrays.sort(serials);
+      bigSerials = big;
+    }
+
+    boolean contains(BigInteger serial) {
+      if (serial.bitLength() < 64) {
+        return Arrays.binarySearch(serials, serial.longValue()) >= 0;
+      }
+      return bigSerials.contains(serial);
+    }
+  }
+}
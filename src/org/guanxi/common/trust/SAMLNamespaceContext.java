@@ -23,8 +23,13 @@ import java.util.Iterator;
 /**
  * NamespaceContext implementation for use by XPath expressions
  *
+ * Nothing in Guanxi uses this now the signature's Reference is found without XPath.
+ * It's kept for code outside Guanxi that still uses it.
+ *
  * @author alistair
+ * @deprecated there's no replacement, use your own NamespaceContext
  */
+@Deprecated
 public class SAMLNamespaceContext implements NamespaceContext {
   public String getNamespaceURI(String prefix) {
     if (prefix == null) throw new NullPointerException("Null prefix");
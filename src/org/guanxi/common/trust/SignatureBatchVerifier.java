@@ -0,0 +1,155 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.GuanxiException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the signatures on a batch of SAML messages in parallel on a pool of
+ * threads. The results come back in the same order as the messages.
+ * Verifications that haven't finished can be cancelled through the Futures from
+ * submit(), or by interrupting a thread waiting in verify().
+ *
+ * The pool can be one the verifier creates for itself, which shutdown() stops, or
+ * one it's given, such as the verifier pool from TrustExecutors, which it leaves alone.
+ * Don't give it a pool that verify() will be called from, as the calling thread would
+ * be waiting for threads in its own pool, which may all be doing the same.
+ *
+ * @author alistair
+ */
+public class SignatureBatchVerifier {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(SignatureBatchVerifier.class.getName());
+
+  /** Numbers the pool threads so they can be told apart in thread dumps */
+  private static final AtomicInteger poolNumber = new AtomicInteger();
+
+  /** The threads that do the verification */
+  private ExecutorService executor = null;
+  /** Whether the verifier created the pool, so it's the verifier's to shut down */
+  private boolean ownExecutor;
+
+  /**
+   * Creates a verifier with one thread per processor
+   */
+  public SignatureBatchVerifier() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a verifier with a specific number of threads
+   *
+   * @param threads the maximum number of signatures to verify at the same time
+   */
+  public SignatureBatchVerifier(int threads) {
+    final int pool = poolNumber.incrementAndGet();
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "guanxi-signature-verifier-" + pool + "-" + threadNumber.incrementAndGet());
+        // Don't keep the container from shutting down
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    ownExecutor = true;
+  }
+
+  /**
+   * Creates a verifier that runs on an existing pool. The verifier won't shut it down.
+   *
+   * @param executor the pool to verify on
+   */
+  public SignatureBatchVerifier(ExecutorService executor) {
+    this.executor = executor;
+    ownExecutor = false;
+  }
+
+  /**
+   * Queues the messages for verification and returns straight away
+   *
+   * @param samlMessages the signed SAML messages
+   * @return one Future per message, in the same order as the messages. A Future
+   * throws an ExecutionException wrapping a GuanxiException if its message couldn't
+   * be verified at all, e.g. it wasn't signed.
+   */
+  public List<Future<Boolean>> submit(Collection<? extends XmlObject> samlMessages) {
+    ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>(samlMessages.size());
+    for (final XmlObject samlMessage : samlMessages) {
+      results.add(executor.submit(new Callable<Boolean>() {
+        public Boolean call() throws GuanxiException {
+          return TrustUtils.verifySignature(samlMessage);
+        }
+      }));
+    }
+    return results;
+  }
+
+  /**
+   * Verifies the messages and waits for all the results. A message that can't
+   * be verified at all, e.g. it isn't signed, counts as not verifying.
+   *
+   * @param samlMessages the signed SAML messages
+   * @return whether each message verified, in the same order as the messages
+   * @throws GuanxiException if the calling thread is interrupted while waiting, in which
+   * case all the unfinished verifications are cancelled
+   */
+  public boolean[] verify(Collection<? extends XmlObject> samlMessages) throws GuanxiException {
+    List<Future<Boolean>> futures = submit(samlMessages);
+    boolean[] results = new boolean[futures.size()];
+
+    try {
+      for (int c=0; c < results.length; c++) {
+        try {
+          results[c] = futures.get(c).get();
+        }
+        catch(ExecutionException ee) {
+          logger.warn("Could not verify signature on message " + c + " of batch", ee.getCause());
+          results[c] = false;
+        }
+      }
+    }
+    catch(InterruptedException ie) {
+      for (Future<Boolean> future : futures) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new GuanxiException(ie);
+    }
+
+    return results;
+  }
+
+  /**
+   * Stops the verifier's pool if it created it. Verifications already queued are
+   * still done but no more are accepted.
+   */
+  public void shutdown() {
+    if (ownExecutor) {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+
+/**
+ * What a metadata source's shibmeta:KeyAuthority gives a trust engine: the CAs it
+ * lists and their CRLs, how many CAs a path to them can have and the intermediate CAs
+ * from the source's entities that a path can go through. Instances are immutable.
+ *
+ * @author alistair
+ */
+public class TrustAnchors {
+  /** The CAs listed in the KeyAuthority */
+  private final X509Certificate[] caCerts;
+  /** The CA certificates from the entities that aren't listed in the KeyAuthority */
+  private final X509Certificate[] intermediateCerts;
+  /** The CRLs that came with the CAs */
+  private final X509CRL[] crls;
+  /** The VerifyDepth of the KeyAuthority */
+  private final int verifyDepth;
+
+  /**
+   * Creates the trust anchors
+   *
+   * @param caCerts the CAs listed in the KeyAuthority
+   * @param intermediateCerts the intermediate CAs
+   * @param crls the CRLs that came with the CAs
+   * @param verifyDepth the number of CAs allowed in a path, including the trust anchor
+   */
+  public TrustAnchors(X509Certificate[] caCerts, X509Certificate[] intermediateCerts, X509CRL[] crls, int verifyDepth) {
+    this.caCerts = caCerts.clone();
+    this.intermediateCerts = intermediateCerts.clone();
+    this.crls = crls.clone();
+    this.verifyDepth = verifyDepth;
+  }
+
+  /** @return the CAs listed in the KeyAuthority */
+  public X509Certificate[] getCACerts() {
+    return caCerts.clone();
+  }
+
+  /** @return the intermediate CAs */
+  public X509Certificate[] getIntermediateCerts() {
+    return intermediateCerts.clone();
+  }
+
+  /** @return the CRLs that came with the CAs */
+  public X509CRL[] getCRLs() {
+    return crls.clone();
+  }
+
+  /** @return the number of CAs allowed in a path, including the trust anchor */
+  public int getVerifyDepth() {
+    return verifyDepth;
+  }
+}
@@ -0,0 +1,216 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.xal.w3.xmldsig.KeyInfoType;
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+/**
+ * The things worked out about an entity's message or connection while deciding whether
+ * to trust it. Each one is only worked out the first time it's needed and then kept,
+ * so the trust steps can share them rather than each step parsing the message or the
+ * signer's certificate again.
+ *
+ * A context is for one trust decision and isn't thread safe.
+ *
+ * @author alistair
+ */
+public class TrustEvaluationContext {
+  /** The signed SAML message, or null for a back channel connection */
+  private XmlObject samlMessage = null;
+  /** The bytes the message was received as, or null if they're not known */
+  private byte[] receivedBytes = null;
+  /** DOM Level 3 copy of the message */
+  private Document document = null;
+  /** The signature in the DOM */
+  private Element signatureElement = null;
+  /** The KeyInfo from the signature in the message */
+  private KeyInfoType keyInfo = null;
+  /** The certificate from the signature or the connection */
+  private X509Certificate signerCertificate = null;
+  /** The fingerprint of the certificate's DER encoding */
+  private CertFingerprint signerFingerprint = null;
+  /** The fingerprint of the certificate's public key */
+  private CertFingerprint signerKeyFingerprint = null;
+  /** The names from the certificate's subject */
+  private CertificateNames signerNames = null;
+
+  /**
+   * Creates a context for a signed SAML message
+   *
+   * @param samlMessage the SAML Response
+   */
+  public TrustEvaluationContext(XmlObject samlMessage) {
+    this.samlMessage = samlMessage;
+  }
+
+  /**
+   * Creates a context for a signed SAML message by parsing it from the bytes it was
+   * received as. The context keeps its own copy of the bytes, so the message that's
+   * verified is always the one a VerifiedSignatureCache remembers the result for.
+   *
+   * @param receivedBytes the SAML Response exactly as it was received
+   * @return the context
+   * @throws GuanxiException if the bytes can't be parsed
+   */
+  public static TrustEvaluationContext fromReceivedBytes(byte[] receivedBytes) throws GuanxiException {
+    byte[] bytes = receivedBytes.clone();
+    XmlObject samlMessage;
+    try {
+      samlMessage = XmlObject.Factory.parse(new ByteArrayInputStream(bytes));
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+
+    TrustEvaluationContext context = new TrustEvaluationContext(samlMessage);
+    context.receivedBytes = bytes;
+    return context;
+  }
+
+  /**
+   * Creates a context for a certificate from a back channel connection
+   *
+   * @param x509 the certificate from the connection
+   */
+  public TrustEvaluationContext(X509Certificate x509) {
+    signerCertificate = x509;
+  }
+
+  /** @return the SAML message or null if the context is for a connection */
+  public XmlObject getMessage() {
+    return samlMessage;
+  }
+
+  /** @return a copy of the bytes the message was received as, or null if they're not known */
+  public byte[] getReceivedBytes() {
+    return (receivedBytes != null) ? receivedBytes.clone() : null;
+  }
+
+  /**
+   * Returns the message as a DOM that supports DOM Level 3
+   *
+   * @return the DOM
+   * @throws GuanxiException if the context has no message or it can't be converted
+   */
+  public Document getDocument() throws GuanxiException {
+    if (document == null) {
+      if (samlMessage == null) {
+        throw new GuanxiException("No message to verify");
+      }
+      document = TrustUtils.toDocument(samlMessage);
+    }
+    return document;
+  }
+
+  /**
+   * Returns the signature in the message's DOM
+   *
+   * @return the ds:Signature element or null if the message isn't signed
+   * @throws GuanxiException if the context has no message or it can't be converted
+   */
+  public Element getSignatureElement() throws GuanxiException {
+    if (signatureElement == null) {
+      signatureElement = TrustUtils.getSignatureElement(getDocument());
+    }
+    return signatureElement;
+  }
+
+  /** @return the KeyInfo from the signature or null if there isn't one */
+  public KeyInfoType getKeyInfo() {
+    if ((keyInfo == null) && (samlMessage != null)) {
+      keyInfo = TrustUtils.getKeyInfoFromSignature(samlMessage);
+    }
+    return keyInfo;
+  }
+
+  /**
+   * Returns the certificate from the message's signature or from the connection. If the
+   * message isn't a SAML Response the certificate comes from the signature in the DOM.
+   *
+   * @return the certificate
+   * @throws GuanxiException if the certificate can't be parsed
+   */
+  public X509Certificate getSignerCertificate() throws GuanxiException {
+    if (signerCertificate == null) {
+      if (getKeyInfo() != null) {
+        signerCertificate = TrustUtils.getX509CertFromSignature(getKeyInfo());
+      }
+      else {
+        signerCertificate = TrustUtils.getX509CertFromSignature(getSignatureElement());
+      }
+    }
+    return signerCertificate;
+  }
+
+  /**
+   * Returns the fingerprint of the signer's certificate
+   *
+   * @return the fingerprint of the certificate's DER encoding
+   * @throws GuanxiException if the certificate can't be parsed or encoded
+   */
+  public CertFingerprint getSignerFingerprint() throws GuanxiException {
+    if (signerFingerprint == null) {
+      try {
+        signerFingerprint = CertFingerprint.of(getSignerCertificate());
+      }
+      catch(CertificateEncodingException cee) {
+        throw new GuanxiException(cee);
+      }
+    }
+    return signerFingerprint;
+  }
+
+  /**
+   * Returns the fingerprint of the signer's public key
+   *
+   * @return the fingerprint of the key's SubjectPublicKeyInfo encoding
+   * @throws GuanxiException if the certificate can't be parsed
+   */
+  public CertFingerprint getSignerKeyFingerprint() throws GuanxiException {
+    if (signerKeyFingerprint == null) {
+      signerKeyFingerprint = CertFingerprint.of(getSignerCertificate().getPublicKey());
+    }
+    return signerKeyFingerprint;
+  }
+
+  /**
+   * Returns the names from the signer's certificate, i.e. its DN and CNs
+   *
+   * @return the names
+   * @throws GuanxiException if the certificate can't be parsed
+   */
+  public CertificateNames getSignerNames() throws GuanxiException {
+    if (signerNames == null) {
+      signerNames = new CertificateNames(getSignerCertificate());
+    }
+    return signerNames;
+  }
+}
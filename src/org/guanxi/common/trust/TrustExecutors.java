@@ -0,0 +1,171 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.trust;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pools the trust code works in the background on. Trust engines that haven't
+ * been given an executor of their own make their decisions on the shared pool.
+ * TrustUtils.verifySignatures verifies on a pool of its own, as a decision running on
+ * the shared pool can wait for a batch of signatures to be verified, and if the batch
+ * were queued behind the decisions on the same pool they'd all wait for each other.
+ * Keeping the pools here means there's only one place to stop them when the application
+ * is unloaded.
+ *
+ * The pools are created the first time they're needed, with one daemon thread per processor,
+ * and are shut down when the JVM exits. An application can inject its own executor in place
+ * of the shared pool and should call shutdown when it's unloaded so the threads don't
+ * outlive it.
+ *
+ * Housekeeping that has to be done every so often, such as checking a RevocationStore's
+ * CRL directory, runs on a single daemon thread of its own so it never holds up, or is
+ * held up by, the work in the pool. shutdown stops that thread too.
+ *
+ * @author alistair
+ */
+public class TrustExecutors {
+  /** The shared pool */
+  private static ExecutorService sharedExecutor = null;
+  /** Whether the shared pool was created here, so it's ours to shut down */
+  private static boolean ownExecutor = false;
+  /** The pool batches of signatures are verified on */
+  private static ExecutorService verifierExecutor = null;
+  /** The thread periodic housekeeping runs on */
+  private static ScheduledExecutorService scheduledExecutor = null;
+  /** Whether the JVM shutdown hook has been added */
+  private static boolean shutdownHookAdded = false;
+
+  private TrustExecutors() {
+  }
+
+  /**
+   * Gets the shared pool, creating it if there isn't one
+   *
+   * @return the shared pool
+   */
+  public static synchronized ExecutorService getSharedExecutor() {
+    if ((sharedExecutor == null) || (sharedExecutor.isShutdown())) {
+      sharedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                    newThreadFactory("guanxi-trust-"));
+      ownExecutor = true;
+      addShutdownHook();
+    }
+    return sharedExecutor;
+  }
+
+  /**
+   * Gets the pool batches of signatures are verified on, creating it if there isn't one.
+   * Nothing running on it waits for other work, so it's safe to wait for it from the
+   * shared pool.
+   *
+   * @return the verifier pool
+   */
+  public static synchronized ExecutorService getVerifierExecutor() {
+    if ((verifierExecutor == null) || (verifierExecutor.isShutdown())) {
+      verifierExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                      newThreadFactory("guanxi-verify-"));
+      addShutdownHook();
+    }
+    return verifierExecutor;
+  }
+
+  /**
+   * Gets the thread that periodic housekeeping runs on, creating it if there isn't one
+   *
+   * @return the housekeeping executor
+   */
+  public static synchronized ScheduledExecutorService getScheduledExecutor() {
+    if ((scheduledExecutor == null) || (scheduledExecutor.isShutdown())) {
+      scheduledExecutor = Executors.newSingleThreadScheduledExecutor(newThreadFactory("guanxi-trust-scheduler-"));
+      addShutdownHook();
+    }
+    return scheduledExecutor;
+  }
+
+  /**
+   * Creates the daemon threads for a pool
+   *
+   * @param prefix the start of the threads' names, which are numbered
+   * @return the thread factory
+   */
+  private static ThreadFactory newThreadFactory(final String prefix) {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+        // Don't keep the container from shutting down
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Makes sure the pools are shut down when the JVM exits
+   */
+  private static void addShutdownHook() {
+    if (!shutdownHookAdded) {
+      Runtime.getRuntime().addShutdownHook(new Thread("guanxi-trust-shutdown") {
+        public void run() {
+          shutdown();
+        }
+      });
+      shutdownHookAdded = true;
+    }
+  }
+
+  /**
+   * Replaces the shared pool. This is normally injected. The pool that was being used
+   * is shut down if it was created here. The application is responsible for shutting
+   * down a pool it injects.
+   *
+   * @param executor the pool to share
+   */
+  public static synchronized void setSharedExecutor(ExecutorService executor) {
+    if ((sharedExecutor != null) && (ownExecutor)) {
+      sharedExecutor.shutdown();
+    }
+    sharedExecutor = executor;
+    ownExecutor = false;
+  }
+
+  /**
+   * Stops the shared pool if it was created here, the verifier pool and the housekeeping
+   * thread. Work already queued in the pools is still done, but housekeeping that's waiting
+   * to run isn't. The next call for one of them starts it again.
+   */
+  public static synchronized void shutdown() {
+    if ((sharedExecutor != null) && (ownExecutor)) {
+      sharedExecutor.shutdown();
+      sharedExecutor = null;
+    }
+    if (verifierExecutor != null) {
+      verifierExecutor.shutdown();
+      verifierExecutor = null;
+    }
+    if (scheduledExecutor != null) {
+      scheduledExecutor.shutdownNow();
+      scheduledExecutor = null;
+    }
+  }
+}
@@ -0,0 +1,279 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+package org.guanxi.common.trust;
+
+import org.guanxi.common.GuanxiException;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times the stages of a trust engine's decisions and counts their outcomes, overall
+ * and per entity. Times go into histograms with power of two nanosecond buckets, so
+ * recording one is a couple of atomic increments. When recording is turned off the
+ * only cost is reading a flag at the start of each decision.
+ *
+ * A stage is timed like this:
+ * <pre>
+ *   long time = metrics.start();
+ *   ...verify the signature...
+ *   time = metrics.record(TrustMetrics.Stage.VERIFY_SIGNATURE, time);
+ *   ...
+ *   metrics.outcome(entityID, TrustMetrics.Outcome.PKIX, start);
+ * </pre>
+ *
+ * @author alistair
+ */
+public class TrustMetrics implements TrustMetricsMBean {
+  /** The stages of a decision */
+  public enum Stage { VERIFY_SIGNATURE, EXTRACT_CERTIFICATE, EMBEDDED_CERT, PKIX, TOTAL }
+  /** How a decision turned out */
+  public enum Outcome { EMBEDDED, PKIX, REJECTED, ERROR }
+
+  /** Whether timings are being recorded */
+  private volatile boolean enabled = false;
+  /** The times for each stage */
+  private Histogram[] stages = null;
+  /** The number of decisions with each outcome */
+  private AtomicLongArray outcomes = null;
+  /** The number of decisions with each outcome, per entity */
+  private ConcurrentHashMap<String, AtomicLongArray> entityOutcomes = null;
+
+  /**
+   * Creates the metrics with recording turned off
+   */
+  public TrustMetrics() {
+    stages = new Histogram[Stage.values().length];
+    for (int c=0; c < stages.length; c++) {
+      stages[c] = new Histogram();
+    }
+    outcomes = new AtomicLongArray(Outcome.values().length);
+    entityOutcomes = new ConcurrentHashMap<String, AtomicLongArray>();
+  }
+
+  /**
+   * Starts timing a decision
+   *
+   * @return the time now, or zero if recording is turned off
+   */
+  public long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records how long a stage took
+   *
+   * @param stage the stage that's just finished
+   * @param since when the stage started, from start() or the last call to this method
+   * @return the time now, for timing the next stage, or zero if the decision isn't being timed
+   */
+  public long record(Stage stage, long since) {
+    if (since == 0) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    stages[stage.ordinal()].add(now - since);
+    return now;
+  }
+
+  /**
+   * Records how a decision turned out and how long it took altogether
+   *
+   * @param entityID the entity the decision was about
+   * @param outcome how the decision turned out
+   * @param start when the decision started, from start()
+   */
+  public void outcome(String entityID, Outcome outcome, long start) {
+    if (start == 0) {
+      return;
+    }
+    record(Stage.TOTAL, start);
+    outcomes.incrementAndGet(outcome.ordinal());
+
+    if (entityID != null) {
+      AtomicLongArray counts = entityOutcomes.get(entityID);
+      if (counts == null) {
+        AtomicLongArray newCounts = new AtomicLongArray(Outcome.values().length);
+        counts = entityOutcomes.putIfAbsent(entityID, newCounts);
+        if (counts == null) {
+          counts = newCounts;
+        }
+      }
+      counts.incrementAndGet(outcome.ordinal());
+    }
+  }
+
+  /**
+   * @param stage the stage
+   * @return how many times the stage has been timed
+   */
+  public long getCount(Stage stage) {
+    return stages[stage.ordinal()].count.get();
+  }
+
+  /**
+   * @param stage the stage
+   * @return the mean time in nanoseconds the stage took
+   */
+  public double getMeanNanos(Stage stage) {
+    return stages[stage.ordinal()].mean();
+  }
+
+  /**
+   * @param stage the stage
+   * @param percentile between 0 and 100
+   * @return upper bound in nanoseconds of the time the stage took for that percentage of calls
+   */
+  public long getPercentileNanos(Stage stage, double percentile) {
+    return stages[stage.ordinal()].percentile(percentile);
+  }
+
+  /**
+   * @param outcome the outcome
+   * @return how many decisions had the outcome
+   */
+  public long getCount(Outcome outcome) {
+    return outcomes.get(outcome.ordinal());
+  }
+
+  /**
+   * @param entityID the entity
+   * @param outcome the outcome
+   * @return how many decisions about the entity had the outcome
+   */
+  public long getCount(String entityID, Outcome outcome) {
+    AtomicLongArray counts = entityOutcomes.get(entityID);
+    return (counts == null) ? 0 : counts.get(outcome.ordinal());
+  }
+
+  /**
+   * Makes the metrics available through the platform MBean server
+   *
+   * @param objectName the JMX name to register under, e.g. org.guanxi:type=TrustMetrics,name=idp
+   * @throws GuanxiException if the metrics can't be registered
+   */
+  public void register(String objectName) throws GuanxiException {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+    }
+    catch(Exception e) {
+      throw new GuanxiException(e);
+    }
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#isEnabled() */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#setEnabled(boolean) */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#getStageCount(String) */
+  public long getStageCount(String stage) {
+    return getCount(Stage.valueOf(stage));
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#getStageMeanMicros(String) */
+  public double getStageMeanMicros(String stage) {
+    return getMeanNanos(Stage.valueOf(stage)) / 1000;
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#getStagePercentileMicros(String, double) */
+  public double getStagePercentileMicros(String stage, double percentile) {
+    return getPercentileNanos(Stage.valueOf(stage), percentile) / 1000.0;
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#getOutcomeCount(String) */
+  public long getOutcomeCount(String outcome) {
+    return getCount(Outcome.valueOf(outcome));
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#getEntityOutcomeCount(String, String) */
+  public long getEntityOutcomeCount(String entityID, String outcome) {
+    return getCount(entityID, Outcome.valueOf(outcome));
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#getEntityIDs() */
+  public String[] getEntityIDs() {
+    return entityOutcomes.keySet().toArray(new String[0]);
+  }
+
+  /** @see org.guanxi.common.trust.TrustMetricsMBean#reset() */
+  public void reset() {
+    for (Histogram histogram : stages) {
+      histogram.reset();
+    }
+    for (int c=0; c < outcomes.length(); c++) {
+      outcomes.set(c, 0);
+    }
+    entityOutcomes.clear();
+  }
+
+  /**
+   * Times in nanoseconds, counted in buckets where bucket n holds times
+   * from 2^(n-1) up to but not including 2^n.
+   */
+  private static final class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    void add(long nanos) {
+      if (nanos < 0) {
+        // nanoTime isn't guaranteed to be monotonic on every platform
+        nanos = 0;
+      }
+      buckets.incrementAndGet(Math.min(63, 64 - Long.numberOfLeadingZeros(nanos)));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+    }
+
+    double mean() {
+      long n = count.get();
+      return (n == 0) ? 0 : (double)totalNanos.get() / n;
+    }
+
+    long percentile(double percentile) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long wanted = (long)Math.ceil(n * percentile / 100);
+      long seen = 0;
+      for (int c=0; c < 64; c++) {
+        seen += buckets.get(c);
+        if (seen >= wanted) {
+          return (c == 0) ? 0 : (1L << c) - 1;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    void reset() {
+      for (int c=0; c < 64; c++) {
+        buckets.set(c, 0);
+      }
+      count.set(0);
+      totalNanos.set(0);
+    }
+  }
+}
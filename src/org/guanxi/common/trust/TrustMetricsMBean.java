@@ -0,0 +1,70 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+package org.guanxi.common.trust;
+
+/**
+ * JMX view of a trust engine's timings. Stages and outcomes are passed by name,
+ * e.g. "VERIFY_SIGNATURE" or "PKIX", and times are in microseconds.
+ *
+ * @author alistair
+ */
+public interface TrustMetricsMBean {
+  /** @return true if timings are being recorded */
+  public boolean isEnabled();
+
+  /** @param enabled whether to record timings */
+  public void setEnabled(boolean enabled);
+
+  /**
+   * @param stage name of a TrustMetrics.Stage
+   * @return how many times the stage has been timed
+   */
+  public long getStageCount(String stage);
+
+  /**
+   * @param stage name of a TrustMetrics.Stage
+   * @return the mean time the stage took
+   */
+  public double getStageMeanMicros(String stage);
+
+  /**
+   * @param stage name of a TrustMetrics.Stage
+   * @param percentile between 0 and 100
+   * @return upper bound of the time the stage took for that percentage of calls
+   */
+  public double getStagePercentileMicros(String stage, double percentile);
+
+  /**
+   * @param outcome name of a TrustMetrics.Outcome
+   * @return how many decisions had the outcome
+   */
+  public long getOutcomeCount(String outcome);
+
+  /**
+   * @param entityID the entity
+   * @param outcome name of a TrustMetrics.Outcome
+   * @return how many decisions about the entity had the outcome
+   */
+  public long getEntityOutcomeCount(String entityID, String outcome);
+
+  /** @return the entities decisions have been made about */
+  public String[] getEntityIDs();
+
+  /**
+   * Forgets all the timings and counts
+   */
+  public void reset();
+}
@@ -0,0 +1,72 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+package org.guanxi.common.trust;
+
+/**
+ * The outcome of asking a TrustEngine whether to trust an entity, along with
+ * why, for logging and for reporting back to whoever asked.
+ *
+ * @author alistair
+ */
+public class TrustResult {
+  /** Whether the entity is trusted */
+  private boolean trusted;
+  /** Why the entity is or isn't trusted */
+  private String reason = null;
+  /** The error that stopped the engine deciding, if there was one */
+  private Exception error = null;
+
+  /**
+   * Records the outcome of a decision the engine made
+   *
+   * @param trusted whether the entity is trusted
+   * @param reason why the entity is or isn't trusted
+   */
+  public TrustResult(boolean trusted, String reason) {
+    this.trusted = trusted;
+    this.reason = reason;
+  }
+
+  /**
+   * Records an error that stopped the engine deciding. The entity isn't trusted.
+   *
+   * @param reason what the engine was doing
+   * @param error what went wrong
+   */
+  public TrustResult(String reason, Exception error) {
+    this(false, reason + " : " + error.getMessage());
+    this.error = error;
+  }
+
+  /** @return true if the entity is trusted, otherwise false */
+  public boolean isTrusted() {
+    return trusted;
+  }
+
+  /** @return why the entity is or isn't trusted */
+  public String getReason() {
+    return reason;
+  }
+
+  /** @return the error that stopped the engine deciding, or null if it decided */
+  public Exception getError() {
+    return error;
+  }
+
+  public String toString() {
+    return (trusted ? "trusted" : "not trusted") + " : " + reason;
+  }
+}
@@ -19,8 +19,13 @@ package org.guanxi.common.trust;
 import org.guanxi.xal.saml_2_0.metadata.*;
 import org.guanxi.xal.w3.xmldsig.X509DataType;
 import org.guanxi.xal.w3.xmldsig.KeyInfoType;
+import org.guanxi.xal.w3.xmldsig.SignatureType;
 import org.guanxi.xal.saml_1_0.protocol.ResponseDocument;
 import org.guanxi.common.GuanxiException;
+import org.guanxi.common.XMLFactoryPool;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.security.JCAEngines;
 import org.apache.log4j.Logger;
 import org.apache.xml.security.signature.XMLSignature;
 import org.apache.xml.security.exceptions.XMLSecurityException;
@@ -30,16 +35,16 @@ import org.w3c.dom.*;
 import org.bouncycastle.openssl.PEMReader;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.security.auth.x500.X500Principal;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.*;
 import java.security.cert.*;
 import java.security.*;
 import java.security.interfaces.RSAPublicKey;
 import java.security.interfaces.DSAPublicKey;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.*;
 import java.net.URL;
@@ -58,24 +63,6 @@ public class TrustUtils {
 
   /** Our logger */
   private static final Logger logger = Logger.getLogger(TrustUtils.class.getName());
-  /**
-   * This holds the path to the Reference node of a signed SAML Response.
-   * This is used to validate the signature in the SAML Response.
-   */
-  private static XPathExpression referencePath;
-
-  // Setup the XPath stuff and precompile any expressions
-  static {
-    XPathFactory factory = XPathFactory.newInstance();
-    XPath xPath = factory.newXPath();
-    xPath.setNamespaceContext(new SAMLNamespaceContext());
-    try {
-      referencePath = xPath.compile("//ds:Signature/ds:SignedInfo/ds:Reference");
-    }
-    catch (XPathExpressionException e) {
-      throw new ExceptionInInitializerError(e);
-    }
-  }
 
   /**
    * Performs trust validation via X509 certificates. The trust is in the context
@@ -131,9 +118,24 @@ public class TrustUtils {
    * @throws GuanxiException if an error occurs
    */
   public static boolean validateEmbeddedCert(EntityDescriptorType saml2Metadata, X509Certificate[] clientCerts, int entityType) throws GuanxiException {
-    try {
-      CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
+    return validateEmbeddedCert(saml2Metadata, clientCerts, entityType, X509CertificateCache.getSharedCache());
+  }
 
+  /**
+   * Performs explicit key validation to check an entity's message or TLS public keys against those
+   * embedded in SAML2 metadata for the entity. Certificates from the metadata are only parsed
+   * if they aren't already in the cache.
+   *
+   * @param saml2Metadata The SAML2 metadata for the entity
+   * @param clientCerts The X509 certificates from the message signature or secure connection
+   * @param entityType ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @param certCache The cache of certificates parsed from metadata
+   * @return true if explicit key validation passes, otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean validateEmbeddedCert(EntityDescriptorType saml2Metadata, X509Certificate[] clientCerts,
+                                             int entityType, X509CertificateCache certCache) throws GuanxiException {
+    try {
       KeyDescriptorType[] keyDescriptors = null;
       if (entityType == ENTITY_TYPE_SSO) {
         keyDescriptors = saml2Metadata.getIDPSSODescriptorArray(0).getKeyDescriptorArray();
@@ -152,10 +154,7 @@ public class TrustUtils {
           byte[][] x509CertsBytes = x509Data.getX509CertificateArray();
 
           for (byte[] x509CertBytes : x509CertsBytes) {
-            ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509CertBytes);
-            X509Certificate metadataCert = (X509Certificate)certFactory.generateCertificate(certByteStream);
-            certByteStream.close();
-
+            X509Certificate metadataCert = certCache.getCertificate(x509CertBytes);
             if ((metadataCert.getPublicKey() instanceof DSAPublicKey) &&
                 (clientCerts[0].getPublicKey() instanceof DSAPublicKey)) {
               DSAPublicKey metadataDSA = (DSAPublicKey)metadataCert.getPublicKey();
@@ -187,6 +186,35 @@ public class TrustUtils {
     }
   }
 
+  /**
+   * Performs explicit key validation using a prebuilt index of the keys embedded in an
+   * entity's metadata. This is a single lookup of the presented key rather than a walk
+   * of the entity's KeyDescriptors.
+   *
+   * @param keyIndex The index of keys embedded in the entity's metadata
+   * @param clientCerts The X509 certificates from the message signature or secure connection
+   * @param entityType ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return true if explicit key validation passes, otherwise false
+   */
+  public static boolean validateEmbeddedCert(EntityKeyIndex keyIndex, X509Certificate[] clientCerts, int entityType) {
+    return keyIndex.containsKey(clientCerts[0].getPublicKey(), entityType);
+  }
+
+  /**
+   * Performs explicit key validation of the signer in a trust evaluation using a prebuilt
+   * index of the keys embedded in the entity's metadata
+   *
+   * @param context The trust evaluation for the message or connection
+   * @param keyIndex The index of keys embedded in the entity's metadata
+   * @param entityType ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return true if explicit key validation passes, otherwise false
+   * @throws GuanxiException if the signer's certificate can't be parsed
+   */
+  public static boolean validateEmbeddedCert(TrustEvaluationContext context, EntityKeyIndex keyIndex,
+                                             int entityType) throws GuanxiException {
+    return keyIndex.containsKey(context.getSignerKeyFingerprint(), entityType);
+  }
+
   /**
    * Performs PKIX path validation based on certificates from metadata
    *
@@ -200,6 +228,35 @@ public class TrustUtils {
   public static boolean validatePKIX(ResponseDocument samlResponse, EntityDescriptorType saml2Metadata,
                                      Vector<X509Certificate> caCerts,
                                      String hostName) throws GuanxiException {
+    X509Certificate x509CertFromSig = getX509CertFromSignature(samlResponse);
+
+    // First find a match between the X509 in the signature and a KeyName in the metadata...
+    if (matchCertToKeyName(x509CertFromSig, saml2Metadata, hostName)) {
+      // ...then follow the chain from the X509 in the signature back to a supported CA in the metadata
+      if (validateCertPath(x509CertFromSig, caCerts)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Performs PKIX path validation based on certificates from metadata, remembering
+   * the results of path validation.
+   *
+   * @param samlResponse The SAML Response from an IdP containing an AuthenticationStatement
+   * @param saml2Metadata The metadata for the IdP
+   * @param caStore The CA root certs as trust anchors
+   * @param hostName The hostname for the validation context
+   * @param pkixCache Remembered path validation results. If null, paths are always validated
+   * @param revocationStore Revoked certificates. If null, revocation isn't checked
+   * @return true if validation succeeds otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean validatePKIX(ResponseDocument samlResponse, EntityDescriptorType saml2Metadata,
+                                     CAStore caStore, String hostName, PKIXValidationCache pkixCache,
+                                     RevocationStore revocationStore) throws GuanxiException {
     /* PKIX Path Validation
      * quickie summary:
      * - Match X509 in SAML Response signature to KeyName in IdP metadata
@@ -211,7 +268,7 @@ public class TrustUtils {
     // First find a match between the X509 in the signature and a KeyName in the metadata...
     if (matchCertToKeyName(x509CertFromSig, saml2Metadata, hostName)) {
       // ...then follow the chain from the X509 in the signature back to a supported CA in the metadata
-      if (validateCertPath(x509CertFromSig, caCerts)) {
+      if (validateCertPath(x509CertFromSig, caStore, pkixCache, revocationStore)) {
         return true;
       }
     }
@@ -219,6 +276,62 @@ public class TrustUtils {
     return false;
   }
 
+  /**
+   * Performs PKIX path validation of the signer in a trust evaluation using the KeyNames
+   * already indexed from the entity's metadata, going through intermediate CAs if need be
+   *
+   * @param context The trust evaluation for the message or connection
+   * @param keyIndex The index of the entity's metadata
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO or TrustUtils.ENTITY_TYPE_AA
+   * @param chainBuilder Builds the possible paths to the trust anchors
+   * @param hostName The hostname for the validation context
+   * @param pkixCache Remembered path validation results. If null, paths are always validated
+   * @param revocationStore Revoked certificates. If null, revocation isn't checked
+   * @return true if validation succeeds otherwise false
+   * @throws GuanxiException if the signer's certificate can't be parsed
+   */
+  public static boolean validatePKIX(TrustEvaluationContext context, EntityKeyIndex keyIndex, int entityType,
+                                     CertChainBuilder chainBuilder, String hostName, PKIXValidationCache pkixCache,
+                                     RevocationStore revocationStore) throws GuanxiException {
+    if (keyIndex.matchesKeyName(context.getSignerNames(), entityType, hostName)) {
+      return validateCertPath(context, chainBuilder, pkixCache, revocationStore);
+    }
+
+    return false;
+  }
+
+  /**
+   * Performs PKIX path validation of the signer in a trust evaluation based on the
+   * KeyNames in the entity's metadata, going through intermediate CAs if need be
+   *
+   * @param context The trust evaluation for the message or connection
+   * @param saml2Metadata The metadata for the entity
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO or TrustUtils.ENTITY_TYPE_AA
+   * @param chainBuilder Builds the possible paths to the trust anchors
+   * @param hostName The hostname for the validation context
+   * @param pkixCache Remembered path validation results. If null, paths are always validated
+   * @param revocationStore Revoked certificates. If null, revocation isn't checked
+   * @return true if validation succeeds otherwise false
+   * @throws GuanxiException if the signer's certificate can't be parsed
+   */
+  public static boolean validatePKIX(TrustEvaluationContext context, EntityDescriptorType saml2Metadata, int entityType,
+                                     CertChainBuilder chainBuilder, String hostName, PKIXValidationCache pkixCache,
+                                     RevocationStore revocationStore) throws GuanxiException {
+    RoleDescriptorType[] roles;
+    if (entityType == ENTITY_TYPE_AA) {
+      roles = saml2Metadata.getAttributeAuthorityDescriptorArray();
+    }
+    else {
+      roles = saml2Metadata.getIDPSSODescriptorArray();
+    }
+
+    if (matchNamesToKeyName(context.getSignerNames(), roles, hostName)) {
+      return validateCertPath(context, chainBuilder, pkixCache, revocationStore);
+    }
+
+    return false;
+  }
+
   /**
    * Performs PKIX path validation based on certificates from a back channel connection
    *
@@ -233,6 +346,34 @@ public class TrustUtils {
                                        EntityDescriptorType saml2Metadata,
                                        Vector<X509Certificate> caCerts,
                                        String hostName) throws GuanxiException {
+    // First find a match between the X509 from the connection and a KeyName in the metadata...
+    if (matchAACertToKeyName(x509CertFromConnection, saml2Metadata, hostName)) {
+      // ...then follow the chain from the X509 in the signature back to a supported CA in the metadata
+      if (validateCertPath(x509CertFromConnection, caCerts)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Performs PKIX path validation based on certificates from a back channel connection,
+   * remembering the results of path validation.
+   *
+   * @param x509CertFromConnection The certificate from the connection
+   * @param saml2Metadata The metadata for the IdP
+   * @param caStore The CA root certs as trust anchors
+   * @param hostName The hostname for the validation context
+   * @param pkixCache Remembered path validation results. If null, paths are always validated
+   * @param revocationStore Revoked certificates. If null, revocation isn't checked
+   * @return true if validation succeeds otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean validatePKIXBC(X509Certificate x509CertFromConnection,
+                                       EntityDescriptorType saml2Metadata,
+                                       CAStore caStore, String hostName, PKIXValidationCache pkixCache,
+                                       RevocationStore revocationStore) throws GuanxiException {
     /* PKIX Path Validation
      * quickie summary:
      * - Match X509 from connection to KeyName in IdP metadata
@@ -243,7 +384,7 @@ public class TrustUtils {
     // First find a match between the X509 from the connection and a KeyName in the metadata...
     if (matchAACertToKeyName(x509CertFromConnection, saml2Metadata, hostName)) {
       // ...then follow the chain from the X509 in the signature back to a supported CA in the metadata
-      if (validateCertPath(x509CertFromConnection, caCerts)) {
+      if (validateCertPath(x509CertFromConnection, caStore, pkixCache, revocationStore)) {
         return true;
       }
     }
@@ -252,25 +393,60 @@ public class TrustUtils {
   }
 
 
+  /**
+   * Retrieves the KeyInfo from the digital signature on a SAML Response
+   *
+   * @param samlResponse The SAML Response containing the signature
+   * @return the KeyInfo or null if the message isn't a SAML Response or isn't signed
+   */
+  public static KeyInfoType getKeyInfoFromSignature(XmlObject samlResponse) {
+    SignatureType signature = null;
+    if (samlResponse instanceof org.guanxi.xal.saml_1_0.protocol.ResponseDocument) {
+      signature = ((org.guanxi.xal.saml_1_0.protocol.ResponseDocument)(samlResponse)).getResponse().getSignature();
+    }
+    else if (samlResponse instanceof org.guanxi.xal.saml_2_0.protocol.ResponseDocument) {
+      signature = ((org.guanxi.xal.saml_2_0.protocol.ResponseDocument)(samlResponse)).getResponse().getSignature();
+    }
+    if (signature == null) {
+      return null;
+    }
+    return signature.getKeyInfo();
+  }
+
   /**
    * Retrieves the X509Certificate from a digital signature
    *
    * @param samlResponse The SAML Response containing the signature
    * @return X509Certificate from the signature
-   * @throws GuanxiException if an error occurs
+   * @throws GuanxiException if the message isn't signed, there's no certificate in the signature or an error occurs
    */
   public static X509Certificate getX509CertFromSignature(XmlObject samlResponse) throws GuanxiException {
-    KeyInfoType keyInfo = null;
-    if (samlResponse instanceof org.guanxi.xal.saml_1_0.protocol.ResponseDocument) {
-      keyInfo = ((org.guanxi.xal.saml_1_0.protocol.ResponseDocument)(samlResponse)).getResponse().getSignature().getKeyInfo();
+    KeyInfoType keyInfo = getKeyInfoFromSignature(samlResponse);
+    if (keyInfo == null) {
+      throw new GuanxiException("No signature in message");
     }
-    else if (samlResponse instanceof org.guanxi.xal.saml_2_0.protocol.ResponseDocument) {
-      keyInfo = ((org.guanxi.xal.saml_2_0.protocol.ResponseDocument)(samlResponse)).getResponse().getSignature().getKeyInfo();
+
+    return getX509CertFromSignature(keyInfo);
+  }
+
+  /**
+   * Retrieves the X509Certificate from a digital signature
+   *
+   * @param keyInfo The KeyInfo within the SAML message
+   * @return X509Certificate from the signature
+   * @throws GuanxiException if there's no certificate in the KeyInfo or an error occurs
+   */
+  public static X509Certificate getX509CertFromSignature(KeyInfoType keyInfo) throws GuanxiException {
+    // The KeyInfo might only have a KeyName or KeyValue
+    if ((keyInfo == null) || (keyInfo.getX509DataArray() == null) || (keyInfo.getX509DataArray().length == 0) ||
+        (keyInfo.getX509DataArray(0).getX509CertificateArray() == null) ||
+        (keyInfo.getX509DataArray(0).getX509CertificateArray().length == 0)) {
+      throw new GuanxiException("No certificate in signature");
     }
 
     try {
       byte[] x509CertBytes = keyInfo.getX509DataArray(0).getX509CertificateArray(0);
-      CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
+      CertificateFactory certFactory = JCAEngines.getCertificateFactory("X.509");
       ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509CertBytes);
       X509Certificate cert = (X509Certificate)certFactory.generateCertificate(certByteStream);
       certByteStream.close();
@@ -287,28 +463,30 @@ public class TrustUtils {
   }
 
   /**
-   * Retrieves the X509Certificate from a digital signature
+   * Retrieves the X509Certificate from a digital signature that's already in a DOM
    *
-   * @param keyInfo The KeyInfo within the SAML message
+   * @param sigElement The signature
    * @return X509Certificate from the signature
-   * @throws GuanxiException if an error occurs
+   * @throws GuanxiException if there's no signature or no certificate in it
    */
-  public static X509Certificate getX509CertFromSignature(KeyInfoType keyInfo) throws GuanxiException {
+  static X509Certificate getX509CertFromSignature(Element sigElement) throws GuanxiException {
+    if (sigElement == null) {
+      throw new GuanxiException("No signature in message");
+    }
+
     try {
-      byte[] x509CertBytes = keyInfo.getX509DataArray(0).getX509CertificateArray(0);
-      CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
-      ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509CertBytes);
-      X509Certificate cert = (X509Certificate)certFactory.generateCertificate(certByteStream);
-      certByteStream.close();
+      XMLSignature xmlSignature = new XMLSignature(sigElement, "");
+      if (xmlSignature.getKeyInfo() == null) {
+        throw new GuanxiException("No KeyInfo in signature");
+      }
+      X509Certificate cert = xmlSignature.getKeyInfo().getX509Certificate();
+      if (cert == null) {
+        throw new GuanxiException("No certificate in signature");
+      }
       return cert;
     }
-    catch(CertificateException ce) {
-      logger.error("Error obtaining certificate factory", ce);
-      throw new GuanxiException(ce);
-    }
-    catch(IOException ioe) {
-      logger.error("Error closing certificate byte stream", ioe);
-      throw new GuanxiException(ioe);
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
     }
   }
 
@@ -321,17 +499,8 @@ public class TrustUtils {
    * @return true if a match was made, otherwise false
    */
   public static boolean matchCertToKeyName(X509Certificate x509, EntityDescriptorType saml2Metadata, String hostName) {
-    IDPSSODescriptorType[] idpSSOs = saml2Metadata.getIDPSSODescriptorArray();
-
     // EntityDescriptor/IDPSSODescriptor
-    for (IDPSSODescriptorType idpSSO : idpSSOs) {
-      // EntityDescriptor/IDPSSODescriptor/KeyDescriptor
-      if (validateX509WithKeyName(x509, idpSSO.getKeyDescriptorArray(), hostName)) {
-        return true;
-      }
-    }
-
-    return false;
+    return matchNamesToKeyName(new CertificateNames(x509), saml2Metadata.getIDPSSODescriptorArray(), hostName);
   }
 
   /**
@@ -343,12 +512,22 @@ public class TrustUtils {
    * @return true if a match was made, otherwise false
    */
   public static boolean matchAACertToKeyName(X509Certificate x509, EntityDescriptorType saml2Metadata, String hostName) {
-    AttributeAuthorityDescriptorType[] aaList = saml2Metadata.getAttributeAuthorityDescriptorArray();
-
     // EntityDescriptor/AttributeAuthorityDescriptor
-    for (AttributeAuthorityDescriptorType aa : aaList) {
-      // EntityDescriptor/IDPSSODescriptor/KeyDescriptor
-      if (validateX509WithKeyName(x509, aa.getKeyDescriptorArray(), hostName)) {
+    return matchNamesToKeyName(new CertificateNames(x509), saml2Metadata.getAttributeAuthorityDescriptorArray(), hostName);
+  }
+
+  /**
+   * Tries to match the names from an X509 certificate subject to a KeyName in some roles' metadata
+   *
+   * @param names The names from the X509 to match with a KeyName
+   * @param roles The roles from the metadata which contain the KeyName
+   * @param hostName The hostname for the validation context
+   * @return true if a match was made, otherwise false
+   */
+  private static boolean matchNamesToKeyName(CertificateNames names, RoleDescriptorType[] roles, String hostName) {
+    for (RoleDescriptorType role : roles) {
+      // RoleDescriptor/KeyDescriptor
+      if (validateX509WithKeyName(names, role.getKeyDescriptorArray(), hostName)) {
         return true;
       }
     }
@@ -365,30 +544,33 @@ public class TrustUtils {
    * @return if a match was found
    */
   public static boolean validateX509WithKeyName(X509Certificate x509, KeyDescriptorType[] keyDescriptors, String hostName) {
+    return validateX509WithKeyName(new CertificateNames(x509), keyDescriptors, hostName);
+  }
+
+  /**
+   * Validates the names from an X509 certificate based on key names in metadata
+   *
+   * @param names The names from the X509 to match with a KeyName
+   * @param keyDescriptors pointer to the list of key descriptors from the metadata
+   * @param hostName The hostname for the validation context
+   * @return if a match was found
+   */
+  private static boolean validateX509WithKeyName(CertificateNames names, KeyDescriptorType[] keyDescriptors, String hostName) {
     for (KeyDescriptorType keyDescriptor : keyDescriptors) {
       // EntityDescriptor/IDPSSODescriptor/KeyDescriptor/KeyInfo
       if (keyDescriptor.getKeyInfo() != null) {
         // EntityDescriptor/IDPSSODescriptor/KeyDescriptor/KeyInfo/KeyName
         if (keyDescriptor.getKeyInfo().getKeyNameArray() != null) {
-          ArrayList<String> allKeyNames = new ArrayList<String>();
-          
-          String[] metadataKeyNames = keyDescriptor.getKeyInfo().getKeyNameArray();
-          for (String metadataKeyName : metadataKeyNames) {
-            allKeyNames.add(metadataKeyName);
-          }
-          // Shibboleth spec says the hostname is also a KeyName
-          if (hostName != null) {
-            allKeyNames.add(hostName);
-          }
-
-          for (String keyName : allKeyNames) {
-            String metadataKeyName = new String(keyName.getBytes());
-
-            // Do the hard work of comparison
-            if (compareX509SubjectWithKeyName(x509, metadataKeyName)) {
+          for (String keyName : keyDescriptor.getKeyInfo().getKeyNameArray()) {
+            if (names.matches(keyName)) {
               return true;
             }
           }
+
+          // Shibboleth spec says the hostname is also a KeyName
+          if ((hostName != null) && (names.matches(hostName))) {
+            return true;
+          }
         }
       }
     }
@@ -408,21 +590,30 @@ public class TrustUtils {
    * @return if they match, otherwise false
    */
   public static boolean compareX509SubjectWithKeyName(X509Certificate x509, String keyName) {
-    logger.debug("subject DN : " + x509.getSubjectDN().getName() + ", KeyName : " + keyName);
+    CertificateNames names = new CertificateNames(x509);
+    boolean matched = names.matches(keyName);
 
-    // Try the full DN
-    logger.debug("trying DN : " + x509.getSubjectDN().getName() + " KeyName : " + keyName);
-    if (x509.getSubjectDN().getName().equals(keyName)) {
-      logger.debug("matched DN");
-      return true;
+    if (logger.isDebugEnabled()) {
+      logger.debug("subject DN : " + names.getDN() + ", KeyName : " + keyName + ", matched : " + matched);
     }
 
-    // Try the CN
-    String[] split;
-    for (String currentEntry : x509.getSubjectDN().getName().split(",\\s*")) {
-      split = currentEntry.split("=");
-      if (split[0].equals("CN") && split[1].equals(keyName)) {
-        logger.debug("matched CN");
+    return matched;
+  }
+
+  /**
+   * Validates a certificate path starting with the mystery cert and working
+   * back to a trust anchor, using the CA certs in the trust engine. The CAs are
+   * scanned rather than indexed, as the list is only used once, but every CA
+   * that could have issued the cert is tried.
+   *
+   * @param x509ToVerify the mystery cert, should we trust it?
+   * @param caCerts the list of CA root certs to trust
+   * @return true if we trust the cert, otherwise false
+   */
+  public static boolean validateCertPath(X509Certificate x509ToVerify, Vector<X509Certificate> caCerts) {
+    X500Principal issuer = x509ToVerify.getIssuerX500Principal();
+    for (X509Certificate caX509 : caCerts.toArray(new X509Certificate[0])) {
+      if ((caX509.getSubjectX500Principal().equals(issuer)) && (validatePKIXPath(x509ToVerify, caX509))) {
         return true;
       }
     }
@@ -432,22 +623,128 @@ public class TrustUtils {
 
   /**
    * Validates a certificate path starting with the mystery cert and working
-   * back to a trust anchor, using the CA certs in the trust engine.
+   * back to a trust anchor, using the CA certs in the trust engine and
+   * remembering the result. Every CA that could have issued the cert is tried,
+   * so a cert issued by either the old or new key of a CA that is rolling over
+   * its key will validate.
    *
    * @param x509ToVerify the mystery cert, should we trust it?
-   * @param caCerts the list of CA root certs to trust
+   * @param caStore the CA root certs to trust
+   * @param pkixCache Remembered path validation results. If null, paths are always validated
    * @return true if we trust the cert, otherwise false
    */
-  public static boolean validateCertPath(X509Certificate x509ToVerify, Vector<X509Certificate> caCerts) {
-    for (X509Certificate caX509 : caCerts) {
-      if (caX509.getSubjectDN().getName().equals(x509ToVerify.getIssuerDN().getName())) {
-        return validatePKIXPath(x509ToVerify, caX509);
+  public static boolean validateCertPath(X509Certificate x509ToVerify, CAStore caStore,
+                                         PKIXValidationCache pkixCache) {
+    return validateCertPath(x509ToVerify, caStore, pkixCache, null);
+  }
+
+  /**
+   * Validates a certificate path as above and then checks the cert hasn't been revoked.
+   * Revocation is checked against locally held CRLs only, never over the network, and
+   * isn't remembered along with the path validation result as CRLs can change.
+   *
+   * @param x509ToVerify the mystery cert, should we trust it?
+   * @param caStore the CA root certs to trust
+   * @param pkixCache Remembered path validation results. If null, paths are always validated
+   * @param revocationStore Revoked certificates. If null, revocation isn't checked
+   * @return true if we trust the cert, otherwise false
+   */
+  public static boolean validateCertPath(X509Certificate x509ToVerify, CAStore caStore,
+                                         PKIXValidationCache pkixCache, RevocationStore revocationStore) {
+    if ((revocationStore != null) && (revocationStore.isRevoked(x509ToVerify))) {
+      logger.warn("Certificate " + x509ToVerify.getSubjectX500Principal().getName() + " has been revoked");
+      return false;
+    }
+
+    // Only fingerprint the cert once, however many CAs are tried
+    CertFingerprint x509Fingerprint = null;
+    if (pkixCache != null) {
+      try {
+        x509Fingerprint = CertFingerprint.of(x509ToVerify);
+      }
+      catch(CertificateEncodingException cee) {
+        // The cache will validate without remembering
+      }
+    }
+
+    for (X509Certificate caX509 : caStore.getIssuerCandidates(x509ToVerify)) {
+      boolean valid;
+      if (pkixCache != null) {
+        valid = pkixCache.validate(x509ToVerify, x509Fingerprint, caX509, caStore.getFingerprint(caX509));
+      }
+      else {
+        valid = validatePKIXPath(x509ToVerify, caX509);
+      }
+      if (valid) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Validates the certificate path of the signer in a trust evaluation, going through
+   * intermediate CAs if need be. Each possible path is tried until one validates.
+   * Revocation of the signer's certificate and of any intermediates in the path is
+   * checked against locally held CRLs.
+   *
+   * @param context The trust evaluation for the message or connection
+   * @param chainBuilder Builds the possible paths to the trust anchors
+   * @param pkixCache Remembered path validation results. If null, paths are always validated
+   * @param revocationStore Revoked certificates. If null, revocation isn't checked
+   * @return true if we trust the cert, otherwise false
+   * @throws GuanxiException if the signer's certificate can't be parsed
+   */
+  public static boolean validateCertPath(TrustEvaluationContext context, CertChainBuilder chainBuilder,
+                                         PKIXValidationCache pkixCache, RevocationStore revocationStore) throws GuanxiException {
+    X509Certificate x509ToVerify = context.getSignerCertificate();
+    if ((revocationStore != null) && (revocationStore.isRevoked(x509ToVerify))) {
+      logger.warn("Certificate " + x509ToVerify.getSubjectX500Principal().getName() + " has been revoked");
+      return false;
+    }
+
+    for (CertChainBuilder.Chain chain : chainBuilder.getChains(x509ToVerify, context.getSignerFingerprint())) {
+      if (isRevoked(chain.getPath(), revocationStore)) {
+        continue;
+      }
+
+      boolean valid;
+      if (pkixCache != null) {
+        valid = pkixCache.validate(chain.getPath(), chain.getPathFingerprints(), chain.getAnchor(),
+                                   chain.getAnchorFingerprint());
+      }
+      else {
+        valid = validatePKIXPath(chain.getPath(), chain.getAnchor());
+      }
+      if (valid) {
+        return true;
       }
     }
 
     return false;
   }
 
+  /**
+   * Checks whether any of the intermediate CAs in a path has been revoked
+   *
+   * @param path The certificate being validated followed by any intermediates
+   * @param revocationStore Revoked certificates. Can be null
+   * @return true if an intermediate has been revoked, otherwise false
+   */
+  private static boolean isRevoked(List<X509Certificate> path, RevocationStore revocationStore) {
+    if (revocationStore == null) {
+      return false;
+    }
+    for (int c=1; c < path.size(); c++) {
+      if (revocationStore.isRevoked(path.get(c))) {
+        logger.warn("Intermediate CA " + path.get(c).getSubjectX500Principal().getName() + " has been revoked");
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Performs PKIX path validation on a set of certificates
    *
@@ -456,22 +753,33 @@ public class TrustUtils {
    * @return true if successful otherwise false
    */
   public static boolean validatePKIXPath(X509Certificate x509ToVerify, X509Certificate caX509) {
+    return validatePKIXPath(Collections.singletonList(x509ToVerify), caX509);
+  }
+
+  /**
+   * Performs PKIX path validation on a certificate that goes through intermediate CAs
+   *
+   * @param path The X509Certificate to validate followed by any intermediates, each
+   * issued by the next one
+   * @param caX509 The root trust anchor X509Certificate
+   * @return true if successful otherwise false
+   */
+  public static boolean validatePKIXPath(List<X509Certificate> path, X509Certificate caX509) {
     try {
       ArrayList<X509Certificate> certsList = new ArrayList<X509Certificate>();
       certsList.add(caX509);
-      certsList.add(x509ToVerify);
+      certsList.addAll(path);
 
       CollectionCertStoreParameters certStoreParams = new CollectionCertStoreParameters(certsList);
       CertStore certStore = CertStore.getInstance("Collection", certStoreParams, "BC");
 
-      CertificateFactory certFactory = CertificateFactory.getInstance("X.509", "BC");
-      ArrayList<X509Certificate> certChain = new ArrayList<X509Certificate>();
-      certChain.add(x509ToVerify);
+      CertificateFactory certFactory = JCAEngines.getCertificateFactory("X.509", "BC");
+      ArrayList<X509Certificate> certChain = new ArrayList<X509Certificate>(path);
 
       CertPath certPath = certFactory.generateCertPath(certChain);
       Set<TrustAnchor> trust = Collections.singleton(new TrustAnchor(caX509, null));
 
-      CertPathValidator validator = CertPathValidator.getInstance("PKIX", "BC");
+      CertPathValidator validator = JCAEngines.getCertPathValidator("PKIX", "BC");
       PKIXParameters pkixParams = new PKIXParameters(trust);
 
       pkixParams.addCertStore(certStore);
@@ -500,25 +808,170 @@ public class TrustUtils {
    * @throws GuanxiException if an error occurs
    */
   public static boolean verifySignature(XmlObject samlMessage) throws GuanxiException {
+    return verifySignature(toDocument(samlMessage), null);
+  }
+
+  /**
+   * Verifies the digital signature on a SAML Response with a key that's already
+   * known, e.g. one from the entity's metadata, rather than the certificate in
+   * the signature's KeyInfo.
+   *
+   * @param samlMessage The SAML Response document containing the signature
+   * @param key The key to verify the signature with
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean verifySignature(XmlObject samlMessage, PublicKey key) throws GuanxiException {
+    return verifySignature(toDocument(samlMessage), key);
+  }
+
+  /**
+   * Verifies the digital signature on the message in a trust evaluation with the
+   * certificate from the signature's KeyInfo. The message is only converted to a DOM
+   * and the certificate only parsed once, however many trust steps use them.
+   *
+   * @param context The trust evaluation for the SAML Response
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean verifySignature(TrustEvaluationContext context) throws GuanxiException {
+    return verifySignature(context, context.getSignerCertificate().getPublicKey());
+  }
+
+  /**
+   * Verifies the digital signature on the message in a trust evaluation with a key
+   * that's already known, e.g. one from the entity's metadata
+   *
+   * @param context The trust evaluation for the SAML Response
+   * @param key The key to verify the signature with
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean verifySignature(TrustEvaluationContext context, PublicKey key) throws GuanxiException {
+    return verifySignature(context.getDocument(), context.getSignatureElement(), key);
+  }
+
+  /**
+   * Gets an XMLBeans message into a standard DOM
+   *
+   * @param samlMessage The SAML message
+   * @return DOM Level 3 copy of the message
+   * @throws GuanxiException if an error occurs
+   */
+  static Document toDocument(XmlObject samlMessage) throws GuanxiException {
+    /* We need to check for ID attributes, which requires DOM Level 3, which XMLBeans
+     * does not support. So we need to jump into DOM land. For a whole document we copy
+     * the XMLBeans DOM straight into a standard DOM rather than serialising it and
+     * parsing it all over again.
+     */
+    Node messageNode = samlMessage.getDomNode();
+    if (!(messageNode instanceof Document)) {
+      // A fragment needs the namespaces in scope from its ancestors, which saving it provides
+      return parse(samlMessage.newInputStream());
+    }
+
     try {
-      /* We need to check for ID attributes, which requires DOM Level 3, which XMLBeans
-       * does not support. So we need to jump into DOM land.
-       */
-      DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-      dbf.setNamespaceAware(true);
-      dbf.setAttribute("http://xml.org/sax/features/namespaces", Boolean.TRUE);
-      DocumentBuilder db = dbf.newDocumentBuilder();
-      db.setErrorHandler(new org.apache.xml.security.utils.IgnoreAllErrorHandler());
-      Document doc = db.parse(samlMessage.newInputStream());
+      Document doc = XMLFactoryPool.getDocumentBuilder().newDocument();
+      doc.appendChild(doc.importNode(((Document)messageNode).getDocumentElement(), true));
+      return doc;
+    }
+    catch(ParserConfigurationException pce) {
+      throw new GuanxiException(pce);
+    }
+  }
+
+  /**
+   * Verifies the digital signatures on a batch of SAML messages in parallel, on the
+   * verifier pool from TrustExecutors, so it can be called from a trust engine deciding
+   * on the shared pool. Use a SignatureBatchVerifier directly to control the threads or
+   * to cancel verifications.
+   *
+   * @param samlMessages The signed SAML messages
+   * @return whether each message verified, in the same order as the messages
+   * @throws GuanxiException if the calling thread is interrupted while waiting
+   */
+  public static boolean[] verifySignatures(Collection<? extends XmlObject> samlMessages) throws GuanxiException {
+    return new SignatureBatchVerifier(TrustExecutors.getVerifierExecutor()).verify(samlMessages);
+  }
+
+  /**
+   * Verifies the digital signature on a SAML Response as received from the wire
+   *
+   * @param samlMessage The raw bytes of the SAML Response containing the signature
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean verifySignature(byte[] samlMessage) throws GuanxiException {
+    return verifySignature(parse(new ByteArrayInputStream(samlMessage)), null);
+  }
+
+  /**
+   * Verifies the digital signature on a SAML Response that's already in a DOM. The DOM
+   * must support DOM Level 3 as the signed node's ID attribute will be marked in it.
+   *
+   * @param samlMessage The SAML Response document containing the signature
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean verifySignature(Document samlMessage) throws GuanxiException {
+    return verifySignature(samlMessage, null);
+  }
+
+  /**
+   * Verifies the digital signature on a SAML Response that's already in a DOM, with
+   * either a known key or the certificate in the signature's KeyInfo. The DOM
+   * must support DOM Level 3 as the signed node's ID attribute will be marked in it.
+   *
+   * @param samlMessage The SAML Response document containing the signature
+   * @param key The key to verify the signature with, or null to use the certificate in the KeyInfo
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean verifySignature(Document samlMessage, PublicKey key) throws GuanxiException {
+    return verifySignature(samlMessage, getSignatureElement(samlMessage), key);
+  }
+
+  /**
+   * Verifies a digital signature that's already been found in a DOM
+   *
+   * @param samlMessage The SAML Response document containing the signature
+   * @param sigElement The signature in the document, or null if there isn't one
+   * @param key The key to verify the signature with, or null to use the certificate in the KeyInfo
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  private static boolean verifySignature(Document samlMessage, Element sigElement, PublicKey key) throws GuanxiException {
+    try {
+      if (sigElement == null) {
+        throw new GuanxiException("No signature in message");
+      }
 
-      setIdNode(doc);
+      setIdNode(samlMessage, sigElement);
 
-      NodeList nodes = doc.getElementsByTagNameNS(Constants.SignatureSpecNS, "Signature");
-      Element sigElement = (Element)nodes.item(0);
       XMLSignature xmlSignature = new XMLSignature(sigElement, "");
-      X509Certificate cert = xmlSignature.getKeyInfo().getX509Certificate();
+      if (key != null) {
+        return xmlSignature.checkSignatureValue(key);
+      }
 
-      return xmlSignature.checkSignatureValue(cert);
+      return xmlSignature.checkSignatureValue(getX509CertFromSignature(sigElement));
+    }
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+  }
+
+  /**
+   * Parses a SAML Response ready for its signature to be verified
+   *
+   * @param samlMessage Stream containing the SAML Response
+   * @return DOM of the SAML Response
+   * @throws GuanxiException if an error occurs
+   */
+  private static Document parse(InputStream samlMessage) throws GuanxiException {
+    try {
+      DocumentBuilder db = XMLFactoryPool.getDocumentBuilder();
+      db.setErrorHandler(new org.apache.xml.security.utils.IgnoreAllErrorHandler());
+      return db.parse(samlMessage);
     }
     catch(ParserConfigurationException pce) {
       throw new GuanxiException(pce);
@@ -529,43 +982,71 @@ public class TrustUtils {
     catch(IOException ioe) {
       throw new GuanxiException(ioe);
     }
-    catch(XMLSecurityException xse) {
-      throw new GuanxiException(xse);
+  }
+
+  /**
+   * Finds the signature in a SAML message. An enveloped signature is a child of the
+   * document element so that's where we look first, only searching the rest of the
+   * document if it's not there.
+   *
+   * @param doc SAML message document
+   * @return the ds:Signature element or null if the message isn't signed
+   */
+  static Element getSignatureElement(Document doc) {
+    Element signature = getChildElement(doc.getDocumentElement(), "Signature");
+    if (signature != null) {
+      return signature;
     }
+
+    NodeList nodes = doc.getElementsByTagNameNS(Constants.SignatureSpecNS, "Signature");
+    return (nodes.getLength() > 0) ? (Element)nodes.item(0) : null;
   }
 
   /**
-   * This passes through the nodes of the document looking for the Reference Id and
-   * then assigns that Id to the root node of the document.
+   * Gets the first child of an element that is in the signature namespace and has
+   * a particular local name.
    *
-   * @param doc SAML Response document
-   * @throws GuanxiException if an error occurs
+   * @param parent the element whose children to look through
+   * @param localName the local name of the child to look for
+   * @return the child element or null if there isn't one
    */
-  private static void setIdNode(Document doc) throws GuanxiException {
-    try {
-      // Look for the Reference node in the Signature...
-      NodeList sigReference = (NodeList)referencePath.evaluate(doc, XPathConstants.NODESET);
-
-      // ...to see if it has a value...
-      if (sigReference.getLength() > 0 &&
-          sigReference.item(0).getAttributes() != null &&
-          sigReference.item(0).getAttributes().getNamedItem("URI") != null &&
-          sigReference.item(0).getAttributes().getNamedItem("URI").getTextContent() != "") {
-        // ...and mark the attribute with that value as an ID attribute
-        // Shibboleth
-        if ((doc.getDocumentElement().getAttribute("ResponseID") != null) &&
-            (!doc.getDocumentElement().getAttribute("ResponseID").equals(""))) {
-          doc.getDocumentElement().setIdAttribute("ResponseID", true);
-        }
-        // SAML2
-        else if ((doc.getDocumentElement().getAttribute("ID") != null) &&
-                 (!doc.getDocumentElement().getAttribute("ID").equals(""))) {
-          doc.getDocumentElement().setIdAttribute("ID", true);
-        }
+  private static Element getChildElement(Element parent, String localName) {
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if ((child.getNodeType() == Node.ELEMENT_NODE) &&
+          (Constants.SignatureSpecNS.equals(child.getNamespaceURI())) &&
+          (localName.equals(child.getLocalName()))) {
+        return (Element)child;
       }
     }
-    catch(XPathExpressionException xee) {
-      throw new GuanxiException(xee);
+
+    return null;
+  }
+
+  /**
+   * Looks for the Reference URI in a signature and, if it has one, marks the
+   * signed ID attribute of the root node of the document as an ID.
+   * This works directly on the DOM so it's safe for any number of threads to
+   * use it at the same time.
+   *
+   * @param doc SAML Response document
+   * @param sigElement the signature in the document
+   */
+  static void setIdNode(Document doc, Element sigElement) {
+    // Look for the Reference node in the Signature...
+    Element signedInfo = getChildElement(sigElement, "SignedInfo");
+    Element sigReference = (signedInfo != null) ? getChildElement(signedInfo, "Reference") : null;
+
+    // ...to see if it has a value...
+    if ((sigReference != null) && (sigReference.getAttribute("URI").length() > 0)) {
+      // ...and mark the attribute with that value as an ID attribute
+      // Shibboleth
+      if (!doc.getDocumentElement().getAttribute("ResponseID").equals("")) {
+        doc.getDocumentElement().setIdAttribute("ResponseID", true);
+      }
+      // SAML2
+      else if (!doc.getDocumentElement().getAttribute("ID").equals("")) {
+        doc.getDocumentElement().setIdAttribute("ID", true);
+      }
     }
   }
 
@@ -600,6 +1081,21 @@ public class TrustUtils {
    * @throws GuanxiException if an error occurs
    */
   public static X509Certificate[] getX509CertsFromMetadata(SSODescriptorType[] entityDescriptors) throws GuanxiException {
+    return getX509CertsFromMetadata(entityDescriptors, X509CertificateCache.getSharedCache());
+  }
+
+  /**
+   * Extracts X509 certificates from a SAML2 EntityDescriptor. Certificates are only parsed
+   * if they aren't already in the cache.
+   *
+   * @param entityDescriptors The SAML2 metadata which may contain the certificates. This can either be
+   * an IDPSSODescriptor or an SPSSODescriptor
+   * @param certCache The cache of certificates parsed from metadata
+   * @return array of X509Certificate objects created from the metadata
+   * @throws GuanxiException if an error occurs
+   */
+  public static X509Certificate[] getX509CertsFromMetadata(SSODescriptorType[] entityDescriptors,
+                                                           X509CertificateCache certCache) throws GuanxiException {
     if (entityDescriptors == null) {
       return null;
     }
@@ -623,24 +1119,14 @@ public class TrustUtils {
 
                   // SSODescriptor/KeyDescriptor/KeyInfo/X509Data/X509Certificate
                   try {
-                    CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
-
                     for (byte[] x509bytes : x509bytesArray) {
-                      ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509bytes);
-                      X509Certificate x509CertFromMetadata = (X509Certificate)certFactory.generateCertificate(certByteStream);
-                      certByteStream.close();
-
-                      x509Certs.add(x509CertFromMetadata);
+                      x509Certs.add(certCache.getCertificate(x509bytes));
                     } // for (byte[] x509bytes : x509bytesArray)
                   }
                   catch(CertificateException ce) {
-                    logger.error("Error obtaining certificate factory", ce);
+                    logger.error("Error parsing certificate from metadata", ce);
                     throw new GuanxiException(ce);
                   }
-                  catch(IOException ioe) {
-                    logger.error("Error closing certificate byte stream", ioe);
-                    throw new GuanxiException(ioe);
-                  }
                 } // if (x509.getX509CertificateArray() != null)
               }
             }
@@ -719,18 +1205,23 @@ public class TrustUtils {
    */
   public static boolean checkCertfingerprints(X509Certificate cert1, X509Certificate cert2) throws GuanxiException {
     try {
-      MessageDigest md = MessageDigest.getInstance("SHA1");
-
-      md.update(cert1.getEncoded());
-      byte[] cert1Fingerprint = md.digest();
-
-      md.update(cert2.getEncoded());
-      byte[] cert2Fingerprint = md.digest();
-
-      return byteArrayToHexString(cert1Fingerprint).equals(byteArrayToHexString(cert2Fingerprint));
+      return CertFingerprint.of(cert1).equals(CertFingerprint.of(cert2));
+    }
+    catch(CertificateEncodingException cee) {
+      throw new GuanxiException(cee);
     }
-    catch(NoSuchAlgorithmException nsae) {
-      throw new GuanxiException(nsae);
+  }
+
+  /**
+   * Returns the SHA-1 fingerprint of an X509 certificate.
+   *
+   * @param cert X509Certificate
+   * @return hex representation of the fingerprint
+   * @throws GuanxiException if an error occurred
+   */
+  public static String getCertFingerprint(X509Certificate cert) throws GuanxiException {
+    try {
+      return CertFingerprint.of(cert).toString();
     }
     catch(CertificateEncodingException cee) {
       throw new GuanxiException(cee);
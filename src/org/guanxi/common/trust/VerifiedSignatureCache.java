@@ -0,0 +1,240 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.security.JCAEngines;
+import org.guanxi.xal.saml_1_0.protocol.ResponseDocument;
+import org.guanxi.xal.saml_1_0.assertion.AssertionType;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers whether the signature on a SAML Response verified so that the same message
+ * presented again, e.g. by a browser retrying a POST, isn't verified all over again.
+ * A result is keyed on the SHA-256 digest of the exact bytes the message was received
+ * as and the fingerprint of the signer's key. Verifying a signature only depends on the
+ * message and the key, so the same bytes verified with the same key always give the
+ * same result and a remembered one is used without canonicalising or digesting anything.
+ * Any change to the message, however small, is a different key and is verified in full.
+ * Results are remembered until the earliest NotOnOrAfter of the Response's assertions,
+ * up to a maximum time.
+ *
+ * Only messages whose trust evaluation was created with TrustEvaluationContext.fromReceivedBytes
+ * can be remembered, as the message verified is then always the one parsed from the bytes
+ * the result is keyed on. Others are always verified in full.
+ *
+ * This only answers "does the signature verify?". It says nothing about whether the
+ * Response has been seen before, so replay detection must still be done separately.
+ *
+ * @author alistair
+ */
+public class VerifiedSignatureCache {
+  /** The default maximum time in milliseconds to remember a result */
+  public static final long DEFAULT_MAX_TTL = 5 * 60 * 1000;
+  /** The default maximum number of results to remember */
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  /** The maximum time to remember a result */
+  private long maxTTL;
+  /** The maximum number of results to remember */
+  private int maxEntries;
+  /** The verification results, keyed on the message's bytes and the signer's key */
+  private ConcurrentHashMap<MessageKey, Result> results = null;
+
+  /**
+   * Creates a cache with the default settings
+   */
+  public VerifiedSignatureCache() {
+    this(DEFAULT_MAX_TTL, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Creates a cache with specific settings
+   *
+   * @param maxTTL the maximum time in milliseconds to remember a result
+   * @param maxEntries the maximum number of results to remember
+   */
+  public VerifiedSignatureCache(long maxTTL, int maxEntries) {
+    this.maxTTL = maxTTL;
+    this.maxEntries = maxEntries;
+    results = new ConcurrentHashMap<MessageKey, Result>();
+  }
+
+  /**
+   * Verifies the signature on the message in a trust evaluation with the certificate
+   * from the signature's KeyInfo, using the remembered result if the same bytes have
+   * been verified with the same key before.
+   *
+   * @param context The trust evaluation for the SAML Response
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if the message isn't signed or an error occurs
+   */
+  public boolean verify(TrustEvaluationContext context) throws GuanxiException {
+    // The key has to come from the KeyInfo to be worked out without a DOM
+    byte[] receivedBytes = context.getReceivedBytes();
+    if ((receivedBytes == null) || (context.getKeyInfo() == null)) {
+      return TrustUtils.verifySignature(context);
+    }
+
+    MessageKey key = new MessageKey(digest(receivedBytes), context.getSignerKeyFingerprint());
+
+    long now = System.currentTimeMillis();
+    Result result = results.get(key);
+    if ((result != null) && (result.expires > now)) {
+      return result.valid;
+    }
+
+    boolean valid = TrustUtils.verifySignature(context);
+    remember(key, new Result(valid, getExpiry(context, now)), now);
+    return valid;
+  }
+
+  /**
+   * Forgets all the remembered results
+   */
+  public void clear() {
+    results.clear();
+  }
+
+  /** @return the number of remembered results */
+  public int size() {
+    return results.size();
+  }
+
+  /**
+   * Remembers a result if it's still current
+   *
+   * @param key the message's bytes and signer's key
+   * @param result whether the signature verified
+   * @param now the current time in milliseconds
+   */
+  private void remember(MessageKey key, Result result, long now) {
+    if (result.expires > now) {
+      if (results.size() >= maxEntries) {
+        purge(now);
+      }
+      results.put(key, result);
+    }
+  }
+
+  /**
+   * Works out how long a result can be remembered, which is until the first of
+   * the Response's assertions stops being valid, or the maximum time if that's sooner.
+   *
+   * @param context The trust evaluation for the SAML Response
+   * @param now the current time in milliseconds
+   * @return when the result should be forgotten
+   */
+  private long getExpiry(TrustEvaluationContext context, long now) {
+    long expires = now + maxTTL;
+
+    if (!(context.getMessage() instanceof ResponseDocument)) {
+      return expires;
+    }
+
+    AssertionType[] assertions = ((ResponseDocument)context.getMessage()).getResponse().getAssertionArray();
+    if (assertions != null) {
+      for (AssertionType assertion : assertions) {
+        if ((assertion.getConditions() != null) && (assertion.getConditions().isSetNotOnOrAfter())) {
+          expires = Math.min(expires, assertion.getConditions().getNotOnOrAfter().getTimeInMillis());
+        }
+      }
+    }
+
+    return expires;
+  }
+
+  /**
+   * Makes room by removing expired results, or everything if nothing has expired
+   *
+   * @param now the current time in milliseconds
+   */
+  private void purge(long now) {
+    for (Iterator<Map.Entry<MessageKey, Result>> entries = results.entrySet().iterator(); entries.hasNext();) {
+      if (entries.next().getValue().expires <= now) {
+        entries.remove();
+      }
+    }
+
+    if (results.size() >= maxEntries) {
+      results.clear();
+    }
+  }
+
+  /**
+   * Works out the SHA-256 digest of a message's bytes
+   *
+   * @param message The bytes the message was received as
+   * @return the digest
+   * @throws GuanxiException if an error occurs
+   */
+  private static byte[] digest(byte[] message) throws GuanxiException {
+    try {
+      return JCAEngines.getMessageDigest("SHA-256").digest(message);
+    }
+    catch(NoSuchAlgorithmException nsae) {
+      throw new GuanxiException(nsae);
+    }
+  }
+
+  /**
+   * The remembered outcome of verifying a signature
+   */
+  private static final class Result {
+    private final boolean valid;
+    private final long expires;
+
+    Result(boolean valid, long expires) {
+      this.valid = valid;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Map key made from the digest of the message's bytes and the fingerprint of the signer's key
+   */
+  private static final class MessageKey {
+    private final byte[] messageDigest;
+    private final CertFingerprint keyFingerprint;
+    private final int hash;
+
+    MessageKey(byte[] messageDigest, CertFingerprint keyFingerprint) {
+      this.messageDigest = messageDigest;
+      this.keyFingerprint = keyFingerprint;
+      hash = (31 * Arrays.hashCode(messageDigest)) + keyFingerprint.hashCode();
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof MessageKey)) {
+        return false;
+      }
+      MessageKey other = (MessageKey)obj;
+      return Arrays.equals(messageDigest, other.messageDigest) && keyFingerprint.equals(other.keyFingerprint);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+package org.guanxi.common.trust.impl;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.AsyncTrustEngine;
+import org.guanxi.common.trust.TrustEngine;
+import org.guanxi.common.trust.TrustExecutors;
+import org.guanxi.common.trust.TrustResult;
+
+import java.util.concurrent.*;
+
+/**
+ * Makes any TrustEngine, e.g. a SimpleTrustEngine subclass, available as an
+ * AsyncTrustEngine by running its trustEntity method on an executor. The executor
+ * is normally injected. If it isn't, the pool shared through TrustExecutors is used.
+ *
+ * @author alistair
+ */
+public class AsyncTrustEngineAdapter implements AsyncTrustEngine {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(AsyncTrustEngineAdapter.class.getName());
+
+  /** The engine that makes the decisions */
+  private TrustEngine trustEngine = null;
+  /** Where the decisions are made */
+  private ExecutorService executor = null;
+
+  /**
+   * Creates an adapter for an engine
+   *
+   * @param trustEngine the engine that makes the decisions
+   */
+  public AsyncTrustEngineAdapter(TrustEngine trustEngine) {
+    this.trustEngine = trustEngine;
+  }
+
+  /** @see org.guanxi.common.trust.AsyncTrustEngine#trustEntityAsync(org.guanxi.common.metadata.Metadata, Object) */
+  public Future<TrustResult> trustEntityAsync(Metadata entityMetadata, Object entityData) {
+    return trustEntityAsync(entityMetadata, entityData, null);
+  }
+
+  /** @see org.guanxi.common.trust.AsyncTrustEngine#trustEntityAsync(org.guanxi.common.metadata.Metadata, Object, org.guanxi.common.trust.AsyncTrustEngine.TrustCallback) */
+  public Future<TrustResult> trustEntityAsync(final Metadata entityMetadata, final Object entityData,
+                                              final TrustCallback callback) {
+    return getExecutor().submit(new Callable<TrustResult>() {
+      public TrustResult call() {
+        TrustResult result = trustEntity(entityMetadata, entityData);
+        if (callback != null) {
+          try {
+            callback.trustDecided(entityMetadata, result);
+          }
+          catch(RuntimeException re) {
+            // The decision still stands
+            logger.error("Trust callback failed for " + entityMetadata.getEntityID(), re);
+          }
+        }
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Asks the engine whether to trust the entity and records why. Anything the
+   * engine throws becomes an untrusted result with the error.
+   *
+   * @param entityMetadata the Metadata for the entity
+   * @param entityData entity specific data
+   * @return the decision
+   */
+  private TrustResult trustEntity(Metadata entityMetadata, Object entityData) {
+    String engineName = trustEngine.getClass().getName();
+    try {
+      if (trustEngine.trustEntity(entityMetadata, entityData)) {
+        return new TrustResult(true, entityMetadata.getEntityID() + " trusted by " + engineName);
+      }
+      return new TrustResult(false, entityMetadata.getEntityID() + " not trusted by " + engineName);
+    }
+    catch(GuanxiException ge) {
+      return new TrustResult("Error deciding trust for " + entityMetadata.getEntityID() + " in " + engineName, ge);
+    }
+    catch(RuntimeException re) {
+      // A broken engine still gets an answer back to the caller and the callback
+      logger.error("Trust engine " + engineName + " failed for " + entityMetadata.getEntityID(), re);
+      return new TrustResult("Error deciding trust for " + entityMetadata.getEntityID() + " in " + engineName, re);
+    }
+  }
+
+  /** @return the engine that makes the decisions */
+  public TrustEngine getTrustEngine() {
+    return trustEngine;
+  }
+
+  /**
+   * Sets where the decisions are made. This is normally injected.
+   *
+   * @param executor the executor to run the decisions on
+   */
+  public synchronized void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Gets the executor, falling back to the shared pool if there isn't one
+   *
+   * @return the executor to run the decisions on
+   */
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      return TrustExecutors.getSharedExecutor();
+    }
+    return executor;
+  }
+}
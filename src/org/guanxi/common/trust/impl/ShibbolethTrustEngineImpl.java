@@ -19,12 +19,19 @@ package org.guanxi.common.trust.impl;
 import org.guanxi.common.metadata.Metadata;
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.common.trust.EntityKeyIndex;
+import org.guanxi.common.trust.TrustMetrics;
+import org.guanxi.common.trust.TrustEvaluationContext;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
 import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
 import org.guanxi.xal.saml_1_0.protocol.ResponseDocument;
 import org.apache.xml.security.Init;
 import org.apache.log4j.Logger;
 
+import java.lang.ref.WeakReference;
+import java.security.PublicKey;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * TrustEngine implementation that implements the rules of a Shibboleth federation such
@@ -36,9 +43,16 @@ public class ShibbolethTrustEngineImpl extends SimpleTrustEngine {
   /** Our logger */
   private static final Logger logger = Logger.getLogger(ShibbolethTrustEngineImpl.class.getName());
 
+  /** Which validation last worked for each entity, keyed on entityID */
+  private ConcurrentHashMap<String, LearnedStrategy> learnedStrategies = null;
+  /** Whether to verify signatures with the keys from metadata rather than the certificate in the message */
+  private boolean resolveKeysFromMetadata = false;
+
   public ShibbolethTrustEngineImpl() {
     super();
 
+    learnedStrategies = new ConcurrentHashMap<String, LearnedStrategy>();
+
     // Initialise the Apache security engine
     Init.init();
   }
@@ -47,45 +61,273 @@ public class ShibbolethTrustEngineImpl extends SimpleTrustEngine {
    *  @link http://www.guanxi.uhi.ac.uk/index.php/Metadata_and_trust_in_the_UK_Access_Management_Federation
    * */
   public boolean trustEntity(Metadata entityMetadata, Object entityData) throws GuanxiException {
-    // Handler private data is raw SAML2 metadata
-    EntityDescriptorType saml2Metadata = (EntityDescriptorType)entityMetadata.getPrivateData();
+    long start = metrics.start();
+    TrustMetrics.Outcome outcome = TrustMetrics.Outcome.ERROR;
+    try {
+      outcome = evaluate(entityMetadata, entityData, start);
+      return (outcome == TrustMetrics.Outcome.EMBEDDED) || (outcome == TrustMetrics.Outcome.PKIX);
+    }
+    finally {
+      metrics.outcome(entityMetadata.getEntityID(), outcome, start);
+    }
+  }
+
+  /**
+   * Applies the rules of the federation to an entity, timing each stage
+   *
+   * @param entityMetadata the Metadata for the entity
+   * @param entityData the SAML Response from an IdP, a TrustEvaluationContext for it, or the X509 from a back channel connection
+   * @param time when the decision started, from metrics.start()
+   * @return how the entity came to be trusted, or REJECTED
+   * @throws GuanxiException if an error occurs
+   */
+  private TrustMetrics.Outcome evaluate(Metadata entityMetadata, Object entityData, long time) throws GuanxiException {
+    /* Guanxi metadata comes with its embedded keys already indexed, so there's no need
+     * to have it parse the raw SAML2 metadata again. What's learned about an entity is
+     * tied to whichever of them is in use so it's forgotten when the metadata changes.
+     */
+    EntityDescriptorType saml2Metadata = null;
+    EntityKeyIndex keyIndex = null;
+    Object learnedFrom;
+    if ((entityMetadata instanceof GuanxiSAML2MetadataImpl) &&
+        (((GuanxiSAML2MetadataImpl)entityMetadata).getDescriptor() != null)) {
+      keyIndex = ((GuanxiSAML2MetadataImpl)entityMetadata).getKeyIndex();
+      learnedFrom = ((GuanxiSAML2MetadataImpl)entityMetadata).getDescriptor();
+    }
+    else {
+      // Handler private data is raw SAML2 metadata
+      saml2Metadata = (EntityDescriptorType)entityMetadata.getPrivateData();
+      learnedFrom = saml2Metadata;
+    }
+
+    // Everything worked out about the message or connection is shared by the steps below
+    TrustEvaluationContext context;
+    int entityType;
 
     // Message level validation
-    if (entityData instanceof ResponseDocument) {
-      // Entity data is the SAML Response from the IdP
-      ResponseDocument samlResponse = (ResponseDocument)entityData;
+    if ((entityData instanceof ResponseDocument) ||
+        ((entityData instanceof TrustEvaluationContext) &&
+         (((TrustEvaluationContext)entityData).getMessage() instanceof ResponseDocument))) {
+      /* Entity data is the SAML Response from the IdP, or a trust evaluation for it
+       * with the bytes it was received as so the signature cache can use them.
+       */
+      if (entityData instanceof ResponseDocument) {
+        context = new TrustEvaluationContext((ResponseDocument)entityData);
+      }
+      else {
+        context = (TrustEvaluationContext)entityData;
+      }
+      entityType = TrustUtils.ENTITY_TYPE_SSO;
+
+      /* If the signature verifies with a key from the entity's own metadata, that's
+       * explicit key trust and there's no need to look at the certificate in the message.
+       */
+      if ((resolveKeysFromMetadata) && (keyIndex != null) && (verifyWithMetadataKey(keyIndex, context))) {
+        metrics.record(TrustMetrics.Stage.VERIFY_SIGNATURE, time);
+        return TrustMetrics.Outcome.EMBEDDED;
+      }
 
       // First thing is check to see if the signature verifies
-      if (!TrustUtils.verifySignature(samlResponse)) {
+      boolean verified;
+      if (signatureCache != null) {
+        verified = signatureCache.verify(context);
+      }
+      else {
+        verified = TrustUtils.verifySignature(context);
+      }
+      time = metrics.record(TrustMetrics.Stage.VERIFY_SIGNATURE, time);
+      if (!verified) {
         logger.error("IdP signature failed validation");
-        return false;
+        return TrustMetrics.Outcome.REJECTED;
       }
 
-      // Validation via embedded certificates
-      X509Certificate x509CertFromSig = TrustUtils.getX509CertFromSignature(samlResponse);
-      if (TrustUtils.validateEmbeddedCert(saml2Metadata, new X509Certificate[] {x509CertFromSig}, TrustUtils.ENTITY_TYPE_SSO)) {
-        return true;
+      context.getSignerCertificate();
+      time = metrics.record(TrustMetrics.Stage.EXTRACT_CERTIFICATE, time);
+    }
+    // Back channel connection validation
+    else if (entityData instanceof X509Certificate) {
+      // Entity data is the X509 from the connection
+      context = new TrustEvaluationContext((X509Certificate)entityData);
+      entityType = TrustUtils.ENTITY_TYPE_AA;
+    }
+    else {
+      return TrustMetrics.Outcome.REJECTED;
+    }
+
+    /* Try whichever of embedded and PKIX validation last worked for the entity first.
+     * Most entities only ever pass one of them so this saves doing the other on every request.
+     */
+    LearnedStrategy learned = getLearnedStrategy(entityMetadata.getEntityID(), learnedFrom);
+    if ((learned != null) && (learned.isPKIXFirst(entityType))) {
+      if (validatePKIX(keyIndex, saml2Metadata, entityMetadata.getHostName(), context, entityType)) {
+        metrics.record(TrustMetrics.Stage.PKIX, time);
+        return TrustMetrics.Outcome.PKIX;
       }
+      time = metrics.record(TrustMetrics.Stage.PKIX, time);
 
-      // Validation via PKIX
-      if (TrustUtils.validatePKIX((ResponseDocument)entityData, saml2Metadata, caCerts, entityMetadata.getHostName())) {
-        return true;
+      boolean trusted = validateEmbeddedCert(keyIndex, saml2Metadata, context, entityType);
+      metrics.record(TrustMetrics.Stage.EMBEDDED_CERT, time);
+      if (trusted) {
+        learn(entityMetadata.getEntityID(), learnedFrom, entityType, false);
+        return TrustMetrics.Outcome.EMBEDDED;
       }
+      return TrustMetrics.Outcome.REJECTED;
     }
 
-    // Back channel connection validation
-    if (entityData instanceof X509Certificate) {
-      // Entity data is the X509 from the connection
-      X509Certificate x509CertFromConnection = (X509Certificate)entityData;
+    // Validation via embedded certificates
+    boolean trusted = validateEmbeddedCert(keyIndex, saml2Metadata, context, entityType);
+    time = metrics.record(TrustMetrics.Stage.EMBEDDED_CERT, time);
+    if (trusted) {
+      return TrustMetrics.Outcome.EMBEDDED;
+    }
+
+    // Validation via PKIX
+    trusted = validatePKIX(keyIndex, saml2Metadata, entityMetadata.getHostName(), context, entityType);
+    metrics.record(TrustMetrics.Stage.PKIX, time);
+    if (trusted) {
+      learn(entityMetadata.getEntityID(), learnedFrom, entityType, true);
+      return TrustMetrics.Outcome.PKIX;
+    }
+    return TrustMetrics.Outcome.REJECTED;
+  }
 
-      if (!TrustUtils.validateEmbeddedCert(saml2Metadata, new X509Certificate[] {x509CertFromConnection}, TrustUtils.ENTITY_TYPE_AA)) {
-        return TrustUtils.validatePKIXBC(x509CertFromConnection, saml2Metadata, caCerts, entityMetadata.getHostName());
+  /**
+   * Verifies the signature on a SAML Response with the keys from the entity's metadata
+   * that the signature's KeyInfo points to. Nothing in the KeyInfo is parsed.
+   *
+   * @param keyIndex The index of keys embedded in the entity's metadata
+   * @param context The trust evaluation for the SAML Response from the IdP
+   * @return true if the signature verifies with one of the keys, otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  private boolean verifyWithMetadataKey(EntityKeyIndex keyIndex, TrustEvaluationContext context) throws GuanxiException {
+    for (PublicKey key : keyIndex.resolveKeys(context.getKeyInfo(), TrustUtils.ENTITY_TYPE_SSO)) {
+      if (TrustUtils.verifySignature(context, key)) {
+        return true;
       }
+    }
+    return false;
+  }
 
-      return true;
+  /**
+   * Sets whether signatures are verified with the keys from the entity's metadata, found
+   * from the hints in the signature's KeyInfo, before falling back to the certificate in
+   * the message. This is normally injected.
+   *
+   * @param resolveKeysFromMetadata true to try the keys from metadata first
+   */
+  public void setResolveKeysFromMetadata(boolean resolveKeysFromMetadata) {
+    this.resolveKeysFromMetadata = resolveKeysFromMetadata;
+  }
+
+  /**
+   * Finds which validation last worked for an entity. What was learned from
+   * older metadata for the entity is ignored.
+   *
+   * @param entityID the entity
+   * @param metadata the entity's current metadata
+   * @return what was learned or null if nothing has been learned from the current metadata
+   */
+  private LearnedStrategy getLearnedStrategy(String entityID, Object metadata) {
+    if (entityID == null) {
+      return null;
     }
+    LearnedStrategy learned = learnedStrategies.get(entityID);
+    if ((learned == null) || (learned.metadata.get() != metadata)) {
+      return null;
+    }
+    return learned;
+  }
 
+  /**
+   * Remembers which validation worked for an entity
+   *
+   * @param entityID the entity
+   * @param metadata the entity's current metadata
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO or TrustUtils.ENTITY_TYPE_AA
+   * @param pkix true if PKIX validation worked, false if embedded validation did
+   */
+  private void learn(String entityID, Object metadata, int entityType, boolean pkix) {
+    if (entityID == null) {
+      return;
+    }
+    LearnedStrategy learned = getLearnedStrategy(entityID, metadata);
+    if (learned == null) {
+      learned = new LearnedStrategy(metadata);
+      learnedStrategies.put(entityID, learned);
+    }
+    learned.setPKIXFirst(entityType, pkix);
+  }
 
-    return false;
+  /** @see org.guanxi.common.trust.TrustEngine#reset() */
+  public void reset() {
+    super.reset();
+    learnedStrategies.clear();
+  }
+
+  /**
+   * Performs PKIX validation, using the entity's key index if there is one
+   *
+   * @param keyIndex The index of keys embedded in the entity's metadata. Can be null
+   * @param saml2Metadata The SAML2 metadata for the entity. Only used if there's no key index
+   * @param hostName The hostname for the validation context
+   * @param context The trust evaluation for the message signature or secure connection
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO or TrustUtils.ENTITY_TYPE_AA
+   * @return true if PKIX validation passes, otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  protected boolean validatePKIX(EntityKeyIndex keyIndex, EntityDescriptorType saml2Metadata, String hostName,
+                                 TrustEvaluationContext context, int entityType) throws GuanxiException {
+    if (keyIndex != null) {
+      return TrustUtils.validatePKIX(context, keyIndex, entityType, chainBuilder, hostName, pkixCache, revocationStore);
+    }
+    return TrustUtils.validatePKIX(context, saml2Metadata, entityType, chainBuilder, hostName, pkixCache, revocationStore);
+  }
+
+  /**
+   * Performs explicit key validation, using the entity's key index if there is one
+   *
+   * @param keyIndex The index of keys embedded in the entity's metadata. Can be null
+   * @param saml2Metadata The SAML2 metadata for the entity. Only used if there's no key index
+   * @param context The trust evaluation for the message signature or secure connection
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO or TrustUtils.ENTITY_TYPE_AA
+   * @return true if explicit key validation passes, otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  protected boolean validateEmbeddedCert(EntityKeyIndex keyIndex, EntityDescriptorType saml2Metadata,
+                                         TrustEvaluationContext context, int entityType) throws GuanxiException {
+    if (keyIndex != null) {
+      return TrustUtils.validateEmbeddedCert(context, keyIndex, entityType);
+    }
+
+    return TrustUtils.validateEmbeddedCert(saml2Metadata, new X509Certificate[] {context.getSignerCertificate()},
+                                           entityType, certificateCache);
+  }
+
+  /**
+   * Which validation to try first for an entity. This only holds on to the metadata
+   * it was learned from weakly, so it doesn't keep old metadata in memory after a reload.
+   */
+  private static final class LearnedStrategy {
+    private final WeakReference<Object> metadata;
+    private volatile boolean ssoPKIXFirst = false;
+    private volatile boolean aaPKIXFirst = false;
+
+    LearnedStrategy(Object metadata) {
+      this.metadata = new WeakReference<Object>(metadata);
+    }
+
+    boolean isPKIXFirst(int entityType) {
+      return (entityType == TrustUtils.ENTITY_TYPE_SSO) ? ssoPKIXFirst : aaPKIXFirst;
+    }
+
+    void setPKIXFirst(int entityType, boolean pkixFirst) {
+      if (entityType == TrustUtils.ENTITY_TYPE_SSO) {
+        ssoPKIXFirst = pkixFirst;
+      }
+      else {
+        aaPKIXFirst = pkixFirst;
+      }
+    }
   }
 }
@@ -17,41 +17,407 @@
 package org.guanxi.common.trust.impl;
 
 import org.guanxi.common.trust.TrustEngine;
+import org.guanxi.common.trust.AsyncTrustEngine;
+import org.guanxi.common.trust.TrustResult;
+import org.guanxi.common.trust.TrustMetrics;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.CAStore;
+import org.guanxi.common.trust.CertChainBuilder;
+import org.guanxi.common.trust.PKIXValidationCache;
+import org.guanxi.common.trust.VerifiedSignatureCache;
+import org.guanxi.common.trust.RevocationStore;
+import org.guanxi.common.trust.TrustAnchors;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.security.CertFingerprint;
 
+import java.io.File;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.security.cert.X509CRL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Abstract TrustEngine for more specialised implementations to use
  *
+ * As well as the TrustEngine methods, this lets the trust anchors be replaced in one
+ * go and holds the intermediate CAs, the certificate cache and the CRLs the engine
+ * works with. Callers that only have a TrustEngine should check for a SimpleTrustEngine
+ * before using them.
+ *
  * @author alistair
  */
-public abstract class SimpleTrustEngine implements TrustEngine {
+public abstract class SimpleTrustEngine implements TrustEngine, AsyncTrustEngine {
   /** The CA store used for trust anchors */
+  protected CAStore caStore = null;
+  /**
+   * The trust anchors, as they were held before the CAStore. This is kept in step with
+   * the CAStore, and adding, removing or clearing CAs through it changes the CAStore.
+   *
+   * @deprecated use caStore
+   */
+  @Deprecated
   protected Vector<X509Certificate> caCerts = null;
+  /** Builds certificate paths to the trust anchors through any intermediates */
+  protected CertChainBuilder chainBuilder = null;
+  /** Certificates parsed from the metadata this engine works with */
+  protected X509CertificateCache certificateCache = null;
+  /** Remembered results of PKIX path validation */
+  protected PKIXValidationCache pkixCache = null;
+  /** Locally held CRLs */
+  protected RevocationStore revocationStore = null;
+  /** Remembered results of signature verification. Null unless turned on */
+  protected VerifiedSignatureCache signatureCache = null;
+  /** Timings of the engine's decisions */
+  protected TrustMetrics metrics = null;
+  /** Runs trustEntity in the background for trustEntityAsync */
+  protected AsyncTrustEngineAdapter asyncAdapter = null;
+  /** The trust anchors from each metadata source, keyed on the source */
+  private final LinkedHashMap<String, TrustAnchors> sourceAnchors = new LinkedHashMap<String, TrustAnchors>();
+  /** The fingerprints of the CAs in the CA store that came from the metadata sources */
+  private HashSet<CertFingerprint> sourceCACerts = new HashSet<CertFingerprint>();
 
   /**
    * Default constructor
    */
   protected SimpleTrustEngine() {
     // New CA store
-    caCerts = new Vector<X509Certificate>();
+    caStore = new CAStore();
+    caCerts = new CAStoreVector();
+    chainBuilder = new CertChainBuilder(caStore);
+    certificateCache = new X509CertificateCache();
+    pkixCache = new PKIXValidationCache();
+    revocationStore = new RevocationStore();
+    metrics = new TrustMetrics();
+    asyncAdapter = new AsyncTrustEngineAdapter(this);
   }
 
   /** @see org.guanxi.common.trust.TrustEngine#addCACert(java.security.cert.X509Certificate) */
   public void addCACert(X509Certificate x509CACert) {
-    caCerts.add(x509CACert);
+    caStore.add(x509CACert);
+    caStoreChanged();
+  }
+
+  /**
+   * Replaces all the CA X509 certificates in the trust engine in one go.
+   * Trust decisions being made while the CAs are replaced see either the
+   * old CAs or the new ones, never a mixture.
+   *
+   * @param x509CACerts X509Certificates of all the trusted CAs
+   */
+  public void setCACerts(X509Certificate[] x509CACerts) {
+    caStore.setAll(x509CACerts);
+    caStoreChanged();
+  }
+
+  /**
+   * Replaces all the intermediate CA X509 certificates in the trust engine in one go.
+   * Intermediates aren't trusted themselves but a path from an entity's certificate
+   * to a trust anchor can go through them.
+   *
+   * @param x509IntermediateCerts X509Certificates of all the intermediate CAs
+   */
+  public void setIntermediateCerts(X509Certificate[] x509IntermediateCerts) {
+    chainBuilder.setIntermediates(x509IntermediateCerts);
+  }
+
+  /**
+   * Retrieves all the intermediate CA certs the trust engine can build paths through
+   *
+   * @return Array of X509Certificate objects representing the intermediate CAs
+   */
+  public X509Certificate[] getIntermediateCerts() {
+    return chainBuilder.getIntermediates();
+  }
+
+  /**
+   * Sets how many CAs a certificate path can have, including the trust anchor,
+   * as the VerifyDepth of a shibmeta:KeyAuthority does. The default is 1, i.e.
+   * no intermediates.
+   *
+   * @param verifyDepth the number of CAs allowed in a path
+   */
+  public void setVerifyDepth(int verifyDepth) {
+    chainBuilder.setVerifyDepth(verifyDepth);
+  }
+
+  /**
+   * Replaces the trust anchors from one metadata source. The engine trusts the CAs,
+   * intermediates and CRLs from all its sources, and a path can be as long as the
+   * largest VerifyDepth of any of them, so sources sharing the engine don't replace
+   * each other's trust anchors. CAs added with addCACert are kept.
+   *
+   * @param source the metadata source, e.g. its URL
+   * @param anchors the source's trust anchors, or null if it doesn't have any
+   * @throws CertificateEncodingException if a CA can't be fingerprinted
+   */
+  public synchronized void setTrustAnchors(String source, TrustAnchors anchors) throws CertificateEncodingException {
+    if (anchors != null) {
+      sourceAnchors.put(source, anchors);
+    }
+    else {
+      sourceAnchors.remove(source);
+    }
+
+    // Merge the trust anchors from all the sources
+    LinkedHashMap<CertFingerprint, X509Certificate> sourceCAs = new LinkedHashMap<CertFingerprint, X509Certificate>();
+    LinkedHashMap<CertFingerprint, X509Certificate> intermediates = new LinkedHashMap<CertFingerprint, X509Certificate>();
+    ArrayList<X509CRL> crls = new ArrayList<X509CRL>();
+    int verifyDepth = CertChainBuilder.DEFAULT_VERIFY_DEPTH;
+    for (TrustAnchors sourceAnchor : sourceAnchors.values()) {
+      for (X509Certificate caCert : sourceAnchor.getCACerts()) {
+        sourceCAs.put(CertFingerprint.of(caCert), caCert);
+      }
+      for (X509Certificate intermediateCert : sourceAnchor.getIntermediateCerts()) {
+        intermediates.put(CertFingerprint.of(intermediateCert), intermediateCert);
+      }
+      crls.addAll(Arrays.asList(sourceAnchor.getCRLs()));
+      verifyDepth = Math.max(verifyDepth, sourceAnchor.getVerifyDepth());
+    }
+
+    // Keep the CAs that didn't come from a source
+    LinkedHashMap<CertFingerprint, X509Certificate> allCAs = new LinkedHashMap<CertFingerprint, X509Certificate>();
+    HashSet<CertFingerprint> currentCAs = new HashSet<CertFingerprint>();
+    for (X509Certificate caCert : caStore.getAll()) {
+      CertFingerprint fingerprint = CertFingerprint.of(caCert);
+      currentCAs.add(fingerprint);
+      if (!sourceCACerts.contains(fingerprint)) {
+        allCAs.put(fingerprint, caCert);
+      }
+    }
+    allCAs.putAll(sourceCAs);
+
+    // Only forget the paths to the old CAs if they've changed
+    if (!allCAs.keySet().equals(currentCAs)) {
+      setCACerts(allCAs.values().toArray(new X509Certificate[allCAs.size()]));
+    }
+    sourceCACerts = new HashSet<CertFingerprint>(sourceCAs.keySet());
+    chainBuilder.setIntermediates(intermediates.values().toArray(new X509Certificate[intermediates.size()]));
+    chainBuilder.setVerifyDepth(verifyDepth);
+    revocationStore.setMetadataCRLs(crls);
+  }
+
+  /**
+   * Retrieves the trust anchors the engine has from one metadata source
+   *
+   * @param source the metadata source
+   * @return the source's trust anchors, or null if the engine doesn't have any from it
+   */
+  public synchronized TrustAnchors getTrustAnchors(String source) {
+    return sourceAnchors.get(source);
   }
 
   /** @see org.guanxi.common.trust.TrustEngine#getCACerts()  */
   public X509Certificate[] getCACerts() {
-    X509Certificate[] x509CACerts = new X509Certificate[caCerts.size()];
-    caCerts.copyInto(x509CACerts);
-    return x509CACerts;
+    return caStore.getAll();
+  }
+
+  /**
+   * Retrieves the cache the engine uses for certificates parsed from metadata.
+   * The cache is emptied when the engine is reset.
+   *
+   * @return the engine's certificate cache
+   */
+  public X509CertificateCache getCertificateCache() {
+    return certificateCache;
+  }
+
+  /**
+   * Retrieves the locally held CRLs the engine checks certificates against
+   * when it validates their path to a CA.
+   *
+   * @return the engine's revocation store
+   */
+  public RevocationStore getRevocationStore() {
+    return revocationStore;
+  }
+
+  /** @see org.guanxi.common.trust.AsyncTrustEngine#trustEntityAsync(org.guanxi.common.metadata.Metadata, Object) */
+  public Future<TrustResult> trustEntityAsync(Metadata entityMetadata, Object entityData) {
+    return asyncAdapter.trustEntityAsync(entityMetadata, entityData);
+  }
+
+  /** @see org.guanxi.common.trust.AsyncTrustEngine#trustEntityAsync(org.guanxi.common.metadata.Metadata, Object, org.guanxi.common.trust.AsyncTrustEngine.TrustCallback) */
+  public Future<TrustResult> trustEntityAsync(Metadata entityMetadata, Object entityData, TrustCallback callback) {
+    return asyncAdapter.trustEntityAsync(entityMetadata, entityData, callback);
+  }
+
+  /**
+   * Gets the timings of the engine's decisions. Timings are only recorded
+   * when they've been turned on.
+   *
+   * @return the engine's metrics
+   */
+  public TrustMetrics getMetrics() {
+    return metrics;
   }
 
   /** @see org.guanxi.common.trust.TrustEngine#reset() */
-  public void reset() {
-    caCerts.clear();
+  public synchronized void reset() {
+    sourceAnchors.clear();
+    sourceCACerts.clear();
+    caStore.clear();
+    caStoreChanged();
+    chainBuilder.setIntermediates(new X509Certificate[0]);
+    chainBuilder.setVerifyDepth(CertChainBuilder.DEFAULT_VERIFY_DEPTH);
+    certificateCache.invalidate();
+    pkixCache.clear();
+    revocationStore.setMetadataCRLs(Collections.<X509CRL>emptyList());
+    if (signatureCache != null) {
+      signatureCache.clear();
+    }
+  }
+
+  /**
+   * Sets how long a failed PKIX path validation is remembered. This is normally injected.
+   *
+   * @param seconds how long to remember a failed validation
+   */
+  public void setPkixFailureCacheSeconds(int seconds) {
+    pkixCache = new PKIXValidationCache(seconds * 1000L, PKIXValidationCache.DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Sets the longest time the result of verifying a message's signature is remembered,
+   * so that the same message presented again isn't verified again. This is normally
+   * injected. Results aren't remembered unless this is set to more than zero, and only
+   * for messages passed in a TrustEvaluationContext created from the bytes they were
+   * received as.
+   *
+   * @param seconds the longest time to remember a result
+   */
+  public void setVerifiedSignatureCacheSeconds(int seconds) {
+    if (seconds > 0) {
+      signatureCache = new VerifiedSignatureCache(seconds * 1000L, VerifiedSignatureCache.DEFAULT_MAX_ENTRIES);
+    }
+    else {
+      signatureCache = null;
+    }
+  }
+
+  /**
+   * Sets the directory to load CRL files from. This is normally injected.
+   *
+   * @param crlDirectory full path of the directory
+   */
+  public void setCrlDirectory(String crlDirectory) {
+    revocationStore.setCRLDirectory(new File(crlDirectory));
+  }
+
+  /**
+   * Sets how often the CRL directory is checked for changes. This is normally injected.
+   *
+   * @param seconds the time between checks
+   */
+  public void setCrlRefreshSeconds(int seconds) {
+    revocationStore.setRefreshInterval(seconds * 1000L);
+  }
+
+  /**
+   * Sets where trustEntityAsync makes its decisions. This is normally injected.
+   *
+   * @param executor the executor to run the decisions on
+   */
+  public void setAsyncExecutor(ExecutorService executor) {
+    asyncAdapter.setExecutor(executor);
+  }
+
+  /**
+   * Turns the timing of the engine's decisions on or off. This is normally injected.
+   *
+   * @param enabled whether to record timings
+   */
+  public void setMetricsEnabled(boolean enabled) {
+    metrics.setEnabled(enabled);
+  }
+
+  /**
+   * Makes the engine's timings available through JMX. This is normally injected.
+   *
+   * @param objectName the JMX name to register under, e.g. org.guanxi:type=TrustMetrics,name=idp
+   * @throws GuanxiException if the timings can't be registered
+   */
+  public void setMetricsObjectName(String objectName) throws GuanxiException {
+    metrics.register(objectName);
+  }
+
+  /**
+   * Forgets the paths built to the old trust anchors and brings caCerts into step
+   */
+  private void caStoreChanged() {
+    chainBuilder.clear();
+    if (caCerts instanceof CAStoreVector) {
+      ((CAStoreVector)caCerts).sync();
+    }
+  }
+
+  /**
+   * The deprecated caCerts Vector, kept in step with the CAStore. Adding, removing and
+   * clearing go through to the CAStore. Other changes only change the Vector.
+   */
+  private final class CAStoreVector extends Vector<X509Certificate> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Copies the CAStore's certificates into the Vector
+     */
+    synchronized void sync() {
+      super.removeAllElements();
+      for (X509Certificate caCert : caStore.getAll()) {
+        super.addElement(caCert);
+      }
+    }
+
+    public synchronized boolean add(X509Certificate caCert) {
+      addCACert(caCert);
+      return true;
+    }
+
+    public synchronized void addElement(X509Certificate caCert) {
+      addCACert(caCert);
+    }
+
+    public synchronized boolean addAll(Collection<? extends X509Certificate> caCerts) {
+      for (X509Certificate caCert : caCerts) {
+        caStore.add(caCert);
+      }
+      caStoreChanged();
+      return !caCerts.isEmpty();
+    }
+
+    public void clear() {
+      removeAllElements();
+    }
+
+    public synchronized void removeAllElements() {
+      caStore.clear();
+      caStoreChanged();
+    }
+
+    public boolean remove(Object caCert) {
+      return removeElement(caCert);
+    }
+
+    public synchronized boolean removeElement(Object caCert) {
+      ArrayList<X509Certificate> remaining = new ArrayList<X509Certificate>();
+      for (X509Certificate current : caStore.getAll()) {
+        if (!current.equals(caCert)) {
+          remaining.add(current);
+        }
+      }
+      if (remaining.size() == caStore.size()) {
+        return false;
+      }
+      setCACerts(remaining.toArray(new X509Certificate[remaining.size()]));
+      return true;
+    }
   }
 }
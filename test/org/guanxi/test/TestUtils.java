@@ -5,10 +5,33 @@ package org.guanxi.test;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
 import java.util.Map;
 import java.util.Random;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
 import org.junit.ComparisonFailure;
+import org.w3c.dom.Document;
 
 /**
  * @author matthew
@@ -63,4 +86,121 @@ public class TestUtils {
             assertEquals("Differing values for key '" + key.toString() + "'", expected.get(key), actual.get(key));
         }
     }
+    
+    /**
+     * This generates a new RSA key pair for use in test certificates.
+     * 
+     * @return the new key pair
+     * @throws Exception if the key pair can't be generated
+     */
+    public static KeyPair createKeyPair() throws Exception {
+        KeyPairGenerator keyGen;
+        
+        keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        return keyGen.generateKeyPair();
+    }
+    
+    /**
+     * This generates an X509 certificate for the subject's public key, signed
+     * by the issuer's private key. Pass the subject details as the issuer
+     * details to get a self signed certificate.
+     * 
+     * @param subjectDN the DN of the certificate subject, e.g. "CN=test"
+     * @param subjectKeys the key pair of the subject
+     * @param issuerDN the DN of the issuer
+     * @param issuerKey the private key of the issuer
+     * @return the new certificate
+     * @throws Exception if the certificate can't be generated
+     */
+    public static X509Certificate createCertificate(String subjectDN, KeyPair subjectKeys,
+                                                    String issuerDN, PrivateKey issuerKey) throws Exception {
+        return createCertificate(subjectDN, subjectKeys, issuerDN, issuerKey, false);
+    }
+    
+    /**
+     * This generates a CA certificate that can issue other certificates,
+     * otherwise the same as createCertificate.
+     * 
+     * @param subjectDN the DN of the CA
+     * @param subjectKeys the key pair of the CA
+     * @param issuerDN the DN of the issuer
+     * @param issuerKey the private key of the issuer
+     * @return the new certificate
+     * @throws Exception if the certificate can't be generated
+     */
+    public static X509Certificate createCACertificate(String subjectDN, KeyPair subjectKeys,
+                                                      String issuerDN, PrivateKey issuerKey) throws Exception {
+        return createCertificate(subjectDN, subjectKeys, issuerDN, issuerKey, true);
+    }
+    
+    /**
+     * This signs a SAML Response the same way the IdP does. The Response must have
+     * a ResponseID of "response-id". The signature's KeyInfo holds the certificate,
+     * or just the public key in a KeyValue if there's no certificate.
+     * 
+     * @param responseXml the unsigned Response
+     * @param keys the key pair to sign with
+     * @param cert the signer's certificate or null
+     * @return the signed Response
+     * @throws Exception if the Response can't be signed
+     */
+    public static byte[] signResponse(String responseXml, KeyPair keys, X509Certificate cert) throws Exception {
+        DocumentBuilderFactory dbf;
+        Document doc;
+        XMLSignature sig;
+        Transforms transforms;
+        ByteArrayOutputStream out;
+
+        org.apache.xml.security.Init.init();
+
+        dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(responseXml.getBytes("UTF-8")));
+        doc.getDocumentElement().setIdAttribute("ResponseID", true);
+
+        sig = new XMLSignature(doc, "", XMLSignature.ALGO_ID_SIGNATURE_RSA, Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        doc.getDocumentElement().insertBefore(sig.getElement(), doc.getDocumentElement().getFirstChild());
+        transforms = new Transforms(doc);
+        transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
+        transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+        sig.addDocument("#response-id", transforms);
+        if (cert != null) {
+            sig.addKeyInfo(cert);
+        }
+        else {
+            sig.addKeyInfo(keys.getPublic());
+        }
+        sig.sign(keys.getPrivate());
+
+        out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+        return out.toByteArray();
+    }
+    
+    /**
+     * This generates an X509 certificate, optionally for a CA.
+     */
+    private static X509Certificate createCertificate(String subjectDN, KeyPair subjectKeys,
+                                                     String issuerDN, PrivateKey issuerKey, boolean ca) throws Exception {
+        X509V3CertificateGenerator generator;
+        
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        
+        generator = new X509V3CertificateGenerator();
+        generator.setSignatureAlgorithm("SHA1withRSA");
+        generator.setSubjectDN(new X509Name(subjectDN));
+        generator.setIssuerDN(new X509Name(issuerDN));
+        generator.setPublicKey(subjectKeys.getPublic());
+        generator.setNotBefore(new Date(System.currentTimeMillis() - (10 * 60 * 1000)));
+        generator.setNotAfter(new Date(System.currentTimeMillis() + (24 * 60 * 60 * 1000)));
+        generator.setSerialNumber(BigInteger.valueOf(Math.abs(random.nextLong())));
+        if (ca) {
+            generator.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(true));
+        }
+        
+        return generator.generate(issuerKey, "BC");
+    }
 }
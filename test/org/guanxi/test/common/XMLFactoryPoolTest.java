@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package org.guanxi.test.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+
+import org.guanxi.common.XMLFactoryPool;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * This tests the per thread DocumentBuilders and Transformers.
+ *
+ * @author matthew
+ *
+ */
+public class XMLFactoryPoolTest {
+
+    /**
+     * This confirms that a thread gets the same DocumentBuilder back each
+     * time it asks and that the builder is namespace aware.
+     */
+    @Test
+    public void testDocumentBuilderReused() throws Exception {
+        DocumentBuilder first, second;
+        Document doc;
+        long created;
+
+        first = XMLFactoryPool.getDocumentBuilder();
+        created = XMLFactoryPool.getDocumentBuildersCreated();
+        second = XMLFactoryPool.getDocumentBuilder();
+
+        assertSame("Thread got a different DocumentBuilder", first, second);
+        assertEquals("A new DocumentBuilder was created", created, XMLFactoryPool.getDocumentBuildersCreated());
+        assertTrue("DocumentBuilder is not namespace aware", second.isNamespaceAware());
+
+        doc = second.parse(new ByteArrayInputStream("<a:test xmlns:a=\"urn:test\"/>".getBytes()));
+        assertEquals("Namespace not parsed", "urn:test", doc.getDocumentElement().getNamespaceURI());
+    }
+
+    /**
+     * This confirms that different threads get their own DocumentBuilders.
+     */
+    @Test
+    public void testDocumentBuilderPerThread() throws Exception {
+        final DocumentBuilder[] other = new DocumentBuilder[1];
+        Thread thread;
+
+        thread = new Thread() {
+            public void run() {
+                try {
+                    other[0] = XMLFactoryPool.getDocumentBuilder();
+                }
+                catch (Exception e) {
+                    // other[0] stays null and the test fails
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertNotNull("Other thread didn't get a DocumentBuilder", other[0]);
+        assertNotSame("Threads share a DocumentBuilder", XMLFactoryPool.getDocumentBuilder(), other[0]);
+    }
+
+    /**
+     * This confirms that a Transformer handed out again doesn't keep
+     * settings from its last use, whether or not it can be reset.
+     */
+    @Test
+    public void testTransformerReset() throws Exception {
+        XMLFactoryPool.getTransformer().setOutputProperty(OutputKeys.INDENT, "yes");
+
+        assertEquals("Transformer kept its settings", "no", XMLFactoryPool.getTransformer().getOutputProperty(OutputKeys.INDENT));
+    }
+
+    /**
+     * This confirms that clearing the pool lets go of the DocumentBuilders
+     * other threads have as well as the calling thread's.
+     */
+    @Test
+    public void testClear() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Callable<DocumentBuilder> getBuilder = new Callable<DocumentBuilder>() {
+                public DocumentBuilder call() throws Exception {
+                    return XMLFactoryPool.getDocumentBuilder();
+                }
+            };
+            DocumentBuilder other = executor.submit(getBuilder).get();
+            DocumentBuilder mine = XMLFactoryPool.getDocumentBuilder();
+
+            XMLFactoryPool.clear();
+
+            assertNotSame("Other thread's DocumentBuilder was not cleared", other, executor.submit(getBuilder).get());
+            assertNotSame("Calling thread's DocumentBuilder was not cleared", mine, XMLFactoryPool.getDocumentBuilder());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ *
+ */
+package org.guanxi.test.common.entity;
+
+import org.guanxi.common.entity.impl.GuanxiEntityManagerImpl;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+
+/**
+ * This times creating the entity handlers for a metadata reload the way the
+ * manager used to, with Class.forName for every entity, against the manager's
+ * cached constructor. It's not a unit test, run it by hand:
+ *
+ *   java org.guanxi.test.common.entity.EntityHandlerBenchmark [entities]
+ *
+ * @author matthew
+ *
+ */
+public class EntityHandlerBenchmark {
+    public static void main(String[] args) throws Exception {
+        int entities;
+        GuanxiEntityManagerImpl manager;
+
+        entities = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+
+        manager = new GuanxiEntityManagerImpl();
+        manager.init();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+
+        // Several reloads so the later ones are warmed up
+        for (int run = 0; run < 5; run++) {
+            System.out.println("reload of " + entities + " entities" +
+                               "  Class.forName: " + timeForName(entities) + "us" +
+                               "  cached: " + timeCached(manager, entities) + "us");
+        }
+    }
+
+    /**
+     * This times creating the handlers with Class.forName, as the manager used to.
+     */
+    private static long timeForName(int entities) throws Exception {
+        long start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entities; i++) {
+            Metadata handler = (Metadata)Class.forName(GuanxiSAML2MetadataImpl.class.getName()).newInstance();
+        }
+        return (System.nanoTime() - start) / 1000;
+    }
+
+    /**
+     * This times creating the handlers with the cached constructor.
+     */
+    private static long timeCached(GuanxiEntityManagerImpl manager, int entities) throws Exception {
+        long start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entities; i++) {
+            manager.createNewEntityHandler();
+        }
+        return (System.nanoTime() - start) / 1000;
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ *
+ */
+package org.guanxi.test.common.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.entity.EntityManager;
+import org.guanxi.common.entity.impl.GuanxiEntityFarmImpl;
+import org.guanxi.common.entity.impl.GuanxiEntityManagerImpl;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.TrustEngine;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This tests the farm's index of which manager handles each entity.
+ *
+ * @author matthew
+ *
+ */
+public class GuanxiEntityFarmImplTest {
+    /** The manager that comes first */
+    private GuanxiEntityManagerImpl first;
+    /** The manager that comes second */
+    private GuanxiEntityManagerImpl second;
+    /** The farm holding both managers */
+    private GuanxiEntityFarmImpl farm;
+
+    @Before
+    public void init() {
+        first = new GuanxiEntityManagerImpl();
+        first.init();
+        second = new GuanxiEntityManagerImpl();
+        second.init();
+
+        first.addMetadata(new TestMetadata("urn:loaded"));
+
+        LinkedHashMap<String, EntityManager> managers = new LinkedHashMap<String, EntityManager>();
+        managers.put("first", first);
+        managers.put("second", second);
+        farm = new GuanxiEntityFarmImpl();
+        farm.setEntityManagers(managers);
+    }
+
+    /**
+     * Entities loaded before and after the managers were given to the farm are found.
+     */
+    @Test
+    public void testLookup() {
+        second.addMetadata(new TestMetadata("urn:added"));
+
+        assertSame(first, farm.getEntityManagerForID("urn:loaded"));
+        assertSame(second, farm.getEntityManagerForID("urn:added"));
+        assertNull(farm.getEntityManagerForID("urn:unknown"));
+        assertSame(second, farm.getEntityManagerForSource("second"));
+    }
+
+    /**
+     * When both managers have an entity the first one wins, and the second
+     * takes over when the first one loses it.
+     */
+    @Test
+    public void testPrecedence() {
+        second.addMetadata(new TestMetadata("urn:loaded"));
+        assertSame(first, farm.getEntityManagerForID("urn:loaded"));
+
+        first.removeMetadata("urn:loaded");
+        assertSame(second, farm.getEntityManagerForID("urn:loaded"));
+
+        first.addMetadata(new TestMetadata("urn:loaded"));
+        assertSame(first, farm.getEntityManagerForID("urn:loaded"));
+
+        first.removeAllMetadata();
+        assertSame(second, farm.getEntityManagerForID("urn:loaded"));
+
+        second.removeMetadata("urn:loaded");
+        assertNull(farm.getEntityManagerForID("urn:loaded"));
+    }
+
+    /**
+     * A refresh isn't seen until it's committed, and the farm follows the new generation.
+     */
+    @Test
+    public void testRefresh() {
+        long generation = first.getGeneration();
+
+        first.beginRefresh();
+        first.addMetadata(new TestMetadata("urn:refreshed"));
+        assertTrue(first.handlesEntity("urn:loaded"));
+        assertFalse(first.handlesEntity("urn:refreshed"));
+        assertEquals(generation, first.getGeneration());
+
+        first.commitRefresh();
+        assertFalse(first.handlesEntity("urn:loaded"));
+        assertTrue(first.handlesEntity("urn:refreshed"));
+        assertTrue(first.getGeneration() != generation);
+        assertNull(farm.getEntityManagerForID("urn:loaded"));
+        assertSame(first, farm.getEntityManagerForID("urn:refreshed"));
+    }
+
+    /**
+     * An entity the farm hasn't been told about is still found by asking the managers.
+     */
+    @Test
+    public void testIndexMiss() {
+        second.removeEntityManagerListener(farm);
+        second.addMetadata(new TestMetadata("urn:unindexed"));
+
+        assertSame(second, farm.getEntityManagerForID("urn:unindexed"));
+        assertNull(farm.getEntityManagerForID("urn:unknown"));
+    }
+
+    /**
+     * A manager that doesn't tell the farm about changes still gets its
+     * precedence, and its entities are found.
+     */
+    @Test
+    public void testPlainManager() {
+        PlainEntityManager plain;
+        LinkedHashMap<String, EntityManager> managers;
+
+        plain = new PlainEntityManager();
+        managers = new LinkedHashMap<String, EntityManager>();
+        managers.put("plain", plain);
+        managers.put("first", first);
+        farm.setEntityManagers(managers);
+
+        assertSame(first, farm.getEntityManagerForID("urn:loaded"));
+
+        plain.addMetadata(new TestMetadata("urn:loaded"));
+        assertSame(plain, farm.getEntityManagerForID("urn:loaded"));
+
+        plain.removeAllMetadata();
+        assertSame(first, farm.getEntityManagerForID("urn:loaded"));
+    }
+
+    /**
+     * A manager that only implements EntityManager, as ones written before
+     * ReloadableEntityManager do
+     */
+    private static class PlainEntityManager implements EntityManager {
+        private HashMap<String, Metadata> entities = new HashMap<String, Metadata>();
+        private TrustEngine trustEngine;
+
+        public void setEntityHandlerClass(String entityHandlerClass) {}
+        public Metadata createNewEntityHandler() throws GuanxiException { throw new GuanxiException("Not supported"); }
+        public void addMetadata(Metadata metadata) { entities.put(metadata.getEntityID(), metadata); }
+        public Metadata getMetadata(String entityID) { return entities.get(entityID); }
+        public void removeAllMetadata() { entities.clear(); }
+        public boolean handlesEntity(String entityID) { return entities.containsKey(entityID); }
+        public void setTrustEngine(TrustEngine trustEngine) { this.trustEngine = trustEngine; }
+        public TrustEngine getTrustEngine() { return trustEngine; }
+        public String[] getEntityIDs() { return entities.keySet().toArray(new String[entities.size()]); }
+        public void removeMetadata(String entityID) { entities.remove(entityID); }
+    }
+
+    /**
+     * Bare bones metadata that only has an entityID
+     */
+    private static class TestMetadata implements Metadata {
+        private String entityID;
+        private Object privateData;
+        private String hostName;
+
+        TestMetadata(String entityID) {
+            this.entityID = entityID;
+        }
+
+        public String getEntityID() { return entityID; }
+        public void setPrivateData(Object privateData) { this.privateData = privateData; }
+        public Object getPrivateData() { return privateData; }
+        public void setHostName(String hostName) { this.hostName = hostName; }
+        public String getHostName() { return hostName; }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package org.guanxi.test.common.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.entity.impl.GuanxiEntityManagerImpl;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.test.TestUtils;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This tests creating entity handlers.
+ *
+ * @author matthew
+ *
+ */
+public class GuanxiEntityManagerImplTest {
+    private GuanxiEntityManagerImpl manager;
+
+    @Before
+    public void init() {
+        manager = new GuanxiEntityManagerImpl();
+        manager.init();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+    }
+
+    /**
+     * Handlers are new instances of the handler class.
+     */
+    @Test
+    public void testCreateHandlers() throws GuanxiException {
+        Metadata handler;
+
+        handler = manager.createNewEntityHandler();
+        assertTrue(handler instanceof GuanxiSAML2MetadataImpl);
+        assertNotSame(handler, manager.createNewEntityHandler());
+    }
+
+    /**
+     * A class that isn't a Metadata is turned down.
+     */
+    @Test(expected = GuanxiException.class)
+    public void testNotMetadata() throws GuanxiException {
+        manager.setEntityHandlerClass(String.class.getName());
+        manager.createNewEntityHandler();
+    }
+
+    /**
+     * Creates the handler for an entity with a signing certificate
+     */
+    private Metadata newHandler(String entityID, X509Certificate x509) throws Exception {
+        EntityDescriptorType entityDescriptor = EntityDescriptorType.Factory.newInstance();
+        entityDescriptor.setEntityID(entityID);
+        entityDescriptor.addNewIDPSSODescriptor().addNewKeyDescriptor().addNewKeyInfo().addNewX509Data()
+                        .addX509Certificate(x509.getEncoded());
+
+        Metadata handler = manager.createNewEntityHandler();
+        handler.setPrivateData(entityDescriptor);
+        return handler;
+    }
+
+    /**
+     * Determines whether a certificate is in the shared cache without changing the cache
+     */
+    private boolean isCached(X509Certificate x509) throws Exception {
+        X509CertificateCache cache = X509CertificateCache.getSharedCache();
+        long misses = cache.getMisses();
+        cache.getCertificate(x509.getEncoded());
+        boolean cached = (cache.getMisses() == misses);
+        if (!cached) {
+            cache.evict(Collections.singleton(new CertFingerprint(x509.getEncoded())));
+        }
+        return cached;
+    }
+
+    /**
+     * Reloading the metadata only evicts the certificates the new metadata doesn't
+     * have from the shared certificate cache, and only once the reload is committed.
+     */
+    @Test
+    public void testReloadEvictsUnusedCertificates() throws Exception {
+        KeyPair keys = TestUtils.createKeyPair();
+        X509Certificate kept = TestUtils.createCertificate("CN=kept", keys, "CN=kept", keys.getPrivate());
+        X509Certificate dropped = TestUtils.createCertificate("CN=dropped", keys, "CN=dropped", keys.getPrivate());
+
+        manager.addMetadata(newHandler("urn:kept", kept));
+        manager.addMetadata(newHandler("urn:dropped", dropped));
+
+        manager.beginRefresh();
+        manager.addMetadata(newHandler("urn:kept", kept));
+        assertTrue(isCached(dropped));
+        manager.commitRefresh();
+        assertTrue(isCached(kept));
+        assertFalse(isCached(dropped));
+
+        // The metadata removed last time is only evicted if what replaced it doesn't have it
+        manager.removeAllMetadata();
+        assertTrue(isCached(kept));
+        manager.addMetadata(newHandler("urn:dropped", dropped));
+        manager.removeAllMetadata();
+        assertFalse(isCached(kept));
+        assertTrue(isCached(dropped));
+    }
+
+    /**
+     * An aborted refresh leaves the metadata as it was and later changes
+     * aren't lost in the thrown away generation.
+     */
+    @Test
+    public void testAbortRefresh() {
+        Metadata added;
+
+        manager.addMetadata(new NamedMetadata("urn:loaded"));
+        long generation = manager.getGeneration();
+
+        manager.beginRefresh();
+        manager.addMetadata(new NamedMetadata("urn:refreshed"));
+        manager.abortRefresh();
+
+        assertTrue(manager.handlesEntity("urn:loaded"));
+        assertFalse(manager.handlesEntity("urn:refreshed"));
+        assertEquals(generation, manager.getGeneration());
+
+        added = new NamedMetadata("urn:added");
+        manager.addMetadata(added);
+        assertSame(added, manager.getMetadata("urn:added"));
+        manager.removeMetadata("urn:loaded");
+        assertFalse(manager.handlesEntity("urn:loaded"));
+    }
+
+    /**
+     * Bare bones metadata that only has an entityID
+     */
+    private static class NamedMetadata implements Metadata {
+        private String entityID;
+
+        NamedMetadata(String entityID) {
+            this.entityID = entityID;
+        }
+
+        public String getEntityID() { return entityID; }
+        public void setPrivateData(Object privateData) {}
+        public Object getPrivateData() { return null; }
+        public void setHostName(String hostName) {}
+        public String getHostName() { return null; }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package org.guanxi.test.common.metadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.guanxi.common.definitions.Shibboleth;
+import org.guanxi.common.metadata.impl.CompactEntityDescriptor;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This tests what a CompactEntityDescriptor keeps of an entity's metadata,
+ * and what comes back when the metadata is parsed again.
+ *
+ * @author matthew
+ *
+ */
+public class CompactEntityDescriptorTest {
+    /** An IdP with two AAs, the second of which has a POST AttributeService */
+    private static final String METADATA =
+        "<xml-fragment entityID=\"urn:idp\" xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"" +
+        " xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\" xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\">" +
+        "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+        "<md:Extensions>" +
+        "<shibmd:Scope regexp=\"false\">example.org</shibmd:Scope>" +
+        "<mdui:UIInfo><mdui:DisplayName xml:lang=\"en\">Example</mdui:DisplayName></mdui:UIInfo>" +
+        "</md:Extensions>" +
+        "<md:SingleSignOnService Binding=\"urn:sso\" Location=\"https://idp.example.org/sso\"/>" +
+        "</md:IDPSSODescriptor>" +
+        "<md:AttributeAuthorityDescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+        "<md:AttributeService Binding=\"urn:soap\" Location=\"https://aa1.example.org/soap\"/>" +
+        "</md:AttributeAuthorityDescriptor>" +
+        "<md:AttributeAuthorityDescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+        "<md:AttributeService Binding=\"" + Shibboleth.BROWSER_POST_BINDING + "\" Location=\"https://aa2.example.org/post\"/>" +
+        "</md:AttributeAuthorityDescriptor>" +
+        "<md:Organization><md:OrganizationName xml:lang=\"en\">Example</md:OrganizationName></md:Organization>" +
+        "<md:ContactPerson contactType=\"technical\"><md:EmailAddress>admin@example.org</md:EmailAddress></md:ContactPerson>" +
+        "</xml-fragment>";
+
+    /** The metadata the descriptor is made from */
+    private EntityDescriptorType saml2Metadata;
+
+    @Before
+    public void init() throws Exception {
+        saml2Metadata = parse(METADATA);
+    }
+
+    private static EntityDescriptorType parse(String xml) throws Exception {
+        return EntityDescriptorType.Factory.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private static String toString(EntityDescriptorType saml2Metadata) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        saml2Metadata.save(out);
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * The endpoints are kept per role, and the metadata parsed again has everything,
+     * including the organization, contacts and UI info that aren't used at runtime.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        CompactEntityDescriptor descriptor = new CompactEntityDescriptor(saml2Metadata, new X509CertificateCache());
+
+        assertEquals("urn:idp", descriptor.getEntityID());
+        assertEquals(1, descriptor.getSingleSignOnServices(0).length);
+        assertEquals("https://idp.example.org/sso", descriptor.getSingleSignOnServices(0)[0].getLocation());
+        assertEquals("https://aa1.example.org/soap", descriptor.getAttributeServices(0)[0].getLocation());
+        assertEquals("https://aa2.example.org/post", descriptor.getAttributeServices(1)[0].getLocation());
+        assertArrayEquals(new String[] {"example.org"}, descriptor.getScopes());
+
+        EntityDescriptorType parsed = descriptor.getEntityDescriptor();
+        assertNotNull(parsed);
+        assertEquals("urn:idp", parsed.getEntityID());
+        assertEquals(1, parsed.getIDPSSODescriptorArray().length);
+        assertEquals(2, parsed.getAttributeAuthorityDescriptorArray().length);
+
+        String xml = toString(parsed);
+        assertTrue("Lost the scope", xml.contains("example.org</shibmd:Scope>"));
+        assertTrue("Lost the UI info", xml.contains("Example</mdui:DisplayName>"));
+        assertTrue("Lost the organization", xml.contains("Organization"));
+        assertTrue("Lost the contacts", xml.contains("admin@example.org"));
+        assertTrue(descriptor.getXMLSize() < toString(saml2Metadata).getBytes("UTF-8").length);
+    }
+
+    /**
+     * Only the first AA is looked at for the AttributeService, as it always was.
+     */
+    @Test
+    public void testFirstRoleOnly() throws Exception {
+        GuanxiSAML2MetadataImpl metadata = new GuanxiSAML2MetadataImpl();
+        metadata.setPrivateData(saml2Metadata);
+
+        assertEquals("https://aa1.example.org/soap", metadata.getAttributeAuthorityURL());
+    }
+
+    /**
+     * A handler that couldn't take its metadata is left without an entityID so it
+     * can be skipped.
+     */
+    @Test
+    public void testNoMetadata() {
+        GuanxiSAML2MetadataImpl metadata = new GuanxiSAML2MetadataImpl();
+
+        assertNull(metadata.getEntityID());
+        assertNull(metadata.getPrivateData());
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ *
+ */
+package org.guanxi.test.common.metadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.entity.impl.GuanxiEntityManagerImpl;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.metadata.impl.IndexedMetadataCache;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.trust.TrustAnchors;
+import org.guanxi.test.TestUtils;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This tests reading the index of a metadata cache file and loading
+ * its entities into a manager without parsing them.
+ *
+ * @author matthew
+ *
+ */
+public class IndexedMetadataCacheTest {
+    /** A cache file with two entities in it */
+    private File cacheFile;
+
+    @Before
+    public void init() throws IOException {
+        cacheFile = writeCache(0);
+    }
+
+    /**
+     * Writes a cache file with two entities in it and no trust anchors
+     *
+     * @param skew how far past where it really is to say the last entity's fragment is
+     * @return the file
+     */
+    private static File writeCache(int skew) throws IOException {
+        String[] entityIDs = new String[] {"urn:idp", "urn:sp"};
+        String[] fragments = new String[] {"<xml-fragment entityID=\"urn:idp\"/>",
+                                           "<xml-fragment entityID=\"urn:sp\"/>"};
+        DataOutputStream out;
+        int offset;
+        File file;
+
+        file = File.createTempFile("metadata", ".idx");
+        file.deleteOnExit();
+
+        out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(IndexedMetadataCache.MAGIC);
+        out.writeInt(IndexedMetadataCache.VERSION);
+        out.writeInt(entityIDs.length);
+        offset = 0;
+        for (int i = 0; i < entityIDs.length; i++) {
+            out.writeInt(entityIDs[i].getBytes("UTF-8").length);
+            out.write(entityIDs[i].getBytes("UTF-8"));
+            out.writeInt((i == entityIDs.length - 1) ? offset + skew : offset);
+            out.writeInt(fragments[i].getBytes("UTF-8").length);
+            offset += fragments[i].getBytes("UTF-8").length;
+        }
+        // No KeyAuthority, CAs, CRLs or intermediates
+        out.writeInt(-1);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        for (String fragment : fragments) {
+            out.write(fragment.getBytes("UTF-8"));
+        }
+        out.close();
+
+        return file;
+    }
+
+    /**
+     * The index is read without parsing any entities.
+     */
+    @Test
+    public void testIndex() throws GuanxiException {
+        IndexedMetadataCache cache = new IndexedMetadataCache(cacheFile.getPath());
+
+        assertEquals(2, cache.getEntityIDs().size());
+        assertTrue(cache.contains("urn:idp"));
+        assertTrue(cache.contains("urn:sp"));
+        assertFalse(cache.contains("urn:unknown"));
+        assertNull(cache.getEntityDescriptor("urn:unknown"));
+        assertNull(cache.getTrustAnchors(new X509CertificateCache()));
+        cache.close();
+    }
+
+    /**
+     * A file whose index points past its end is turned down when it's opened.
+     */
+    @Test(expected = GuanxiException.class)
+    public void testCorrupt() throws Exception {
+        new IndexedMetadataCache(writeCache(1).getPath());
+    }
+
+    /**
+     * Entities can't be parsed once the cache is closed, and the file can be
+     * replaced.
+     */
+    @Test
+    public void testClose() throws Exception {
+        IndexedMetadataCache cache = new IndexedMetadataCache(cacheFile.getPath());
+        assertEquals("urn:idp", cache.getEntityDescriptor("urn:idp").getEntityID());
+
+        cache.close();
+        assertTrue(cache.isClosed());
+        try {
+            cache.getEntityDescriptor("urn:idp");
+            fail("Parsed an entity from a closed cache");
+        }
+        catch(GuanxiException ge) {
+            // expected
+        }
+        cache.close();
+
+        assertTrue(cacheFile.delete());
+    }
+
+    /**
+     * The entities and trust anchors written to a cache come back out of it.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        KeyPair caKeys = TestUtils.createKeyPair();
+        X509Certificate ca = TestUtils.createCACertificate("CN=ca", caKeys, "CN=ca", caKeys.getPrivate());
+        KeyPair intermediateKeys = TestUtils.createKeyPair();
+        X509Certificate intermediate = TestUtils.createCACertificate("CN=intermediate", intermediateKeys,
+                                                                     "CN=ca", caKeys.getPrivate());
+        EntityDescriptorType idp = EntityDescriptorType.Factory.parse(
+                new ByteArrayInputStream("<xml-fragment entityID=\"urn:idp\"/>".getBytes("UTF-8")));
+        File file = File.createTempFile("metadata", ".idx");
+        file.deleteOnExit();
+
+        IndexedMetadataCache.write(new EntityDescriptorType[] {idp},
+                                   new TrustAnchors(new X509Certificate[] {ca}, new X509Certificate[] {intermediate},
+                                                    new X509CRL[0], 2),
+                                   file.getPath());
+        IndexedMetadataCache cache = new IndexedMetadataCache(file.getPath());
+        TrustAnchors anchors = cache.getTrustAnchors(new X509CertificateCache());
+
+        assertEquals("urn:idp", cache.getEntityDescriptor("urn:idp").getEntityID());
+        assertArrayEquals(new X509Certificate[] {ca}, anchors.getCACerts());
+        assertArrayEquals(new X509Certificate[] {intermediate}, anchors.getIntermediateCerts());
+        assertEquals(0, anchors.getCRLs().length);
+        assertEquals(2, anchors.getVerifyDepth());
+        cache.close();
+    }
+
+    /**
+     * A manager knows about the cached entities before any of them are parsed, and
+     * forgets them with the rest of its metadata.
+     */
+    @Test
+    public void testManager() throws GuanxiException {
+        GuanxiEntityManagerImpl manager = new GuanxiEntityManagerImpl();
+        manager.init();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+
+        manager.addCachedMetadata(new IndexedMetadataCache(cacheFile.getPath()));
+        assertTrue(manager.handlesEntity("urn:idp"));
+        assertEquals(2, manager.getEntityIDs().length);
+
+        manager.removeMetadata("urn:sp");
+        assertFalse(manager.handlesEntity("urn:sp"));
+
+        manager.removeAllMetadata();
+        assertFalse(manager.handlesEntity("urn:idp"));
+    }
+
+    /**
+     * Threads asking for an entity the first time it's needed all find it while
+     * it's being parsed and moved out of the cache, and all get the same handler.
+     */
+    @Test
+    public void testConcurrentFirstAccess() throws Exception {
+        final int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            for (int round = 0; round < 200; round++) {
+                final GuanxiEntityManagerImpl manager = new GuanxiEntityManagerImpl();
+                manager.init();
+                manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+                manager.addCachedMetadata(new IndexedMetadataCache(cacheFile.getPath()));
+
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<Metadata>> results = new ArrayList<Future<Metadata>>();
+                for (int i = 0; i < threads; i++) {
+                    final boolean parse = (i % 2 == 0);
+                    results.add(executor.submit(new Callable<Metadata>() {
+                        public Metadata call() throws Exception {
+                            start.await();
+                            if (parse) {
+                                return manager.getMetadata("urn:idp");
+                            }
+                            // Keep looking while the others parse it
+                            for (int j = 0; j < 50; j++) {
+                                assertTrue("Entity was unknown during its first access", manager.handlesEntity("urn:idp"));
+                            }
+                            return manager.getMetadata("urn:idp");
+                        }
+                    }));
+                }
+                start.countDown();
+
+                Metadata handler = manager.getMetadata("urn:idp");
+                assertNotNull(handler);
+                for (Future<Metadata> result : results) {
+                    assertSame("Threads got different handlers", handler, result.get());
+                }
+                manager.removeAllMetadata();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A manager closes the cache once it's replaced it with a new generation.
+     */
+    @Test
+    public void testManagerClosesCache() throws GuanxiException {
+        GuanxiEntityManagerImpl manager = new GuanxiEntityManagerImpl();
+        manager.init();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+        IndexedMetadataCache cache = new IndexedMetadataCache(cacheFile.getPath());
+
+        manager.addCachedMetadata(cache);
+        manager.beginRefresh();
+        assertFalse(cache.isClosed());
+        manager.commitRefresh();
+        assertTrue(cache.isClosed());
+    }
+
+    /**
+     * Something that isn't a cache file is turned down.
+     */
+    @Test(expected = GuanxiException.class)
+    public void testNotCache() throws Exception {
+        File notCache = File.createTempFile("metadata", ".xml");
+        notCache.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(notCache);
+        out.write("<md:EntitiesDescriptor/>".getBytes("UTF-8"));
+        out.close();
+
+        new IndexedMetadataCache(notCache.getPath());
+    }
+}
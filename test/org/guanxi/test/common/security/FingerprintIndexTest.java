@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package org.guanxi.test.common.security;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.security.FingerprintIndex;
+import org.guanxi.test.TestUtils;
+import org.junit.Test;
+
+/**
+ * This tests the certificate fingerprints and the index keyed on them.
+ *
+ * @author matthew
+ *
+ */
+public class FingerprintIndexTest {
+
+    /**
+     * This confirms that the fingerprints hold the right digests and that
+     * fingerprints of the same bytes are equal.
+     */
+    @Test
+    public void testFingerprint() throws Exception {
+        byte[] bytes;
+        CertFingerprint fingerprint;
+
+        bytes = TestUtils.randomString(100).getBytes("UTF-8");
+        fingerprint = new CertFingerprint(bytes);
+
+        assertArrayEquals("Wrong SHA-1", MessageDigest.getInstance("SHA-1").digest(bytes), fingerprint.getSHA1());
+        assertArrayEquals("Wrong SHA-256", MessageDigest.getInstance("SHA-256").digest(bytes), fingerprint.getSHA256());
+        assertEquals("Fingerprints of the same bytes differ", fingerprint, new CertFingerprint(bytes.clone()));
+        assertEquals("Hash codes of the same bytes differ", fingerprint.hashCode(), new CertFingerprint(bytes.clone()).hashCode());
+        assertEquals("Wrong hex form", 59, fingerprint.toString().length());
+    }
+
+    /**
+     * This confirms that the index finds everything put in it, including
+     * after it has grown.
+     */
+    @Test
+    public void testIndex() throws Exception {
+        FingerprintIndex<String> index;
+        CertFingerprint[] fingerprints;
+        String[] values;
+
+        index = new FingerprintIndex<String>();
+        fingerprints = new CertFingerprint[100];
+        values = new String[fingerprints.length];
+        for (int i = 0; i < fingerprints.length; i++) {
+            values[i] = "value" + i;
+            fingerprints[i] = new CertFingerprint(values[i].getBytes("UTF-8"));
+            assertNull("New fingerprint replaced something", index.put(fingerprints[i], values[i]));
+        }
+
+        assertEquals("Wrong size", fingerprints.length, index.size());
+        for (int i = 0; i < fingerprints.length; i++) {
+            assertTrue("Fingerprint missing", index.containsKey(fingerprints[i]));
+            assertSame("Wrong value", values[i], index.get(fingerprints[i]));
+        }
+        assertFalse("Found a fingerprint that was never added", index.containsKey(new CertFingerprint("missing".getBytes("UTF-8"))));
+
+        assertSame("Replaced value not returned", values[0], index.put(fingerprints[0], "replaced"));
+        assertEquals("Replacing changed the size", fingerprints.length, index.size());
+    }
+}
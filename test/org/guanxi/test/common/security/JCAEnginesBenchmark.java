@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package org.guanxi.test.common.security;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.security.JCAEngines;
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+
+/**
+ * This times the operations that use pooled JCA engines with pooling on and
+ * off. It's not a unit test, run it by hand:
+ *
+ *   java org.guanxi.test.common.security.JCAEnginesBenchmark [iterations]
+ *
+ * @author matthew
+ *
+ */
+public class JCAEnginesBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations;
+        KeyPair caKeys;
+        X509Certificate ca;
+        X509Certificate x509;
+        byte[] x509Bytes;
+
+        iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+        caKeys = TestUtils.createKeyPair();
+        ca = TestUtils.createCertificate("CN=ca", caKeys, "CN=ca", caKeys.getPrivate());
+        x509 = TestUtils.createCertificate("CN=idp", TestUtils.createKeyPair(), "CN=ca", caKeys.getPrivate());
+        x509Bytes = x509.getEncoded();
+
+        // Twice round so the second run of each is warmed up
+        for (int run = 0; run < 2; run++) {
+            for (boolean pooled : new boolean[] {false, true}) {
+                JCAEngines.setEnabled(pooled);
+                System.out.println((pooled ? "pooled    " : "getInstance") +
+                                   "  parse: " + timeParse(x509Bytes, iterations) + "ns" +
+                                   "  fingerprint: " + timeFingerprint(x509Bytes, iterations) + "ns" +
+                                   "  PKIX: " + timePKIX(x509, ca, iterations / 10) + "ns");
+            }
+        }
+    }
+
+    /**
+     * This times parsing a certificate, which needs a CertificateFactory.
+     */
+    private static long timeParse(byte[] x509Bytes, int iterations) throws Exception {
+        long start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            // A new cache every time so it always parses
+            new X509CertificateCache(1).getCertificate(x509Bytes);
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * This times fingerprinting a certificate, which needs two MessageDigests.
+     */
+    private static long timeFingerprint(byte[] x509Bytes, int iterations) {
+        long start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            new CertFingerprint(x509Bytes);
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * This times PKIX path validation, which needs a CertificateFactory
+     * and a CertPathValidator.
+     */
+    private static long timePKIX(X509Certificate x509, X509Certificate ca, int iterations) {
+        long start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            TrustUtils.validatePKIXPath(x509, ca);
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+}
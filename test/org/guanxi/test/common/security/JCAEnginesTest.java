@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package org.guanxi.test.common.security;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.guanxi.common.security.JCAEngines;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * This tests the per thread pool of JCA engines.
+ *
+ * @author matthew
+ *
+ */
+public class JCAEnginesTest {
+
+    @After
+    public void tearDown() {
+        JCAEngines.setEnabled(true);
+    }
+
+    /**
+     * This confirms that a thread gets the same engines back when pooling
+     * is on and new ones when it's off.
+     */
+    @Test
+    public void testPooling() throws Exception {
+        JCAEngines.setEnabled(true);
+        assertSame("CertificateFactory not pooled", JCAEngines.getCertificateFactory("X.509"), JCAEngines.getCertificateFactory("X.509"));
+        assertSame("MessageDigest not pooled", JCAEngines.getMessageDigest("SHA-256"), JCAEngines.getMessageDigest("SHA-256"));
+
+        JCAEngines.setEnabled(false);
+        assertNotSame("CertificateFactory pooled when turned off", JCAEngines.getCertificateFactory("X.509"), JCAEngines.getCertificateFactory("X.509"));
+        assertNotSame("MessageDigest pooled when turned off", JCAEngines.getMessageDigest("SHA-256"), JCAEngines.getMessageDigest("SHA-256"));
+    }
+
+    /**
+     * This confirms that a pooled digest left half way through is reset
+     * before it's handed out again.
+     */
+    @Test
+    public void testDigestReset() throws Exception {
+        byte[] bytes;
+
+        bytes = "some bytes".getBytes("UTF-8");
+        JCAEngines.getMessageDigest("SHA-256").update("left over".getBytes("UTF-8"));
+
+        assertArrayEquals("Pooled digest was not reset", MessageDigest.getInstance("SHA-256").digest(bytes),
+                          JCAEngines.getMessageDigest("SHA-256").digest(bytes));
+    }
+
+    /**
+     * This confirms that clearing lets go of the engines pooled for other
+     * threads as well as the calling thread's.
+     */
+    @Test
+    public void testClear() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Callable<CertificateFactory> getFactory = new Callable<CertificateFactory>() {
+                public CertificateFactory call() throws Exception {
+                    return JCAEngines.getCertificateFactory("X.509");
+                }
+            };
+            CertificateFactory pooled = executor.submit(getFactory).get();
+            CertificateFactory mine = JCAEngines.getCertificateFactory("X.509");
+
+            JCAEngines.clear();
+
+            assertNotSame("Other thread's pool was not cleared", pooled, executor.submit(getFactory).get());
+            assertNotSame("Calling thread's pool was not cleared", mine, JCAEngines.getCertificateFactory("X.509"));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
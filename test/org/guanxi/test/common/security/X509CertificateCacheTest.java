@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package org.guanxi.test.common.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import org.guanxi.common.security.X509CertificateCache;
+import org.guanxi.test.TestUtils;
+import org.junit.Test;
+
+/**
+ * This tests the cache of certificates parsed from DER encoded bytes.
+ *
+ * @author matthew
+ *
+ */
+public class X509CertificateCacheTest {
+
+    /**
+     * This confirms that the same bytes are only parsed once and that
+     * the counters reflect that.
+     */
+    @Test
+    public void testCacheHit() throws Exception {
+        X509CertificateCache cache;
+        X509Certificate original, first, second;
+        KeyPair keys;
+
+        keys = TestUtils.createKeyPair();
+        original = TestUtils.createCertificate("CN=cachetest", keys, "CN=cachetest", keys.getPrivate());
+
+        cache = new X509CertificateCache();
+        first = cache.getCertificate(original.getEncoded());
+        second = cache.getCertificate(original.getEncoded().clone());
+
+        assertEquals("Parsed certificate differs from original", original, first);
+        assertSame("Certificate was parsed twice", first, second);
+        assertEquals("Wrong number of misses", 1, cache.getMisses());
+        assertEquals("Wrong number of hits", 1, cache.getHits());
+        assertEquals("Public key differs from original", original.getPublicKey(), cache.getPublicKey(original.getEncoded()));
+    }
+
+    /**
+     * This confirms that invalidating the cache forces the next lookup to
+     * parse the certificate again.
+     */
+    @Test
+    public void testInvalidate() throws Exception {
+        X509CertificateCache cache;
+        X509Certificate original;
+        KeyPair keys;
+
+        keys = TestUtils.createKeyPair();
+        original = TestUtils.createCertificate("CN=cachetest", keys, "CN=cachetest", keys.getPrivate());
+
+        cache = new X509CertificateCache();
+        cache.getCertificate(original.getEncoded());
+        cache.invalidate();
+
+        assertEquals("Invalidated cache is not empty", 0, cache.size());
+        cache.getCertificate(original.getEncoded());
+        assertEquals("Invalidated certificate was not parsed again", 2, cache.getMisses());
+    }
+
+    /**
+     * This confirms that the cache never holds more than its maximum number
+     * of certificates.
+     */
+    @Test
+    public void testBounded() throws Exception {
+        X509CertificateCache cache;
+        KeyPair keys;
+
+        keys = TestUtils.createKeyPair();
+        cache = new X509CertificateCache(2);
+        for (int i = 0;i < 5;i++) {
+            cache.getCertificate(TestUtils.createCertificate("CN=cachetest" + i, keys, "CN=cachetest", keys.getPrivate()).getEncoded());
+        }
+
+        assertTrue("Cache holds more than its maximum", cache.size() <= 2);
+    }
+}
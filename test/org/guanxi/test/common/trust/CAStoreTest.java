@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.guanxi.common.trust.CAStore;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+import org.junit.Test;
+
+/**
+ * This tests the CA store used by the trust engines.
+ *
+ * @author matthew
+ *
+ */
+public class CAStoreTest {
+
+    /**
+     * This confirms that a certificate issued by either the old or the new
+     * key of a CA that shares its DN validates against the store.
+     */
+    @Test
+    public void testRollover() throws Exception {
+        CAStore store;
+        KeyPair oldKeys, newKeys, otherKeys, keys;
+        X509Certificate oldCA, newCA, otherCA, oldX509, newX509;
+
+        oldKeys = TestUtils.createKeyPair();
+        newKeys = TestUtils.createKeyPair();
+        otherKeys = TestUtils.createKeyPair();
+        keys = TestUtils.createKeyPair();
+        oldCA = TestUtils.createCertificate("CN=ca", oldKeys, "CN=ca", oldKeys.getPrivate());
+        newCA = TestUtils.createCertificate("CN=ca", newKeys, "CN=ca", newKeys.getPrivate());
+        otherCA = TestUtils.createCertificate("CN=other", otherKeys, "CN=other", otherKeys.getPrivate());
+        oldX509 = TestUtils.createCertificate("CN=idp", keys, "CN=ca", oldKeys.getPrivate());
+        newX509 = TestUtils.createCertificate("CN=idp", keys, "CN=ca", newKeys.getPrivate());
+
+        store = new CAStore();
+        store.setAll(new X509Certificate[] {oldCA, otherCA, newCA});
+
+        assertEquals("Wrong number of candidate issuers", 2, store.getIssuerCandidates(newX509).size());
+        assertTrue("Certificate from old CA key did not validate", TrustUtils.validateCertPath(oldX509, store, null));
+        assertTrue("Certificate from new CA key did not validate", TrustUtils.validateCertPath(newX509, store, null));
+    }
+
+    /**
+     * This confirms that replacing the CAs drops the old ones.
+     */
+    @Test
+    public void testSetAll() throws Exception {
+        CAStore store;
+        KeyPair caKeys, keys;
+        X509Certificate ca, x509;
+
+        caKeys = TestUtils.createKeyPair();
+        keys = TestUtils.createKeyPair();
+        ca = TestUtils.createCertificate("CN=ca", caKeys, "CN=ca", caKeys.getPrivate());
+        x509 = TestUtils.createCertificate("CN=idp", keys, "CN=ca", caKeys.getPrivate());
+
+        store = new CAStore();
+        store.add(ca);
+        assertTrue("Certificate did not validate", TrustUtils.validateCertPath(x509, store, null));
+
+        store.setAll(new X509Certificate[0]);
+        assertEquals("Store is not empty", 0, store.size());
+        assertFalse("Certificate validated against an empty store", TrustUtils.validateCertPath(x509, store, null));
+    }
+
+    /**
+     * This confirms that CAs added one at a time are indexed along with the
+     * ones already in the store, and that the CA list the engines used to
+     * take also tries every CA that could have issued a certificate.
+     */
+    @Test
+    public void testAdd() throws Exception {
+        CAStore store;
+        KeyPair oldKeys, newKeys, keys;
+        X509Certificate oldCA, newCA, newX509;
+
+        oldKeys = TestUtils.createKeyPair();
+        newKeys = TestUtils.createKeyPair();
+        keys = TestUtils.createKeyPair();
+        oldCA = TestUtils.createCertificate("CN=ca", oldKeys, "CN=ca", oldKeys.getPrivate());
+        newCA = TestUtils.createCertificate("CN=ca", newKeys, "CN=ca", newKeys.getPrivate());
+        newX509 = TestUtils.createCertificate("CN=idp", keys, "CN=ca", newKeys.getPrivate());
+
+        store = new CAStore();
+        store.add(oldCA);
+        assertFalse("Certificate validated against the wrong CA", TrustUtils.validateCertPath(newX509, store, null));
+        store.add(newCA);
+        assertEquals("Wrong number of candidate issuers", 2, store.getIssuerCandidates(newX509).size());
+        assertTrue("Certificate did not validate", TrustUtils.validateCertPath(newX509, store, null));
+
+        store.setAll(new X509Certificate[] {newCA});
+        assertEquals("Wrong number of candidate issuers", 1, store.getIssuerCandidates(newX509).size());
+
+        assertTrue("Certificate did not validate against the CA list",
+                   TrustUtils.validateCertPath(newX509, new Vector<X509Certificate>(Arrays.asList(oldCA, newCA))));
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.trust.CAStore;
+import org.guanxi.common.trust.CertChainBuilder;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This tests building certificate paths through intermediate CAs.
+ *
+ * @author matthew
+ *
+ */
+public class CertChainBuilderTest {
+    /** The root CA */
+    private X509Certificate root;
+    /** An intermediate CA issued by the root */
+    private X509Certificate intermediate;
+    /** A certificate issued by the intermediate */
+    private X509Certificate leaf;
+    /** The fingerprint of the leaf */
+    private CertFingerprint leafFingerprint;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPair rootKeys;
+        KeyPair intermediateKeys;
+
+        rootKeys = TestUtils.createKeyPair();
+        intermediateKeys = TestUtils.createKeyPair();
+        root = TestUtils.createCACertificate("CN=root", rootKeys, "CN=root", rootKeys.getPrivate());
+        intermediate = TestUtils.createCACertificate("CN=intermediate", intermediateKeys, "CN=root", rootKeys.getPrivate());
+        leaf = TestUtils.createCertificate("CN=idp", TestUtils.createKeyPair(), "CN=intermediate", intermediateKeys.getPrivate());
+        leafFingerprint = CertFingerprint.of(leaf);
+    }
+
+    /**
+     * This confirms that a path is only built through the intermediate
+     * when the verify depth allows it, and that the path validates.
+     */
+    @Test
+    public void testIntermediate() throws Exception {
+        CertChainBuilder builder;
+        List<CertChainBuilder.Chain> chains;
+
+        builder = new CertChainBuilder(new CAStore(Collections.singletonList(root)));
+        builder.setIntermediates(new X509Certificate[] {intermediate});
+        assertTrue("Path built with a verify depth of 1", builder.getChains(leaf, leafFingerprint).isEmpty());
+
+        builder.setVerifyDepth(2);
+        chains = builder.getChains(leaf, leafFingerprint);
+        assertEquals("Wrong number of paths", 1, chains.size());
+        assertEquals("Wrong path", 2, chains.get(0).getPath().size());
+        assertSame("Wrong anchor", root, chains.get(0).getAnchor());
+        assertTrue("Path did not validate", TrustUtils.validatePKIXPath(chains.get(0).getPath(), chains.get(0).getAnchor()));
+        assertFalse("Leaf validated without the intermediate", TrustUtils.validatePKIXPath(leaf, root));
+
+        assertSame("Paths were built again", chains, builder.getChains(leaf, leafFingerprint));
+        builder.clear();
+        assertEquals("Paths not forgotten", 0, builder.size());
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import org.guanxi.common.security.CertFingerprint;
+import org.guanxi.common.trust.CAStore;
+import org.guanxi.common.trust.PKIXValidationCache;
+import org.guanxi.test.TestUtils;
+import org.junit.Test;
+
+/**
+ * This tests the remembered results of PKIX path validation.
+ *
+ * @author matthew
+ *
+ */
+public class PKIXValidationCacheTest {
+
+    /**
+     * This confirms that a certificate issued by the CA validates and that
+     * the result is remembered.
+     */
+    @Test
+    public void testValidPath() throws Exception {
+        PKIXValidationCache cache;
+        KeyPair caKeys, keys;
+        X509Certificate ca, x509;
+
+        caKeys = TestUtils.createKeyPair();
+        keys = TestUtils.createKeyPair();
+        ca = TestUtils.createCertificate("CN=ca", caKeys, "CN=ca", caKeys.getPrivate());
+        x509 = TestUtils.createCertificate("CN=idp", keys, "CN=ca", caKeys.getPrivate());
+
+        cache = new PKIXValidationCache();
+        assertTrue("Certificate issued by CA did not validate", cache.validate(x509, ca));
+        assertTrue("Remembered result is wrong", cache.validate(x509, ca));
+        assertEquals("Result was not remembered once", 1, cache.size());
+
+        cache.clear();
+        assertEquals("Cleared cache is not empty", 0, cache.size());
+    }
+
+    /**
+     * This confirms that a certificate not issued by the CA fails and that
+     * the failure is remembered.
+     */
+    @Test
+    public void testInvalidPath() throws Exception {
+        PKIXValidationCache cache;
+        KeyPair caKeys, otherKeys, keys;
+        X509Certificate ca, x509;
+
+        caKeys = TestUtils.createKeyPair();
+        otherKeys = TestUtils.createKeyPair();
+        keys = TestUtils.createKeyPair();
+        ca = TestUtils.createCertificate("CN=ca", caKeys, "CN=ca", caKeys.getPrivate());
+        x509 = TestUtils.createCertificate("CN=idp", keys, "CN=ca", otherKeys.getPrivate());
+
+        cache = new PKIXValidationCache();
+        assertFalse("Certificate not issued by CA validated", cache.validate(x509, ca));
+        assertFalse("Remembered failure is wrong", cache.validate(x509, ca));
+        assertEquals("Failure was not remembered", 1, cache.size());
+    }
+
+    /**
+     * This confirms that a result remembered with the CA fingerprint from a
+     * CAStore is the same one that's found without it.
+     */
+    @Test
+    public void testStoreFingerprint() throws Exception {
+        PKIXValidationCache cache;
+        CAStore store;
+        KeyPair caKeys, keys;
+        X509Certificate ca, x509;
+
+        caKeys = TestUtils.createKeyPair();
+        keys = TestUtils.createKeyPair();
+        ca = TestUtils.createCertificate("CN=ca", caKeys, "CN=ca", caKeys.getPrivate());
+        x509 = TestUtils.createCertificate("CN=idp", keys, "CN=ca", caKeys.getPrivate());
+        store = new CAStore(Collections.singletonList(ca));
+        assertEquals("Store has the wrong fingerprint", CertFingerprint.of(ca), store.getFingerprint(ca));
+
+        cache = new PKIXValidationCache();
+        assertTrue("Certificate issued by CA did not validate",
+                   cache.validate(x509, CertFingerprint.of(x509), ca, store.getFingerprint(ca)));
+        assertTrue("Remembered result is wrong", cache.validate(x509, ca));
+        assertEquals("Result was not remembered once", 1, cache.size());
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.guanxi.common.trust.RevocationStore;
+import org.guanxi.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This tests the offline revocation checks.
+ *
+ * @author matthew
+ *
+ */
+public class RevocationStoreTest {
+    /** The CA */
+    private KeyPair caKeys;
+    /** A certificate issued by the CA */
+    private X509Certificate x509;
+    /** Where the CRL files go */
+    private File crlDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        caKeys = TestUtils.createKeyPair();
+        x509 = TestUtils.createCertificate("CN=idp", TestUtils.createKeyPair(), "CN=ca", caKeys.getPrivate());
+
+        crlDirectory = File.createTempFile("crls", "");
+        crlDirectory.delete();
+        crlDirectory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : crlDirectory.listFiles()) {
+            file.delete();
+        }
+        crlDirectory.delete();
+    }
+
+    /**
+     * This confirms that a certificate in a CRL file is revoked and that
+     * changing and removing the file is picked up.
+     */
+    @Test
+    public void testCRLDirectory() throws Exception {
+        RevocationStore store;
+        File crlFile;
+
+        crlFile = new File(crlDirectory, "ca.crl");
+        writeCRL(crlFile, createCRL(x509.getSerialNumber()));
+
+        store = new RevocationStore();
+        store.setRefreshInterval(0);
+        store.setCRLDirectory(crlDirectory);
+        assertTrue("Certificate in CRL is not revoked", store.isRevoked(x509));
+
+        writeCRL(crlFile, createCRL(x509.getSerialNumber().add(BigInteger.ONE)));
+        crlFile.setLastModified(crlFile.lastModified() + 2000);
+        assertTrue("CRL directory was checked outside refresh", store.isRevoked(x509));
+        store.refresh();
+        assertFalse("Changed CRL was not reloaded", store.isRevoked(x509));
+
+        writeCRL(crlFile, createCRL(x509.getSerialNumber()));
+        crlFile.setLastModified(crlFile.lastModified() + 4000);
+        store.refresh();
+        assertTrue("Changed CRL was not reloaded", store.isRevoked(x509));
+
+        crlFile.delete();
+        store.refresh();
+        assertFalse("Removed CRL is still used", store.isRevoked(x509));
+    }
+
+    /**
+     * This confirms that the CRL directory is checked in the background.
+     */
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+        RevocationStore store;
+        File crlFile;
+
+        store = new RevocationStore();
+        store.setRefreshInterval(50);
+        store.setCRLDirectory(crlDirectory);
+        try {
+            assertFalse("Certificate revoked with no CRLs", store.isRevoked(x509));
+
+            crlFile = new File(crlDirectory, "ca.crl");
+            writeCRL(crlFile, createCRL(x509.getSerialNumber()));
+            for (int wait = 0; (wait < 100) && (!store.isRevoked(x509)); wait++) {
+                Thread.sleep(50);
+            }
+            assertTrue("New CRL was not loaded in the background", store.isRevoked(x509));
+        }
+        finally {
+            store.stopRefreshing();
+        }
+    }
+
+    /**
+     * This confirms that CRLs from metadata are used.
+     */
+    @Test
+    public void testMetadataCRLs() throws Exception {
+        RevocationStore store;
+
+        store = new RevocationStore();
+        assertFalse("Certificate revoked with no CRLs", store.isRevoked(x509));
+
+        store.setMetadataCRLs(Collections.singletonList(createCRL(x509.getSerialNumber())));
+        assertTrue("Certificate in metadata CRL is not revoked", store.isRevoked(x509));
+    }
+
+    /**
+     * This creates a CRL from the CA revoking a serial number.
+     */
+    private X509CRL createCRL(BigInteger serial) throws Exception {
+        X509V2CRLGenerator generator;
+
+        generator = new X509V2CRLGenerator();
+        generator.setIssuerDN(new X500Principal("CN=ca"));
+        generator.setThisUpdate(new Date());
+        generator.setNextUpdate(new Date(System.currentTimeMillis() + (24 * 60 * 60 * 1000)));
+        generator.setSignatureAlgorithm("SHA1withRSA");
+        generator.addCRLEntry(serial, new Date(), 0);
+
+        return generator.generate(caKeys.getPrivate(), "BC");
+    }
+
+    /**
+     * This writes a CRL to a file.
+     */
+    private void writeCRL(File file, X509CRL crl) throws Exception {
+        FileOutputStream out;
+
+        out = new FileOutputStream(file);
+        out.write(crl.getEncoded());
+        out.close();
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+
+/**
+ * This times verifying the signature on a SAML Response held by XMLBeans the
+ * way TrustUtils used to, saving the message and parsing it into a new DOM,
+ * against importing the XMLBeans DOM as verifySignature(XmlObject) does now.
+ * It's not a unit test, run it by hand:
+ *
+ *   java org.guanxi.test.common.trust.SignatureVerifyBenchmark [iterations] [assertions]
+ *
+ * @author matthew
+ *
+ */
+public class SignatureVerifyBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations;
+        int assertions;
+        StringBuilder response;
+        KeyPair keys;
+        XmlObject message;
+
+        iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        assertions = (args.length > 1) ? Integer.parseInt(args[1]) : 40;
+
+        response = new StringBuilder();
+        response.append("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:1.0:protocol\" ");
+        response.append("xmlns:saml=\"urn:oasis:names:tc:SAML:1.0:assertion\" ResponseID=\"response-id\">");
+        for (int i = 0; i < assertions; i++) {
+            response.append("<saml:Assertion AssertionID=\"assertion-" + i + "\">assertion " + i + "</saml:Assertion>");
+        }
+        response.append("</samlp:Response>");
+
+        keys = TestUtils.createKeyPair();
+        message = XmlObject.Factory.parse(new ByteArrayInputStream(
+                TestUtils.signResponse(response.toString(), keys,
+                                       TestUtils.createCertificate("CN=signer", keys, "CN=signer", keys.getPrivate()))));
+
+        // Several runs so the later ones are warmed up
+        for (int run = 0; run < 5; run++) {
+            System.out.println(assertions + " assertions" +
+                               "  save and parse: " + timeSaveAndParse(message, iterations) + "us" +
+                               "  DOM import: " + timeImport(message, iterations) + "us");
+        }
+    }
+
+    /**
+     * This times verifying after saving the message and parsing the bytes, as TrustUtils used to.
+     */
+    private static long timeSaveAndParse(XmlObject message, int iterations) throws Exception {
+        long start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.save(out);
+            TrustUtils.verifySignature(out.toByteArray());
+        }
+        return (System.nanoTime() - start) / iterations / 1000;
+    }
+
+    /**
+     * This times verifying the XMLBeans message directly.
+     */
+    private static long timeImport(XmlObject message, int iterations) throws Exception {
+        long start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            TrustUtils.verifySignature(message);
+        }
+        return (System.nanoTime() - start) / iterations / 1000;
+    }
+}
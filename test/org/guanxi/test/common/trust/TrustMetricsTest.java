@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.guanxi.common.trust.TrustMetrics;
+import org.junit.Test;
+
+/**
+ * This tests the timings of trust decisions.
+ *
+ * @author matthew
+ *
+ */
+public class TrustMetricsTest {
+
+    /**
+     * This confirms that nothing is recorded while recording is off.
+     */
+    @Test
+    public void testDisabled() {
+        TrustMetrics metrics;
+        long time;
+
+        metrics = new TrustMetrics();
+        time = metrics.start();
+        assertEquals("Decision timed while recording is off", 0, time);
+
+        metrics.record(TrustMetrics.Stage.VERIFY_SIGNATURE, time);
+        metrics.outcome("urn:test:entity", TrustMetrics.Outcome.PKIX, time);
+        assertEquals("Stage recorded while recording is off", 0, metrics.getCount(TrustMetrics.Stage.VERIFY_SIGNATURE));
+        assertEquals("Outcome recorded while recording is off", 0, metrics.getCount(TrustMetrics.Outcome.PKIX));
+    }
+
+    /**
+     * This confirms that stages and outcomes are recorded overall and per
+     * entity while recording is on.
+     */
+    @Test
+    public void testEnabled() throws Exception {
+        TrustMetrics metrics;
+        long start, time;
+
+        metrics = new TrustMetrics();
+        metrics.setEnabled(true);
+        for (int i = 0; i < 10; i++) {
+            start = metrics.start();
+            time = metrics.record(TrustMetrics.Stage.VERIFY_SIGNATURE, start);
+            Thread.sleep(1);
+            metrics.record(TrustMetrics.Stage.PKIX, time);
+            metrics.outcome("urn:test:entity" + (i % 2), (i % 2 == 0) ? TrustMetrics.Outcome.PKIX : TrustMetrics.Outcome.REJECTED, start);
+        }
+
+        assertEquals("Wrong stage count", 10, metrics.getCount(TrustMetrics.Stage.PKIX));
+        assertEquals("Wrong total count", 10, metrics.getCount(TrustMetrics.Stage.TOTAL));
+        assertTrue("PKIX stage too quick", metrics.getPercentileNanos(TrustMetrics.Stage.PKIX, 50) >= 1000000);
+        assertEquals("Wrong outcome count", 5, metrics.getCount(TrustMetrics.Outcome.PKIX));
+        assertEquals("Wrong entity outcome count", 5, metrics.getEntityOutcomeCount("urn:test:entity1", "REJECTED"));
+        assertEquals("Wrong entity outcome count", 0, metrics.getEntityOutcomeCount("urn:test:entity1", "PKIX"));
+        assertEquals("Wrong number of entities", 2, metrics.getEntityIDs().length);
+
+        metrics.reset();
+        assertEquals("Reset didn't clear stages", 0, metrics.getCount(TrustMetrics.Stage.PKIX));
+        assertEquals("Reset didn't clear entities", 0, metrics.getEntityIDs().length);
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.trust.TrustEvaluationContext;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+import org.guanxi.xal.w3.xmldsig.KeyInfoType;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This tests the signature verification in TrustUtils.
+ *
+ * @author matthew
+ *
+ */
+public class TrustUtilsTest {
+    /** An unsigned SAML Response */
+    private static final String RESPONSE = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:1.0:protocol\" " +
+                                           "xmlns:saml=\"urn:oasis:names:tc:SAML:1.0:assertion\" ResponseID=\"response-id\">" +
+                                           "<saml:Assertion AssertionID=\"assertion-id\">assertion</saml:Assertion>" +
+                                           "</samlp:Response>";
+
+    /** A signed SAML Response */
+    private static byte[] signedResponse;
+    /** The key that signed it */
+    private static KeyPair signerKeys;
+
+    /**
+     * This signs a simple SAML Response the same way the IdP does.
+     */
+    @BeforeClass
+    public static void signResponse() throws Exception {
+        signerKeys = TestUtils.createKeyPair();
+        signedResponse = TestUtils.signResponse(RESPONSE,
+                                                signerKeys,
+                                                TestUtils.createCertificate("CN=signer", signerKeys, "CN=signer", signerKeys.getPrivate()));
+    }
+
+    /**
+     * This confirms that a signed message verifies whether it arrives as
+     * raw bytes or as an XMLBeans object.
+     */
+    @Test
+    public void testVerifySignature() throws Exception {
+        assertTrue("Raw signed message did not verify", TrustUtils.verifySignature(signedResponse));
+        assertTrue("XMLBeans signed message did not verify", TrustUtils.verifySignature(XmlObject.Factory.parse(new ByteArrayInputStream(signedResponse))));
+    }
+
+    /**
+     * This confirms that a signed message verifies with the signer's key
+     * and not with any other key.
+     */
+    @Test
+    public void testVerifySignatureWithKey() throws Exception {
+        XmlObject message;
+
+        message = XmlObject.Factory.parse(new ByteArrayInputStream(signedResponse));
+
+        assertTrue("Message did not verify with the signer's key", TrustUtils.verifySignature(message, signerKeys.getPublic()));
+        assertFalse("Message verified with another key", TrustUtils.verifySignature(message, TestUtils.createKeyPair().getPublic()));
+    }
+
+    /**
+     * This confirms that a message verifies through a trust evaluation and
+     * that the evaluation only works things out once.
+     */
+    @Test
+    public void testVerifySignatureWithContext() throws Exception {
+        TrustEvaluationContext context;
+
+        context = new TrustEvaluationContext(XmlObject.Factory.parse(new ByteArrayInputStream(signedResponse)));
+
+        assertTrue("Message did not verify through the context", TrustUtils.verifySignature(context));
+        assertTrue("Message did not verify with the signer's key", TrustUtils.verifySignature(context, signerKeys.getPublic()));
+        assertSame("DOM was created again", context.getDocument(), context.getDocument());
+        assertSame("Signer certificate was parsed again", context.getSignerCertificate(), context.getSignerCertificate());
+        assertEquals("Wrong signer", signerKeys.getPublic(), context.getSignerCertificate().getPublicKey());
+    }
+
+    /**
+     * This confirms that an unsigned message gives an error rather than
+     * a NullPointerException.
+     */
+    @Test
+    public void testUnsignedMessage() throws Exception {
+        XmlObject message;
+        TrustEvaluationContext context;
+
+        message = XmlObject.Factory.parse(RESPONSE);
+        context = new TrustEvaluationContext(message);
+
+        assertNull("Unsigned message has a KeyInfo", TrustUtils.getKeyInfoFromSignature(message));
+        assertNull("Unsigned message has a KeyInfo in the context", context.getKeyInfo());
+        try {
+            TrustUtils.getX509CertFromSignature(message);
+            fail("Got a certificate from an unsigned message");
+        }
+        catch (GuanxiException ge) {
+            assertEquals("Wrong error", "No signature in message", ge.getMessage());
+        }
+        try {
+            context.getSignerCertificate();
+            fail("Got a signer from an unsigned message");
+        }
+        catch (GuanxiException ge) {
+            assertEquals("Wrong error", "No signature in message", ge.getMessage());
+        }
+        try {
+            TrustUtils.verifySignature(context, signerKeys.getPublic());
+            fail("Unsigned message verified");
+        }
+        catch (GuanxiException ge) {
+            assertEquals("Wrong error", "No signature in message", ge.getMessage());
+        }
+    }
+
+    /**
+     * This confirms that a message signed with only a KeyValue in its KeyInfo
+     * verifies with a known key but gives an error rather than an exception
+     * from the JDK when its certificate is needed.
+     */
+    @Test
+    public void testKeyValueOnlySignature() throws Exception {
+        byte[] keyValueResponse;
+        TrustEvaluationContext context;
+
+        keyValueResponse = TestUtils.signResponse(RESPONSE, signerKeys, null);
+        context = new TrustEvaluationContext(XmlObject.Factory.parse(new ByteArrayInputStream(keyValueResponse)));
+
+        assertTrue("Message did not verify with the signer's key", TrustUtils.verifySignature(context, signerKeys.getPublic()));
+        try {
+            context.getSignerCertificate();
+            fail("Got a signer certificate from a KeyValue");
+        }
+        catch (GuanxiException ge) {
+            assertEquals("Wrong error", "No certificate in signature", ge.getMessage());
+        }
+        try {
+            TrustUtils.verifySignature(keyValueResponse);
+            fail("Message verified without a certificate");
+        }
+        catch (GuanxiException ge) {
+            assertEquals("Wrong error", "No certificate in signature", ge.getMessage());
+        }
+        try {
+            TrustUtils.getX509CertFromSignature((KeyInfoType)null);
+            fail("Got a certificate without a KeyInfo");
+        }
+        catch (GuanxiException ge) {
+            assertEquals("Wrong error", "No certificate in signature", ge.getMessage());
+        }
+    }
+
+    /**
+     * This confirms that a message that has been changed after signing
+     * does not verify.
+     */
+    @Test
+    public void testVerifyTamperedSignature() throws Exception {
+        byte[] tampered;
+
+        tampered = new String(signedResponse, "UTF-8").replace(">assertion<", ">tampered<").getBytes("UTF-8");
+
+        assertFalse("Raw tampered message verified", TrustUtils.verifySignature(tampered));
+        assertFalse("XMLBeans tampered message verified", TrustUtils.verifySignature(XmlObject.Factory.parse(new ByteArrayInputStream(tampered))));
+    }
+
+    /**
+     * This confirms that a batch of messages is verified with each result
+     * in the same place as its message.
+     */
+    @Test
+    public void testVerifySignatures() throws Exception {
+        ArrayList<XmlObject> messages;
+        byte[] tampered;
+        boolean[] results;
+
+        tampered = new String(signedResponse, "UTF-8").replace(">assertion<", ">tampered<").getBytes("UTF-8");
+
+        messages = new ArrayList<XmlObject>();
+        for (int i = 0; i < 10; i++) {
+            messages.add(XmlObject.Factory.parse(new ByteArrayInputStream((i % 3 == 0) ? tampered : signedResponse)));
+        }
+
+        results = TrustUtils.verifySignatures(messages);
+        assertEquals("Wrong number of results", messages.size(), results.length);
+        for (int i = 0; i < results.length; i++) {
+            assertEquals("Wrong result for message " + i, i % 3 != 0, results[i]);
+        }
+    }
+
+    /**
+     * This confirms that a KeyName matches a certificate's full DN or its
+     * CN but nothing else in the DN.
+     */
+    @Test
+    public void testCompareX509SubjectWithKeyName() throws Exception {
+        KeyPair keys;
+        X509Certificate cert;
+
+        keys = TestUtils.createKeyPair();
+        cert = TestUtils.createCertificate("CN=urn:uni:ac:uk:idp, OU=Unknown, O=Unknown", keys, "CN=ca", keys.getPrivate());
+
+        assertTrue("CN did not match", TrustUtils.compareX509SubjectWithKeyName(cert, "urn:uni:ac:uk:idp"));
+        assertTrue("Full DN did not match", TrustUtils.compareX509SubjectWithKeyName(cert, cert.getSubjectDN().getName()));
+        assertFalse("OU matched", TrustUtils.compareX509SubjectWithKeyName(cert, "Unknown"));
+        assertFalse("Part of the CN matched", TrustUtils.compareX509SubjectWithKeyName(cert, "urn:uni"));
+    }
+}
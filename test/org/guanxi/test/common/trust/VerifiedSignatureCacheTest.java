@@ -0,0 +1,179 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.trust.TrustEvaluationContext;
+import org.guanxi.common.trust.VerifiedSignatureCache;
+import org.guanxi.test.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This tests remembering the results of signature verification.
+ *
+ * @author matthew
+ *
+ */
+public class VerifiedSignatureCacheTest {
+    /** An unsigned SAML Response */
+    private static final String RESPONSE = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:1.0:protocol\" " +
+                                           "xmlns:saml=\"urn:oasis:names:tc:SAML:1.0:assertion\" ResponseID=\"response-id\">" +
+                                           "<saml:Assertion AssertionID=\"assertion-id\">assertion</saml:Assertion>" +
+                                           "</samlp:Response>";
+
+    /** The key that signs the messages */
+    private static KeyPair signerKeys;
+    /** A signed SAML Response */
+    private static byte[] signedResponse;
+
+    /**
+     * This signs the Response.
+     */
+    @BeforeClass
+    public static void signResponse() throws Exception {
+        signerKeys = TestUtils.createKeyPair();
+        signedResponse = TestUtils.signResponse(RESPONSE, signerKeys,
+                                                TestUtils.createCertificate("CN=signer", signerKeys, "CN=signer", signerKeys.getPrivate()));
+    }
+
+    /**
+     * This creates a trust evaluation for a message as it was received.
+     */
+    private static TrustEvaluationContext context(byte[] message) throws Exception {
+        return TrustEvaluationContext.fromReceivedBytes(message);
+    }
+
+    /**
+     * This replaces part of a message.
+     */
+    private static byte[] replace(byte[] message, String target, String replacement) throws Exception {
+        String text;
+
+        text = new String(message, "UTF-8");
+        assertTrue("Nothing to replace", text.contains(target));
+        return text.replace(target, replacement).getBytes("UTF-8");
+    }
+
+    /**
+     * This confirms that the same signature verifies again from what was
+     * remembered.
+     */
+    @Test
+    public void testRepeatedSignature() throws Exception {
+        VerifiedSignatureCache cache;
+
+        cache = new VerifiedSignatureCache();
+
+        assertTrue("Signed message did not verify", cache.verify(context(signedResponse)));
+        assertEquals("Result not remembered", 1, cache.size());
+        assertTrue("Signed message did not verify again", cache.verify(context(signedResponse)));
+        assertEquals("Result remembered twice", 1, cache.size());
+    }
+
+    /**
+     * This confirms that nothing is remembered for a message without the
+     * bytes it was received as.
+     */
+    @Test
+    public void testNoReceivedBytes() throws Exception {
+        VerifiedSignatureCache cache;
+
+        cache = new VerifiedSignatureCache();
+
+        assertTrue("Signed message did not verify",
+                   cache.verify(new TrustEvaluationContext(XmlObject.Factory.parse(new ByteArrayInputStream(signedResponse)))));
+        assertEquals("Result remembered without the message's bytes", 0, cache.size());
+    }
+
+    /**
+     * This confirms that content changed under a remembered signature is
+     * verified in full.
+     */
+    @Test
+    public void testTamperedContent() throws Exception {
+        VerifiedSignatureCache cache;
+
+        cache = new VerifiedSignatureCache();
+
+        assertTrue("Signed message did not verify", cache.verify(context(signedResponse)));
+        assertFalse("Tampered message verified from what was remembered",
+                    cache.verify(context(replace(signedResponse, ">assertion<", ">tampered<"))));
+        assertTrue("Signed message did not verify after the tampered one", cache.verify(context(signedResponse)));
+    }
+
+    /**
+     * This confirms that a context keeps the message and the bytes it was
+     * parsed from together, so a different message can't be answered from
+     * the result remembered for bytes that verified.
+     */
+    @Test
+    public void testMessageMatchesBytes() throws Exception {
+        VerifiedSignatureCache cache;
+        TrustEvaluationContext tampered;
+        byte[] bytes;
+
+        cache = new VerifiedSignatureCache();
+
+        assertTrue("Signed message did not verify", cache.verify(context(signedResponse)));
+
+        // The same length as the signed message so it can be overwritten with it
+        bytes = replace(signedResponse, ">assertion<", ">Assertion<");
+        assertEquals(signedResponse.length, bytes.length);
+        tampered = context(bytes);
+        System.arraycopy(signedResponse, 0, bytes, 0, bytes.length);
+        assertFalse("Tampered message verified from what was remembered for other bytes", cache.verify(tampered));
+
+        // A message given without its bytes is never answered from what was remembered
+        assertFalse("Tampered message without its bytes verified",
+                    cache.verify(new TrustEvaluationContext(XmlObject.Factory.parse(
+                            new ByteArrayInputStream(replace(signedResponse, ">assertion<", ">tampered<"))))));
+    }
+
+    /**
+     * This confirms that a signature that doesn't verify with the signer's
+     * key is remembered as failing, but that the failure isn't used for the
+     * same SignatureValue in a message that's different in any way.
+     */
+    @Test
+    public void testCachedNegative() throws Exception {
+        VerifiedSignatureCache cache;
+        KeyPair otherKeys;
+        byte[] wrongCert;
+        byte[] changedSignedInfo;
+
+        cache = new VerifiedSignatureCache();
+        otherKeys = TestUtils.createKeyPair();
+
+        // The certificate in the KeyInfo isn't the signer's
+        wrongCert = TestUtils.signResponse(RESPONSE, signerKeys,
+                                           TestUtils.createCertificate("CN=other", otherKeys, "CN=other", otherKeys.getPrivate()));
+        assertFalse("Message verified with the wrong certificate", cache.verify(context(wrongCert)));
+        assertEquals("Failure not remembered", 1, cache.size());
+        assertFalse("Message verified with the wrong certificate from what was remembered", cache.verify(context(wrongCert)));
+
+        // Whitespace in the SignedInfo changes what was signed but not the References
+        changedSignedInfo = replace(signedResponse, "<ds:SignedInfo>", "<ds:SignedInfo> ");
+        assertFalse("Message with a changed SignedInfo verified", cache.verify(context(changedSignedInfo)));
+        assertEquals("Failure not remembered", 2, cache.size());
+        assertTrue("Signed message failed from what was remembered", cache.verify(context(signedResponse)));
+        assertFalse("Message with a changed SignedInfo verified from what was remembered", cache.verify(context(changedSignedInfo)));
+    }
+
+    /**
+     * This confirms that an unsigned message is an error.
+     */
+    @Test(expected = GuanxiException.class)
+    public void testUnsignedMessage() throws Exception {
+        new VerifiedSignatureCache().verify(context(RESPONSE.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.AsyncTrustEngine;
+import org.guanxi.common.trust.TrustExecutors;
+import org.guanxi.common.trust.TrustResult;
+import org.guanxi.common.trust.impl.SimpleTrustEngine;
+import org.junit.Test;
+
+/**
+ * This tests making trust decisions in the background.
+ *
+ * @author matthew
+ *
+ */
+public class AsyncTrustEngineAdapterTest {
+
+    /**
+     * This is an engine that trusts "yes", doesn't trust anything else and
+     * can't decide about null.
+     */
+    private static class YesEngine extends SimpleTrustEngine {
+        public boolean trustEntity(Metadata entityMetadata, Object entityData) throws GuanxiException {
+            if (entityData == null) {
+                throw new GuanxiException("No entity data");
+            }
+            return "yes".equals(entityData);
+        }
+    }
+
+    /**
+     * This is an engine with a bug in it.
+     */
+    private static class BrokenEngine extends SimpleTrustEngine {
+        public boolean trustEntity(Metadata entityMetadata, Object entityData) throws GuanxiException {
+            throw new IllegalStateException("Broken engine");
+        }
+    }
+
+    /**
+     * This is an engine that waits for work on the verifier pool, as
+     * one that calls TrustUtils.verifySignatures does.
+     */
+    private static class BatchEngine extends SimpleTrustEngine {
+        public boolean trustEntity(Metadata entityMetadata, Object entityData) throws GuanxiException {
+            try {
+                return TrustExecutors.getVerifierExecutor().submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return Boolean.TRUE;
+                    }
+                }).get(10, TimeUnit.SECONDS);
+            }
+            catch (Exception e) {
+                throw new GuanxiException(e);
+            }
+        }
+    }
+
+    /**
+     * This is metadata with just an entityID.
+     */
+    private static class TestMetadata implements Metadata {
+        public String getEntityID() { return "urn:test:entity"; }
+        public void setPrivateData(Object privateData) {}
+        public Object getPrivateData() { return null; }
+        public void setHostName(String hostName) {}
+        public String getHostName() { return null; }
+    }
+
+    /**
+     * This confirms that the engine's decisions and errors come back
+     * through the Future.
+     */
+    @Test
+    public void testTrustEntityAsync() throws Exception {
+        YesEngine engine;
+        Metadata metadata;
+        TrustResult result;
+
+        engine = new YesEngine();
+        metadata = new TestMetadata();
+
+        assertTrue("Entity not trusted", engine.trustEntityAsync(metadata, "yes").get().isTrusted());
+        assertFalse("Entity trusted", engine.trustEntityAsync(metadata, "no").get().isTrusted());
+
+        result = engine.trustEntityAsync(metadata, null).get();
+        assertFalse("Entity trusted after an error", result.isTrusted());
+        assertNotNull("Error not recorded", result.getError());
+    }
+
+    /**
+     * This confirms that the callback is told about the decision.
+     */
+    @Test
+    public void testCallback() throws Exception {
+        final CountDownLatch decided = new CountDownLatch(1);
+        final TrustResult[] called = new TrustResult[1];
+        TrustResult result;
+
+        result = new YesEngine().trustEntityAsync(new TestMetadata(), "yes", new AsyncTrustEngine.TrustCallback() {
+            public void trustDecided(Metadata entityMetadata, TrustResult result) {
+                called[0] = result;
+                decided.countDown();
+            }
+        }).get();
+
+        assertTrue("Callback not called", decided.await(10, TimeUnit.SECONDS));
+        assertSame("Callback got a different result", result, called[0]);
+        assertEquals("Wrong reason", "urn:test:entity trusted by " + YesEngine.class.getName(), result.getReason());
+    }
+
+    /**
+     * This confirms that an engine that throws a RuntimeException still
+     * gives the Future and the callback an untrusted result with the error.
+     */
+    @Test
+    public void testEngineThrows() throws Exception {
+        final CountDownLatch decided = new CountDownLatch(1);
+        final TrustResult[] called = new TrustResult[1];
+        TrustResult result;
+
+        result = new BrokenEngine().trustEntityAsync(new TestMetadata(), "yes", new AsyncTrustEngine.TrustCallback() {
+            public void trustDecided(Metadata entityMetadata, TrustResult result) {
+                called[0] = result;
+                decided.countDown();
+            }
+        }).get();
+
+        assertTrue("Callback not called", decided.await(10, TimeUnit.SECONDS));
+        assertSame("Callback got a different result", result, called[0]);
+        assertFalse("Entity trusted by a broken engine", result.isTrusted());
+        assertTrue("Wrong error", result.getError() instanceof IllegalStateException);
+    }
+
+    /**
+     * This confirms that decisions filling the shared pool can still wait
+     * for work on the verifier pool.
+     */
+    @Test
+    public void testDecisionsWaitForVerifier() throws Exception {
+        BatchEngine engine;
+        List<Future<TrustResult>> results;
+
+        engine = new BatchEngine();
+        results = new ArrayList<Future<TrustResult>>();
+        for (int c = 0; c < Runtime.getRuntime().availableProcessors() * 2; c++) {
+            results.add(engine.trustEntityAsync(new TestMetadata(), "batch"));
+        }
+
+        for (Future<TrustResult> result : results) {
+            assertTrue("Decision did not get its verification back", result.get(30, TimeUnit.SECONDS).isTrusted());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.EntityKeyIndex;
+import org.guanxi.common.trust.TrustEvaluationContext;
+import org.guanxi.common.trust.impl.ShibbolethTrustEngineImpl;
+import org.guanxi.test.TestUtils;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This tests that the engine learns which of embedded and PKIX validation
+ * works for an entity and tries that first.
+ *
+ * @author matthew
+ *
+ */
+public class ShibbolethTrustEngineImplTest {
+    /** An engine whose validation steps pass or fail as they're told to and record when they're tried */
+    private static class ScriptedTrustEngine extends ShibbolethTrustEngineImpl {
+        boolean embeddedPasses;
+        boolean pkixPasses;
+        List<String> tried = new ArrayList<String>();
+
+        protected boolean validatePKIX(EntityKeyIndex keyIndex, EntityDescriptorType saml2Metadata, String hostName,
+                                       TrustEvaluationContext context, int entityType) {
+            tried.add("pkix");
+            return pkixPasses;
+        }
+
+        protected boolean validateEmbeddedCert(EntityKeyIndex keyIndex, EntityDescriptorType saml2Metadata,
+                                               TrustEvaluationContext context, int entityType) {
+            tried.add("embedded");
+            return embeddedPasses;
+        }
+    }
+
+    /** Metadata whose descriptor can be replaced, as a reload does */
+    private static class TestMetadata implements Metadata {
+        private Object descriptor;
+        public String getEntityID() { return "urn:test:aa"; }
+        public void setPrivateData(Object privateData) { descriptor = privateData; }
+        public Object getPrivateData() { return descriptor; }
+        public void setHostName(String hostName) {}
+        public String getHostName() { return "aa.test"; }
+    }
+
+    private ScriptedTrustEngine engine;
+    private TestMetadata metadata;
+    private X509Certificate x509;
+
+    /**
+     * This creates an EntityDescriptor that's only ever compared by identity.
+     */
+    private static EntityDescriptorType newDescriptor() {
+        return (EntityDescriptorType)Proxy.newProxyInstance(EntityDescriptorType.class.getClassLoader(),
+                                                            new Class[] {EntityDescriptorType.class},
+                                                            new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                return null;
+            }
+        });
+    }
+
+    @Before
+    public void init() throws Exception {
+        KeyPair keys = TestUtils.createKeyPair();
+
+        engine = new ScriptedTrustEngine();
+        metadata = new TestMetadata();
+        metadata.setPrivateData(newDescriptor());
+        x509 = TestUtils.createCertificate("CN=aa.test", keys, "CN=aa.test", keys.getPrivate());
+    }
+
+    /**
+     * This asks the engine about the back channel connection and returns
+     * which steps it tried.
+     */
+    private List<String> trust(boolean expected) throws Exception {
+        engine.tried.clear();
+        assertEquals("Wrong decision", expected, engine.trustEntity(metadata, x509));
+        return new ArrayList<String>(engine.tried);
+    }
+
+    /**
+     * This confirms that PKIX is tried first once it's the one that worked.
+     */
+    @Test
+    public void testPKIXFirstAfterPKIXSuccess() throws Exception {
+        engine.pkixPasses = true;
+
+        assertEquals("Embedded not tried first", Arrays.asList("embedded", "pkix"), trust(true));
+        assertEquals("PKIX not tried first", Arrays.asList("pkix"), trust(true));
+    }
+
+    /**
+     * This confirms that embedded validation is still tried when PKIX stops
+     * working, and that the engine then switches back to trying it first.
+     */
+    @Test
+    public void testFallbackAndSwitchBack() throws Exception {
+        engine.pkixPasses = true;
+        trust(true);
+
+        engine.pkixPasses = false;
+        engine.embeddedPasses = true;
+        assertEquals("Embedded not tried after PKIX failed", Arrays.asList("pkix", "embedded"), trust(true));
+        assertEquals("Embedded not tried first again", Arrays.asList("embedded"), trust(true));
+
+        engine.embeddedPasses = false;
+        assertEquals("Both not tried", Arrays.asList("embedded", "pkix"), trust(false));
+    }
+
+    /**
+     * This confirms that what was learned is forgotten when the entity's
+     * metadata is replaced.
+     */
+    @Test
+    public void testForgottenAfterNewDescriptor() throws Exception {
+        engine.pkixPasses = true;
+        trust(true);
+
+        metadata.setPrivateData(newDescriptor());
+        assertEquals("Learned from old metadata", Arrays.asList("embedded", "pkix"), trust(true));
+    }
+
+    /**
+     * This confirms that reset() forgets what was learned.
+     */
+    @Test
+    public void testForgottenAfterReset() throws Exception {
+        engine.pkixPasses = true;
+        trust(true);
+
+        engine.reset();
+        assertEquals("Learned before the reset", Arrays.asList("embedded", "pkix"), trust(true));
+    }
+
+    /**
+     * This confirms that nothing is learned while both fail.
+     */
+    @Test
+    public void testNothingLearnedFromRejection() throws Exception {
+        assertEquals("Both not tried", Arrays.asList("embedded", "pkix"), trust(false));
+        assertEquals("Learned from a rejection", Arrays.asList("embedded", "pkix"), trust(false));
+    }
+}
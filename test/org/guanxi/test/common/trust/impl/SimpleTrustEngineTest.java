@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package org.guanxi.test.common.trust.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNull;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.security.cert.X509CRL;
+
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.TrustAnchors;
+import org.guanxi.common.trust.impl.SimpleTrustEngine;
+import org.guanxi.test.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This tests that subclasses written against the old caCerts Vector
+ * still see and change the engine's trust anchors.
+ *
+ * @author matthew
+ *
+ */
+public class SimpleTrustEngineTest {
+    /** A subclass that uses caCerts the way old subclasses do */
+    private static class VectorTrustEngine extends SimpleTrustEngine {
+        @SuppressWarnings("deprecation")
+        void addThroughVector(X509Certificate x509) {
+            caCerts.add(x509);
+        }
+
+        @SuppressWarnings("deprecation")
+        int vectorSize() {
+            return caCerts.size();
+        }
+
+        @SuppressWarnings("deprecation")
+        void clearThroughVector() {
+            caCerts.clear();
+        }
+
+        public boolean trustEntity(Metadata entityMetadata, Object entityData) {
+            return false;
+        }
+    }
+
+    private VectorTrustEngine engine;
+    private X509Certificate ca1;
+    private X509Certificate ca2;
+
+    @Before
+    public void init() throws Exception {
+        KeyPair keys = TestUtils.createKeyPair();
+
+        engine = new VectorTrustEngine();
+        ca1 = TestUtils.createCACertificate("CN=ca1", keys, "CN=ca1", keys.getPrivate());
+        ca2 = TestUtils.createCACertificate("CN=ca2", keys, "CN=ca2", keys.getPrivate());
+    }
+
+    /**
+     * CAs added through the Vector are trust anchors.
+     */
+    @Test
+    public void testAddThroughVector() {
+        engine.addThroughVector(ca1);
+
+        assertEquals(1, engine.getCACerts().length);
+        assertSame(ca1, engine.getCACerts()[0]);
+
+        engine.clearThroughVector();
+        assertEquals(0, engine.getCACerts().length);
+    }
+
+    /**
+     * The Vector follows CAs set on the engine.
+     */
+    @Test
+    public void testVectorFollowsEngine() {
+        engine.setCACerts(new X509Certificate[] {ca1, ca2});
+        assertEquals(2, engine.vectorSize());
+
+        engine.reset();
+        assertEquals(0, engine.vectorSize());
+    }
+
+    /**
+     * Metadata sources sharing an engine keep each other's trust anchors,
+     * and CAs added to the engine directly are kept too.
+     */
+    @Test
+    public void testSourcesShareEngine() throws Exception {
+        KeyPair keys = TestUtils.createKeyPair();
+        X509Certificate ca3 = TestUtils.createCACertificate("CN=ca3", keys, "CN=ca3", keys.getPrivate());
+
+        engine.addCACert(ca3);
+        engine.setTrustAnchors("source1", new TrustAnchors(new X509Certificate[] {ca1}, new X509Certificate[0], new X509CRL[0], 1));
+        engine.setTrustAnchors("source2", new TrustAnchors(new X509Certificate[] {ca2}, new X509Certificate[] {ca1}, new X509CRL[0], 3));
+        assertEquals(3, engine.getCACerts().length);
+        assertEquals(1, engine.getIntermediateCerts().length);
+
+        // A reload of one source only replaces its own CAs
+        engine.setTrustAnchors("source1", new TrustAnchors(new X509Certificate[0], new X509Certificate[0], new X509CRL[0], 1));
+        assertEquals(2, engine.getCACerts().length);
+        assertEquals(1, engine.getIntermediateCerts().length);
+
+        engine.setTrustAnchors("source2", null);
+        assertEquals(1, engine.getCACerts().length);
+        assertSame(ca3, engine.getCACerts()[0]);
+        assertEquals(0, engine.getIntermediateCerts().length);
+        assertNull(engine.getTrustAnchors("source2"));
+    }
+}